@@ -0,0 +1,20 @@
+/**
+ * Each transaction has a home site, and reads try first the copy on the home site, or on the first site after it that
+ * holds a copy. A transaction then reads its replicated items from as few sites as possible, so that the failure of
+ * another site doesn't abort it, while the transactions are spread over the sites by their IDs
+ */
+public class AffinitySelection implements ReplicaSelection {
+
+    @Override
+    public DataManager[] order(Transaction t, int item, DataManager[] sites) {
+        if (sites.length < 2) {
+            return sites;
+        }
+        int home = 1 + Math.floorMod(t.transactionID - 1, Driver.driver.dataSites.size());
+        int first = 0;
+        while (first < sites.length && sites[first].siteId < home) {
+            first++;
+        }
+        return ReplicaSelection.rotate(sites, first == sites.length ? 0 : first);
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.PrintStream;
+
+/**
+ * Queues the events in a ring buffer, and writes them from a background thread, so that the commands only copy the
+ * fields of their events instead of building and printing text.
+ *
+ * The ring holds a fixed number of events, which are allocated once and reused. A command that finds the ring full
+ * waits for the writer to make room, even if it is interrupted, so no event is lost and the events are written in the
+ * order they were taken.
+ * The writer takes every event that is in the ring at once, formats them outside the lock of the ring, and writes
+ * them in one go, so the more events pile up, the fewer writes there are.
+ */
+public final class AsyncEventSink extends EventSink implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    Event[] ring;
+    int mask;
+    //the number of events taken and written so far. The events in between are in the ring, at their number modulo its
+    //size
+    long taken = 0;
+    long written = 0;
+    boolean closed = false;
+
+    PrintStream out;
+    Thread thread;
+
+    public AsyncEventSink() {
+        this(System.out, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param out - where the text of the events is written
+     * @param capacity - the number of events the ring holds, rounded up to a power of two
+     */
+    public AsyncEventSink(PrintStream out, int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size *= 2;
+        }
+        ring = new Event[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event();
+        }
+        mask = size - 1;
+        this.out = out;
+        thread = new Thread(this, "event writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    synchronized void emit(int type, int transactionID, int dataItem, int siteId, int value, String text) {
+        //there is no writer any more to make room
+        if (closed) {
+            Event event = new Event();
+            event.set(type, transactionID, dataItem, siteId, value, text);
+            StringBuilder line = new StringBuilder();
+            event.format(line);
+            out.print(line);
+            out.flush();
+            return;
+        }
+        //an interrupt doesn't drop the event, it is only passed on once the event is in the ring
+        boolean interrupted = false;
+        while (taken - written == ring.length) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        ring[(int) (taken & mask)].set(type, transactionID, dataItem, siteId, value, text);
+        taken++;
+        //the writer only waits while the ring is empty
+        if (taken - written == 1) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            long from;
+            long to;
+            synchronized (this) {
+                while (taken == written && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (taken == written) {
+                    break;
+                }
+                from = written;
+                to = taken;
+            }
+
+            //the events up to the last one taken can't be overwritten until they are marked as written
+            text.setLength(0);
+            for (long i = from; i < to; i++) {
+                Event event = ring[(int) (i & mask)];
+                event.format(text);
+                event.text = null;
+            }
+            out.print(text);
+            out.flush();
+
+            synchronized (this) {
+                written = to;
+                notifyAll();
+            }
+        }
+    }
+
+    //write the events that are still in the ring, and stop the writer
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,881 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks for the hot paths of the transaction manager and the data managers.
+ *
+ * Every benchmark runs for a number of warmup iterations, followed by measured iterations, for every combination of
+ * the parameters. Each iteration sets up fresh sites and a fresh transaction manager, and only the benchmark itself
+ * is timed. The console output of the system is discarded while a benchmark runs.
+ *
+ * Usage: java Benchmark [benchmark ...] [-sites=10,50] [-items=20,1000] [-replication=1,3] [-contention=0,0.5]
+ *                       [-waiters=10,1000] [-threads=1,4] [-warmup=3] [-iterations=5]
+ *
+ * For each run it prints the time per operation, the throughput, the bytes allocated per operation by the running
+ * thread, the number and time of garbage collections, so regressions in time or allocation are visible, and the
+ * number of transactions aborted per iteration.
+ *
+ * concurrentReadWriteEnd runs the transactions of readWriteEnd from a number of client sessions, each on its own
+ * thread, against the concurrent transaction manager, to show how the throughput scales with the number of cores.
+ * parkedSessions starts waiters transactions at the same time, each in a session on its own virtual thread, against
+ * the parking transaction manager.
+ * pipelinedClients runs the transactions of concurrentReadWriteEnd from clients of a command server on the loopback
+ * interface, each sending all the lines of a transaction in one round trip.
+ * loggedReadWriteEnd runs fewer transactions of concurrentReadWriteEnd with redo logs on the sites, so that every
+ * commit waits for the log to be on disk. With more threads, more commits share each force of the logs.
+ * catchUpReadWriteEnd runs the transactions of concurrentReadWriteEnd right after the first site recovers, while its
+ * copies are caught up in the background, and until they are all caught up.
+ * offHeapReadWriteEnd runs readWriteEnd with the copies of the sites kept in direct memory instead of on the heap.
+ * itemByItemReadWriteEnd and batchReadWriteEnd run transactions that read and write many items from concurrent
+ * sessions, with a command for each item, and with one read batch and one write batch per transaction.
+ * batchScanWriteEnd and rangeScanWriteEnd run sessions in which every fourth transaction reads SCAN_ITEMS consecutive
+ * items while the others write random items, reading the items with a read batch that locks each of them, and with a
+ * scan that locks their ranges.
+ * waitDieReadWriteEnd and woundWaitReadWriteEnd run readWriteEnd with deadlocks prevented by wait-die and by
+ * wound-wait, instead of detected in the waits-for graph.
+ * timedAbortWaiting runs abortWaiting while the wait of every waiting read has a deadline in the timer wheel, which
+ * is cancelled when the read is woken up, and timeOutWaiting advances the clock until the waits of all the reads time
+ * out and their transactions abort.
+ * asyncReadWriteEnd runs readWriteEnd with its output written by the background thread of an AsyncEventSink,
+ * including the time to write what is left in the ring at the end, and quietReadWriteEnd with its output dropped. The
+ * other benchmarks print their output as text, which is discarded.
+ */
+public class Benchmark {
+
+    static final String[] BENCHMARKS = {"readWriteEnd", "deadlockDetection", "beginReadOnly", "abortWaiting", "recover",
+            "concurrentReadWriteEnd", "parkedSessions", "pipelinedClients", "loggedReadWriteEnd", "catchUpReadWriteEnd",
+            "offHeapReadWriteEnd", "itemByItemReadWriteEnd", "batchReadWriteEnd", "batchScanWriteEnd", "rangeScanWriteEnd",
+            "waitDieReadWriteEnd", "woundWaitReadWriteEnd", "timedAbortWaiting", "timeOutWaiting",
+            "asyncReadWriteEnd", "quietReadWriteEnd"};
+
+    //the number of transactions that are open at the same time in readWriteEnd
+    static final int CONCURRENT_TRANSACTIONS = 16;
+    //the number of operations of each transaction in readWriteEnd
+    static final int OPERATIONS_PER_TRANSACTION = 4;
+    //the number of transactions of concurrentReadWriteEnd, and of loggedReadWriteEnd, whose commits wait for the disk
+    static final int CONCURRENT_SESSION_TRANSACTIONS = 20000;
+    static final int LOGGED_SESSION_TRANSACTIONS = 2000;
+    //the number of items each transaction of batchReadWriteEnd reads, and the number it writes
+    static final int BATCH_ITEMS = 16;
+    //the number of consecutive items each scanning transaction of batchScanWriteEnd and rangeScanWriteEnd reads
+    static final int SCAN_ITEMS = 1024;
+
+    //the parameters of one run
+    int sites;
+    int items;
+    int replication;
+    double contention;
+    int waiters;
+    int threads;
+    Random random = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+        List<String> benchmarks = new ArrayList<String>();
+        int[] sites = {10};
+        int[] items = {20, 1000, 100000};
+        int[] replication = {1, 10};
+        double[] contention = {0.0, 0.9};
+        int[] waiters = {10, 1000, 10000};
+        int[] threads = {1, 2, 4, 8};
+        int warmup = 3;
+        int iterations = 5;
+
+        for (String arg : args) {
+            if (arg.startsWith("-sites=")) {
+                sites = ints(arg);
+            } else if (arg.startsWith("-items=")) {
+                items = ints(arg);
+            } else if (arg.startsWith("-replication=")) {
+                replication = ints(arg);
+            } else if (arg.startsWith("-contention=")) {
+                String[] values = value(arg).split(",");
+                contention = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    contention[i] = Double.parseDouble(values[i]);
+                }
+            } else if (arg.startsWith("-waiters=")) {
+                waiters = ints(arg);
+            } else if (arg.startsWith("-threads=")) {
+                threads = ints(arg);
+            } else if (arg.startsWith("-warmup=")) {
+                warmup = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("-iterations=")) {
+                iterations = Integer.parseInt(value(arg));
+            } else if (Arrays.asList(BENCHMARKS).contains(arg)) {
+                benchmarks.add(arg);
+            } else {
+                throw new Exception("Unknown argument " + arg + ". Benchmarks are " + Arrays.toString(BENCHMARKS));
+            }
+        }
+        if (benchmarks.isEmpty()) {
+            benchmarks.addAll(Arrays.asList(BENCHMARKS));
+        }
+
+        System.out.println(String.format("%-22s %6s %8s %4s %5s %7s %7s %12s %12s %10s %4s %7s %8s",
+                "benchmark", "sites", "items", "rep", "cont", "waiters", "threads", "ns/op", "ops/s", "B/op", "gc", "gc ms", "aborts"));
+
+        for (String name : benchmarks) {
+            //a parameter that the benchmark doesn't use only takes its first value
+            for (int s : sweep(name, "sites", sites)) {
+                for (int i : sweep(name, "items", items)) {
+                    for (int r : sweep(name, "replication", replication)) {
+                        for (double c : sweep(name, "contention", contention)) {
+                            for (int w : sweep(name, "waiters", waiters)) {
+                                for (int n : sweep(name, "threads", threads)) {
+                                    Benchmark benchmark = new Benchmark();
+                                    benchmark.sites = s;
+                                    benchmark.items = i;
+                                    benchmark.replication = Math.min(r, s);
+                                    benchmark.contention = c;
+                                    benchmark.waiters = w;
+                                    benchmark.threads = n;
+                                    benchmark.run(name, warmup, iterations);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run one benchmark with the parameters of this object, and print the results of the measured iterations
+     */
+    void run(String name, int warmup, int iterations) throws Exception {
+        PrintStream console = System.out;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        long operations = 0;
+        long time = 0;
+        long allocated = 0;
+        long collections = 0;
+        long collectionTime = 0;
+        long aborts = 0;
+
+        for (int i = 0; i < warmup + iterations; i++) {
+            System.setOut(discard);
+            try {
+                setUp(name);
+
+                long allocatedBefore = allocatedBytes(threads);
+                long collectionsBefore = collectionCount();
+                long collectionTimeBefore = collectionTime();
+                long start = System.nanoTime();
+
+                long ops = benchmark(name);
+
+                long end = System.nanoTime();
+                if (i >= warmup) {
+                    operations += ops;
+                    time += end - start;
+                    allocated += allocatedBytes(threads) - allocatedBefore + sessionsAllocated.get();
+                    collections += collectionCount() - collectionsBefore;
+                    collectionTime += collectionTime() - collectionTimeBefore;
+                    aborts += transactionManager.metrics.totalAborts();
+                }
+            } finally {
+                tearDown();
+                System.setOut(console);
+            }
+        }
+
+        System.out.println(String.format("%-22s %6d %8d %4d %5.2f %7d %7d %12.1f %12.0f %10.1f %4d %7d %8.1f",
+                name, sites, items, replication, contention, waiters, this.threads,
+                (double) time / operations, operations * 1e9 / time, (double) allocated / operations,
+                collections, collectionTime, (double) aborts / iterations));
+    }
+
+    /**
+     * Create the sites and place the items on them. Item i is placed on the replication sites that follow site i,
+     * so a replication of 1 spreads the items over the sites, and a replication equal to the number of sites places
+     * every item everywhere
+     */
+    void initialize(String name) throws Exception {
+        Driver.driver = new Driver();
+        if (name.equals("offHeapReadWriteEnd")) {
+            Driver.driver.storeOffHeap(null);
+        } else if (name.equals("asyncReadWriteEnd")) {
+            Driver.driver.events = new AsyncEventSink();
+        } else if (name.equals("quietReadWriteEnd")) {
+            Driver.driver.events = new QuietEventSink();
+        }
+        Driver.driver.initialize(sites, items, new ReplicatedPlacement(replication));
+    }
+
+    //the bytes allocated by the session threads of the concurrent benchmark
+    AtomicLong sessionsAllocated = new AtomicLong();
+
+    //the state that the benchmarks share between their set up and their timed part
+    TransactionManager transactionManager;
+    Transaction holder;
+    Path logDirectory;
+
+    void setUp(String name) throws Exception {
+        initialize(name);
+        if (name.equals("concurrentReadWriteEnd") || name.equals("itemByItemReadWriteEnd") || name.equals("batchReadWriteEnd")
+                || name.equals("batchScanWriteEnd") || name.equals("rangeScanWriteEnd")) {
+            Driver.driver.transactionManager = new ConcurrentTransactionManager();
+        } else if (name.equals("loggedReadWriteEnd")) {
+            Driver.driver.transactionManager = new ConcurrentTransactionManager();
+            logDirectory = Files.createTempDirectory("redo");
+            Driver.driver.openLogs(logDirectory.toString());
+        } else if (name.equals("catchUpReadWriteEnd")) {
+            Driver.driver.transactionManager = new ConcurrentTransactionManager();
+            Driver.driver.enableCatchUp(ReplicaCatchUp.DEFAULT_BATCH, ReplicaCatchUp.DEFAULT_PAUSE_MILLIS);
+        } else if (name.equals("parkedSessions")) {
+            Driver.driver.transactionManager = new ParkingTransactionManager();
+        }
+        if (name.equals("waitDieReadWriteEnd")) {
+            Driver.driver.transactionManager.setDeadlockPolicy(TransactionManager.WAIT_DIE);
+        } else if (name.equals("woundWaitReadWriteEnd")) {
+            Driver.driver.transactionManager.setDeadlockPolicy(TransactionManager.WOUND_WAIT);
+        }
+        transactionManager = Driver.driver.transactionManager;
+        sessionsAllocated.set(0);
+
+        if (name.equals("deadlockDetection")) {
+            //waiters transactions waiting for a few transactions that hold locks, as they would on hot items
+            for (int i = 1; i <= waiters; i++) {
+                transactionManager.begin(i);
+            }
+            for (int i = 1; i <= waiters; i++) {
+                Transaction from = transactionManager.transactions.get(i);
+                Transaction to = transactionManager.transactions.get(1 + (i % 8));
+                if (from != to) {
+                    transactionManager.waitsFor.addEdge(from, to);
+                }
+            }
+        } else if (name.equals("catchUpReadWriteEnd")) {
+            //the background thread starts catching up the copies of the site as soon as it recovers
+            DataManager dataSite = Driver.driver.dataSites.get(0);
+            ((ConcurrentTransactionManager) transactionManager).fail(dataSite);
+            ((ConcurrentTransactionManager) transactionManager).recover(dataSite);
+        } else if (name.equals("abortWaiting") || name.equals("timedAbortWaiting") || name.equals("timeOutWaiting")) {
+            //one transaction writes item 1, and all the others wait to read it. The waits are timed so that none of
+            //them times out while they are queued, and their deadlines are a tick apart
+            if (!name.equals("abortWaiting")) {
+                transactionManager.setTimeouts(waiters + 1, TransactionManager.NO_TIMEOUT);
+            }
+            transactionManager.begin(0);
+            transactionManager.write(0, 1, 1);
+            holder = transactionManager.transactions.get(0);
+            for (int i = 1; i <= waiters; i++) {
+                transactionManager.begin(i);
+                transactionManager.read(i, 1);
+                transactionManager.tick();
+            }
+        }
+    }
+
+    //stop the output and catch-up threads and remove the redo logs of the run, if any
+    void tearDown() throws Exception {
+        Driver.driver.events.close();
+        if (Driver.driver.catchUp != null) {
+            Driver.driver.catchUp.stop();
+        }
+        if (logDirectory != null) {
+            for (DataManager dataSite : Driver.driver.dataSites) {
+                if (dataSite.log != null) {
+                    dataSite.log.close();
+                    Files.deleteIfExists(dataSite.log.path);
+                }
+            }
+            Files.deleteIfExists(logDirectory);
+            logDirectory = null;
+        }
+    }
+
+    //run the timed part of a benchmark, and return the number of operations it did
+    long benchmark(String name) throws Exception {
+        if (name.equals("readWriteEnd") || name.equals("offHeapReadWriteEnd") || name.equals("waitDieReadWriteEnd")
+                || name.equals("woundWaitReadWriteEnd") || name.equals("quietReadWriteEnd")) {
+            return readWriteEnd();
+        } else if (name.equals("asyncReadWriteEnd")) {
+            long operations = readWriteEnd();
+            Driver.driver.events.close();
+            return operations;
+        } else if (name.equals("deadlockDetection")) {
+            return deadlockDetection();
+        } else if (name.equals("beginReadOnly")) {
+            return beginReadOnly();
+        } else if (name.equals("abortWaiting") || name.equals("timedAbortWaiting")) {
+            return abortWaiting();
+        } else if (name.equals("timeOutWaiting")) {
+            return timeOutWaiting();
+        } else if (name.equals("concurrentReadWriteEnd")) {
+            return concurrentReadWriteEnd(CONCURRENT_SESSION_TRANSACTIONS);
+        } else if (name.equals("loggedReadWriteEnd")) {
+            return concurrentReadWriteEnd(LOGGED_SESSION_TRANSACTIONS);
+        } else if (name.equals("catchUpReadWriteEnd")) {
+            long operations = concurrentReadWriteEnd(CONCURRENT_SESSION_TRANSACTIONS);
+            while (!Driver.driver.catchUp.isDone()) {
+                Thread.sleep(1);
+            }
+            return operations;
+        } else if (name.equals("parkedSessions")) {
+            return parkedSessions();
+        } else if (name.equals("pipelinedClients")) {
+            return pipelinedClients();
+        } else if (name.equals("itemByItemReadWriteEnd")) {
+            return manyItemsReadWriteEnd(false);
+        } else if (name.equals("batchReadWriteEnd")) {
+            return manyItemsReadWriteEnd(true);
+        } else if (name.equals("batchScanWriteEnd")) {
+            return scanWriteEnd(false);
+        } else if (name.equals("rangeScanWriteEnd")) {
+            return scanWriteEnd(true);
+        } else {
+            return recover();
+        }
+    }
+
+    /**
+     * Transactions that read and write random items and commit, with a number of them open at the same time so that
+     * they conflict. With a contention of c, a share c of the operations goes to a small set of hot items
+     */
+    long readWriteEnd() throws Exception {
+        int transactions = 2000;
+        int[] open = new int[CONCURRENT_TRANSACTIONS];
+        int[] done = new int[CONCURRENT_TRANSACTIONS];
+        int nextID = 1;
+        long operations = 0;
+
+        for (int slot = 0; slot < open.length; slot++) {
+            open[slot] = nextID++;
+            transactionManager.begin(open[slot]);
+            operations++;
+        }
+
+        while (nextID <= transactions + CONCURRENT_TRANSACTIONS) {
+            for (int slot = 0; slot < open.length; slot++) {
+                int transactionID = open[slot];
+                if (done[slot] < OPERATIONS_PER_TRANSACTION) {
+                    if (transactionManager.transactions.contains(transactionID)) {
+                        int item = pickItem();
+                        if (random.nextBoolean()) {
+                            transactionManager.read(transactionID, item);
+                        } else {
+                            transactionManager.write(transactionID, item, random.nextInt(1000));
+                        }
+                    }
+                    done[slot]++;
+                } else {
+                    if (transactionManager.transactions.contains(transactionID)) {
+                        transactionManager.end(transactionID);
+                    }
+                    open[slot] = nextID++;
+                    done[slot] = 0;
+                    transactionManager.begin(open[slot]);
+                }
+                operations++;
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Add and remove a waits-for edge, checking for a deadlock each time, while waiters transactions are already
+     * waiting
+     */
+    long deadlockDetection() throws Exception {
+        int edges = 10000;
+        Transaction waiting = new Transaction(-1, Transaction.REGULAR);
+        for (int i = 0; i < edges; i++) {
+            Transaction holding = transactionManager.transactions.get(1 + (i % 8));
+            transactionManager.waitsFor.addEdge(waiting, holding);
+            transactionManager.checkDeadLock(waiting, holding);
+            transactionManager.waitsFor.remove(waiting);
+        }
+        return edges;
+    }
+
+    /**
+     * Read-only transactions that begin, read one item, and end
+     */
+    long beginReadOnly() throws Exception {
+        int transactions = 10000;
+        for (int i = 1; i <= transactions; i++) {
+            transactionManager.beginReadOnly(i);
+            transactionManager.read(i, 1 + random.nextInt(items));
+            transactionManager.end(i);
+        }
+        return transactions;
+    }
+
+    /**
+     * Abort the transaction that all the waiting transactions wait for. Every waiting read is woken up and done
+     */
+    long abortWaiting() throws Exception {
+        transactionManager.abort(holder);
+        transactionManager.transactions.remove(holder);
+        return waiters;
+    }
+
+    /**
+     * Advance the clock until the wait of every waiting transaction times out, and it aborts
+     */
+    long timeOutWaiting() throws Exception {
+        while (transactionManager.transactions.size() > 1) {
+            transactionManager.tick();
+        }
+        return waiters;
+    }
+
+    /**
+     * Fail and recover a site
+     */
+    long recover() throws Exception {
+        int rounds = 100;
+        DataManager dataSite = Driver.driver.dataSites.get(0);
+        for (int i = 0; i < rounds; i++) {
+            dataSite.fail();
+            dataSite.recover();
+        }
+        return 2 * rounds;
+    }
+
+    /**
+     * Client sessions on their own threads, each running transactions that read and write random items and commit,
+     * one after the other. The transactions of different sessions run at the same time and conflict like those of
+     * readWriteEnd
+     */
+    long concurrentReadWriteEnd(int total) throws Exception {
+        final int transactions = total / threads;
+        final AtomicLong operations = new AtomicLong();
+        final Exception[] failure = new Exception[1];
+        Thread[] sessions = new Thread[threads];
+
+        for (int session = 0; session < threads; session++) {
+            final int firstID = session * transactions + 1;
+            final Random sessionRandom = new Random(session);
+            sessions[session] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+                    long allocatedBefore = allocatedBytes(threadBean);
+                    long ops = 0;
+                    try {
+                        for (int transactionID = firstID; transactionID < firstID + transactions; transactionID++) {
+                            transactionManager.begin(transactionID);
+                            for (int i = 0; i < OPERATIONS_PER_TRANSACTION; i++) {
+                                int item = pickItem(sessionRandom);
+                                if (sessionRandom.nextBoolean()) {
+                                    transactionManager.read(transactionID, item);
+                                } else {
+                                    transactionManager.write(transactionID, item, sessionRandom.nextInt(1000));
+                                }
+                            }
+                            transactionManager.end(transactionID);
+                            ops += OPERATIONS_PER_TRANSACTION + 2;
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                    operations.addAndGet(ops);
+                    sessionsAllocated.addAndGet(allocatedBytes(threadBean) - allocatedBefore);
+                }
+            });
+        }
+
+        for (Thread session : sessions) {
+            session.start();
+        }
+        for (Thread session : sessions) {
+            session.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return operations.get();
+    }
+
+    /**
+     * Client sessions on their own threads, each running transactions that read BATCH_ITEMS random items and write
+     * BATCH_ITEMS random items and commit, either with a command for each item or with one batch for the reads and one
+     * for the writes. Every item read or written counts as an operation
+     *
+     * @param batched - whether the items are read and written in batches
+     */
+    long manyItemsReadWriteEnd(final boolean batched) throws Exception {
+        final int transactions = CONCURRENT_SESSION_TRANSACTIONS / 10 / threads;
+        final AtomicLong operations = new AtomicLong();
+        final Exception[] failure = new Exception[1];
+        Thread[] sessions = new Thread[threads];
+
+        for (int session = 0; session < threads; session++) {
+            final int firstID = session * transactions + 1;
+            final Random sessionRandom = new Random(session);
+            sessions[session] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+                    long allocatedBefore = allocatedBytes(threadBean);
+                    long ops = 0;
+                    int[] reads = new int[BATCH_ITEMS];
+                    int[] writes = new int[BATCH_ITEMS];
+                    int[] values = new int[BATCH_ITEMS];
+                    try {
+                        for (int transactionID = firstID; transactionID < firstID + transactions; transactionID++) {
+                            for (int i = 0; i < BATCH_ITEMS; i++) {
+                                reads[i] = pickItem(sessionRandom);
+                                writes[i] = pickItem(sessionRandom);
+                                values[i] = sessionRandom.nextInt(1000);
+                            }
+                            transactionManager.begin(transactionID);
+                            if (batched) {
+                                transactionManager.readBatch(transactionID, reads);
+                                transactionManager.writeBatch(transactionID, writes, values);
+                            } else {
+                                //the same items in the same order as the batches
+                                int[] readOrder = TransactionManager.canonicalOrder(reads);
+                                int[] writeOrder = TransactionManager.canonicalOrder(writes);
+                                int[] valueOrder = TransactionManager.valuesInOrder(writeOrder, writes, values);
+                                for (int i = 0; i < readOrder.length && transactionManager.transactions.contains(transactionID); i++) {
+                                    transactionManager.read(transactionID, readOrder[i]);
+                                }
+                                for (int i = 0; i < writeOrder.length && transactionManager.transactions.contains(transactionID); i++) {
+                                    transactionManager.write(transactionID, writeOrder[i], valueOrder[i]);
+                                }
+                            }
+                            transactionManager.end(transactionID);
+                            ops += 2 * BATCH_ITEMS + 2;
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                    operations.addAndGet(ops);
+                    sessionsAllocated.addAndGet(allocatedBytes(threadBean) - allocatedBefore);
+                }
+            });
+        }
+
+        for (Thread session : sessions) {
+            session.start();
+        }
+        for (Thread session : sessions) {
+            session.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return operations.get();
+    }
+
+    /**
+     * Client sessions on their own threads, in which every fourth transaction reads SCAN_ITEMS consecutive items from
+     * a random item on, or all the items if there are fewer, and the other transactions write
+     * OPERATIONS_PER_TRANSACTION random items. Every item read or written counts as an operation
+     *
+     * @param ranges - whether the items are read with a scan, or with a read batch
+     */
+    long scanWriteEnd(final boolean ranges) throws Exception {
+        final int transactions = CONCURRENT_SESSION_TRANSACTIONS / 10 / threads;
+        final int scanned = Math.min(SCAN_ITEMS, items);
+        final AtomicLong operations = new AtomicLong();
+        final Exception[] failure = new Exception[1];
+        Thread[] sessions = new Thread[threads];
+
+        for (int session = 0; session < threads; session++) {
+            final int firstID = session * transactions + 1;
+            final Random sessionRandom = new Random(session);
+            sessions[session] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+                    long allocatedBefore = allocatedBytes(threadBean);
+                    long ops = 0;
+                    int[] range = new int[scanned];
+                    try {
+                        for (int transactionID = firstID; transactionID < firstID + transactions; transactionID++) {
+                            transactionManager.begin(transactionID);
+                            if (transactionID % 4 == 0) {
+                                int first = 1 + sessionRandom.nextInt(items - scanned + 1);
+                                if (ranges) {
+                                    transactionManager.scan(transactionID, first, first + scanned - 1);
+                                } else {
+                                    for (int i = 0; i < scanned; i++) {
+                                        range[i] = first + i;
+                                    }
+                                    transactionManager.readBatch(transactionID, range);
+                                }
+                                ops += scanned;
+                            } else {
+                                for (int i = 0; i < OPERATIONS_PER_TRANSACTION && transactionManager.transactions.contains(transactionID); i++) {
+                                    transactionManager.write(transactionID, pickItem(sessionRandom), sessionRandom.nextInt(1000));
+                                }
+                                ops += OPERATIONS_PER_TRANSACTION;
+                            }
+                            transactionManager.end(transactionID);
+                            ops += 2;
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                    operations.addAndGet(ops);
+                    sessionsAllocated.addAndGet(allocatedBytes(threadBean) - allocatedBefore);
+                }
+            });
+        }
+
+        for (Thread session : sessions) {
+            session.start();
+        }
+        for (Thread session : sessions) {
+            session.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return operations.get();
+    }
+
+    /**
+     * Sessions on virtual threads that each run one transaction reading and writing random items, all started at
+     * once, so that the ones that conflict park until they get their locks
+     */
+    long parkedSessions() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long totalBefore = totalAllocatedBytes(threadBean);
+        long mainBefore = allocatedBytes(threadBean);
+
+        TransactionSession[] sessions = new TransactionSession[waiters];
+        Thread[] threads = new Thread[waiters];
+        for (int i = 0; i < waiters; i++) {
+            ArrayList<Command> commands = new ArrayList<Command>();
+            for (int k = 0; k < OPERATIONS_PER_TRANSACTION; k++) {
+                commands.add(new Command(random.nextBoolean() ? "R" : "W", i + 1, pickItem(), random.nextInt(1000)));
+            }
+            sessions[i] = new TransactionSession(transactionManager, i + 1, Transaction.REGULAR, commands);
+        }
+        for (int i = 0; i < waiters; i++) {
+            threads[i] = sessions[i].start();
+        }
+        for (int i = 0; i < waiters; i++) {
+            threads[i].join();
+            if (sessions[i].failure != null) {
+                throw sessions[i].failure;
+            }
+        }
+
+        //the virtual threads run on carrier threads, so their allocation is only seen in the total of all threads
+        sessionsAllocated.set(totalAllocatedBytes(threadBean) - totalBefore - (allocatedBytes(threadBean) - mainBefore));
+        return (long) waiters * (OPERATIONS_PER_TRANSACTION + 2);
+    }
+
+    /**
+     * Clients on their own threads, each connected to a command server on the loopback interface, each running
+     * transactions that read and write random items and commit. All the lines of a transaction are sent at once, and
+     * the client waits for their replies before it sends the next transaction
+     */
+    long pipelinedClients() throws Exception {
+        final int transactions = CONCURRENT_SESSION_TRANSACTIONS / threads;
+        final CommandServer server = new CommandServer(Driver.driver, "0");
+        final SocketAddress address = server.getAddress();
+        final Exception[] failure = new Exception[threads + 1];
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long totalBefore = totalAllocatedBytes(threadBean);
+        long mainBefore = allocatedBytes(threadBean);
+
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (Exception e) {
+                    failure[threads] = e;
+                }
+            }
+        });
+        Thread[] clients = new Thread[threads];
+        for (int client = 0; client < threads; client++) {
+            final int index = client;
+            final int firstID = client * transactions + 1;
+            final Random clientRandom = new Random(client);
+            clients[client] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (SocketChannel channel = SocketChannel.open(address)) {
+                        ByteBuffer replies = ByteBuffer.allocate(64 * 1024);
+                        StringBuilder lines = new StringBuilder();
+                        int[] state = new int[2];
+                        for (int transactionID = firstID; transactionID < firstID + transactions; transactionID++) {
+                            lines.setLength(0);
+                            lines.append("begin(T").append(transactionID).append(")\n");
+                            for (int i = 0; i < OPERATIONS_PER_TRANSACTION; i++) {
+                                int item = pickItem(clientRandom);
+                                if (clientRandom.nextBoolean()) {
+                                    lines.append("R(T").append(transactionID).append(",x").append(item).append(")\n");
+                                } else {
+                                    lines.append("W(T").append(transactionID).append(",x").append(item).append(",")
+                                            .append(clientRandom.nextInt(1000)).append(")\n");
+                                }
+                            }
+                            lines.append("end(T").append(transactionID).append(")\n");
+
+                            ByteBuffer request = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.US_ASCII));
+                            while (request.hasRemaining()) {
+                                channel.write(request);
+                            }
+                            //wait for the reply of every line
+                            int received = 0;
+                            while (received < OPERATIONS_PER_TRANSACTION + 2) {
+                                replies.clear();
+                                if (channel.read(replies) < 0) {
+                                    throw new Exception("The server closed the connection");
+                                }
+                                received += countReplies(replies.array(), replies.position(), state);
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure[index] = e;
+                    }
+                }
+            });
+        }
+
+        serverThread.start();
+        for (Thread client : clients) {
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        server.close();
+        serverThread.join();
+        for (Exception e : failure) {
+            if (e != null) {
+                throw e;
+            }
+        }
+
+        sessionsAllocated.set(totalAllocatedBytes(threadBean) - totalBefore - (allocatedBytes(threadBean) - mainBefore));
+        return (long) threads * transactions * (OPERATIONS_PER_TRANSACTION + 2);
+    }
+
+    /**
+     * Count the ends of replies, which are lines holding only a dot, in the bytes a client received
+     *
+     * @param bytes - the bytes received
+     * @param length - the number of bytes received
+     * @param state - whether the last byte received ended a line, and whether a line started with a dot, which carry
+     *              over from one read to the next
+     * @return - the number of replies that ended in these bytes
+     */
+    static int countReplies(byte[] bytes, int length, int[] state) {
+        int replies = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[i];
+            if (b == '\n') {
+                if (state[1] == 1) {
+                    replies++;
+                }
+                state[0] = 1;
+                state[1] = 0;
+            } else {
+                state[1] = state[0] == 1 && b == '.' ? 1 : 0;
+                state[0] = 0;
+            }
+        }
+        return replies;
+    }
+
+    //pick a hot item with a probability equal to the contention, and any item otherwise
+    int pickItem() {
+        return pickItem(random);
+    }
+
+    int pickItem(Random random) {
+        int hotItems = Math.max(1, items / 100);
+        if (random.nextDouble() < contention) {
+            return 1 + random.nextInt(hotItems);
+        }
+        return 1 + random.nextInt(items);
+    }
+
+    static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    static long totalAllocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getTotalThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    static long collectionTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    //the parameters that each benchmark depends on
+    static boolean uses(String name, String parameter) {
+        if (name.equals("readWriteEnd") || name.equals("offHeapReadWriteEnd") || name.equals("waitDieReadWriteEnd")
+                || name.equals("woundWaitReadWriteEnd") || name.equals("asyncReadWriteEnd") || name.equals("quietReadWriteEnd")) {
+            return !parameter.equals("waiters") && !parameter.equals("threads");
+        } else if (name.equals("concurrentReadWriteEnd") || name.equals("pipelinedClients") || name.equals("loggedReadWriteEnd")
+                || name.equals("catchUpReadWriteEnd") || name.equals("itemByItemReadWriteEnd") || name.equals("batchReadWriteEnd")
+                || name.equals("batchScanWriteEnd") || name.equals("rangeScanWriteEnd")) {
+            return !parameter.equals("waiters");
+        } else if (name.equals("deadlockDetection")) {
+            return parameter.equals("waiters");
+        } else if (name.equals("parkedSessions")) {
+            return !parameter.equals("threads");
+        } else if (name.equals("abortWaiting") || name.equals("timedAbortWaiting") || name.equals("timeOutWaiting")) {
+            return parameter.equals("waiters") || parameter.equals("sites") || parameter.equals("replication");
+        } else {
+            return !parameter.equals("waiters") && !parameter.equals("contention") && !parameter.equals("threads");
+        }
+    }
+
+    static int[] sweep(String name, String parameter, int[] values) {
+        return uses(name, parameter) ? values : Arrays.copyOf(values, 1);
+    }
+
+    static double[] sweep(String name, String parameter, double[] values) {
+        return uses(name, parameter) ? values : Arrays.copyOf(values, 1);
+    }
+
+    static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    static int[] ints(String arg) {
+        String[] values = value(arg).split(",");
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i]);
+        }
+        return result;
+    }
+}
@@ -6,6 +6,33 @@ public class Command implements Comparable<Command>{
     int transactionID;
     int dataItem;
     int dataValue;
+    //the first and the last item of a scan, whose data item is the item it waits on
+    int first;
+    int last;
+
+    //the site on whose lock queue the command is waiting, or null if it isn't waiting
+    DataManager waitingAt;
+
+    //what happened to a command whose session parked while it waits, set before the session is unparked
+    public static final int PARKED = 0;
+    public static final int GRANTED = 1;
+    public static final int RETRY = 2;
+    public static final int ABORTED = 3;
+
+    //the thread of the session that parked on the command, or null if the command is replayed instead
+    Thread parked;
+    volatile int outcome = PARKED;
+
+    //the time, in nanoseconds, at which the command was queued on its lock
+    long waitStart;
+
+    //the tick at which the wait of the command for its lock times out, kept when it waits again after it was woken up
+    long waitDeadline = TimerWheel.NEVER;
+    //the tick at which the command is expired by the timer wheel, and its neighbours in the list of its bucket
+    long deadline = TimerWheel.NEVER;
+    boolean scheduled = false;
+    Command previousTimeout;
+    Command nextTimeout;
 
     public Command(String command, int transactionID, int dataItem, int dataValue) {
         this.command = command;
@@ -0,0 +1,432 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The command parser reads the commands from a channel in one pass over the bytes of each line, without regular
+ * expressions and without creating a String for every line.
+ * The file is read in large blocks into one buffer, and each line is parsed in place. After next() returns true, the
+ * fields of the parser hold the command that was read. A String of the line is only created to report a syntax error.
+ *
+ * As in the original grammar, spaces anywhere in a line are ignored, empty lines are skipped, and lines starting
+ * with // are comments. Reads and writes can name more than one item, as in R(T1, x1, x2, x3) and
+ * W(T1, x1, 10, x2, 20), to read or write a set of items in one command. RS(T1, x1, x100) scans the items from x1 to
+ * x100.
+ */
+public class CommandParser implements Closeable {
+
+    //the types of commands
+    public static final int BEGIN = 0;
+    public static final int BEGIN_READ_ONLY = 1;
+    public static final int READ = 2;
+    public static final int WRITE = 3;
+    public static final int END = 4;
+    public static final int DUMP_ALL = 5;
+    public static final int DUMP_ITEM = 6;
+    public static final int DUMP_SITE = 7;
+    public static final int FAIL = 8;
+    public static final int RECOVER = 9;
+    public static final int READ_BATCH = 10;
+    public static final int WRITE_BATCH = 11;
+    public static final int SCAN = 12;
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    ReadableByteChannel channel;
+    byte[] buffer;
+    ByteBuffer window;
+    //the bytes between position and limit are read but not parsed yet, and the bytes up to scanned have no new line
+    int position = 0;
+    int limit = 0;
+    int scanned = 0;
+    boolean endOfInput = false;
+
+    //the line being parsed
+    byte[] line;
+    int lineStart;
+    int lineEnd;
+    int cursor;
+    int lineNumber = 0;
+
+    //the command that was read
+    int type;
+    int transactionID;
+    int dataIndex;
+    int dataValue;
+    int siteID;
+    //the last item of a scan, whose first item is dataIndex
+    int lastIndex;
+    //the items and values of a read or a write, of which there are more than one in a batch
+    int[] dataIndexes = new int[4];
+    int[] dataValues = new int[4];
+    int count;
+
+    //a parser for lines that are read elsewhere, which are passed to parse()
+    public CommandParser() {
+    }
+
+    public CommandParser(String filePath) throws IOException {
+        this(FileChannel.open(Paths.get(filePath), StandardOpenOption.READ));
+    }
+
+    public CommandParser(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.window = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Read the next command from the channel
+     *
+     * @return - true if a command was read, false at the end of the input
+     * @throws Exception - a syntax error, with the number of the line
+     */
+    public boolean next() throws Exception {
+        while (readLine()) {
+            //as in the original driver, the line numbers of syntax errors only count the lines that are not blank
+            if (isBlank(buffer, lineStart, lineEnd)) {
+                continue;
+            }
+            lineNumber++;
+            if (parse(buffer, lineStart, lineEnd, lineNumber)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse one line of bytes that doesn't contain the new line character
+     *
+     * @param bytes - the bytes holding the line
+     * @param start - the index of the first byte of the line
+     * @param end - the index after the last byte of the line
+     * @param number - the number of the line, used in syntax errors
+     * @return - true if the line holds a command, false if it is empty or a comment
+     * @throws Exception - a syntax error, with the number of the line
+     */
+    public boolean parse(byte[] bytes, int start, int end, int number) throws Exception {
+        line = bytes;
+        lineStart = start;
+        lineEnd = end;
+        lineNumber = number;
+        cursor = start;
+
+        //empty lines and comments are ignored
+        if (peek() == -1 || accept("//")) {
+            return false;
+        }
+
+        //begin commands
+        if (accept("begin")) {
+            if (accept("RO(T")) {
+                type = BEGIN_READ_ONLY;
+            } else if (accept("(T")) {
+                type = BEGIN;
+            } else {
+                throw syntaxError(" Expected beginRO(Ti) or begin(Ti)", "");
+            }
+            transactionID = number();
+            if (transactionID < 0 || !acceptLast(")")) {
+                throw syntaxError(" Expected beginRO(Ti) or begin(Ti)", "");
+            }
+        }
+        //read commands expect two arguments, the transaction, and the data item to read
+        //or more data items to read them together
+        else if (accept("R(")) {
+            if (!accept("T") || (transactionID = number()) < 0 || !accept(",") || !items(false)) {
+                throw syntaxError(" Expected R(Ti, xj).", "\n");
+            }
+            type = count == 1 ? READ : READ_BATCH;
+            dataIndex = dataIndexes[0];
+        }
+        //scan commands expect the transaction, and the first and the last item of the scan
+        else if (accept("RS(")) {
+            type = SCAN;
+            if (!accept("T") || (transactionID = number()) < 0 || !accept(",") || !accept("x") || (dataIndex = number()) < 0
+                    || !accept(",") || !accept("x") || (lastIndex = number()) < 0 || !acceptLast(")")) {
+                throw syntaxError(" Expected RS(Ti, xj, xk).", "\n");
+            }
+        }
+        //write commands expect 3 arguments, the transaction, the data item, and the data value to write to the data item,
+        //or more data items each followed by its value to write them together
+        else if (accept("W(")) {
+            if (!accept("T") || (transactionID = number()) < 0 || !accept(",") || !items(true)) {
+                throw syntaxError(" Expected W(Ti, xj, v).", "\n");
+            }
+            type = count == 1 ? WRITE : WRITE_BATCH;
+            dataIndex = dataIndexes[0];
+            dataValue = dataValues[0];
+        }
+        //end commands
+        else if (accept("end(")) {
+            type = END;
+            if (!accept("T") || (transactionID = number()) < 0 || !acceptLast(")")) {
+                throw syntaxError(" Expected end(Ti)", "");
+            }
+        }
+        //dump() dumps all sites, dump(xi) dumps one data item, and dump(i) dumps one site
+        else if (accept("dump(")) {
+            if (acceptLast(")")) {
+                type = DUMP_ALL;
+            } else if (accept("x")) {
+                type = DUMP_ITEM;
+                if ((dataIndex = number()) < 0 || !acceptLast(")")) {
+                    throw syntaxError("", "");
+                }
+            } else {
+                type = DUMP_SITE;
+                if ((siteID = number()) < 0 || !acceptLast(")")) {
+                    throw syntaxError("", "");
+                }
+            }
+        }
+        //fail commands
+        else if (accept("fail(")) {
+            type = FAIL;
+            if ((siteID = number()) < 0 || !acceptLast(")")) {
+                throw syntaxError("", "");
+            }
+        }
+        //recover commands
+        else if (accept("recover(")) {
+            type = RECOVER;
+            if ((siteID = number()) < 0 || !acceptLast(")")) {
+                throw syntaxError("", "");
+            }
+        }
+        //unexpected input
+        else {
+            throw syntaxError("", "");
+        }
+
+        return true;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getTransactionID() {
+        return transactionID;
+    }
+
+    public int getDataIndex() {
+        return dataIndex;
+    }
+
+    public int getDataValue() {
+        return dataValue;
+    }
+
+    //the items of a read or a write, in the order of the command
+    public int[] getDataIndexes() {
+        return Arrays.copyOf(dataIndexes, count);
+    }
+
+    //the values of a write, one for each item
+    public int[] getDataValues() {
+        return Arrays.copyOf(dataValues, count);
+    }
+
+    public int getLastIndex() {
+        return lastIndex;
+    }
+
+    public int getSiteID() {
+        return siteID;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    //whether a line only holds spaces and control characters, which the line numbers of syntax errors don't count
+    public static boolean isBlank(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if ((bytes[i] & 0xff) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //the text of the current line, which is only created for error messages
+    public String line() {
+        int end = lineEnd;
+        if (end > lineStart && line[end - 1] == '\r') {
+            end--;
+        }
+        return new String(line, lineStart, end - lineStart, StandardCharsets.US_ASCII);
+    }
+
+    //a copy of the bytes of the current line, to be parsed again by a session on another thread
+    public byte[] copyLine() {
+        return Arrays.copyOfRange(line, lineStart, lineEnd);
+    }
+
+    //create a syntax error for the current line, in the same format as the messages of the driver
+    public Exception syntaxError(String message, String suffix) {
+        return new Exception("Syntax error at line " + lineNumber + "." + message + "\n\t" + line() + suffix);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Find the next line in the buffer, reading the next block of the channel when the line is not complete
+     *
+     * @return - true if a line was found, false at the end of the input
+     * @throws IOException
+     */
+    private boolean readLine() throws IOException {
+        while (true) {
+            for (int i = scanned; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    lineStart = position;
+                    lineEnd = i;
+                    position = i + 1;
+                    scanned = position;
+                    return true;
+                }
+            }
+            scanned = limit;
+
+            //the last line of the file doesn't have to end with a new line
+            if (endOfInput) {
+                if (position < limit) {
+                    lineStart = position;
+                    lineEnd = limit;
+                    position = limit;
+                    return true;
+                }
+                return false;
+            }
+            fill();
+        }
+    }
+
+    //move the part of the buffer that is not parsed yet to its start, and read the next block of the channel after it
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            scanned -= position;
+            position = 0;
+        }
+        //a line longer than the buffer makes the buffer grow
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            window = ByteBuffer.wrap(buffer);
+        }
+        window.limit(buffer.length);
+        window.position(limit);
+        int read = channel.read(window);
+        if (read < 0) {
+            endOfInput = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    //spaces, tabs and carriage returns are ignored anywhere in a line
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    //returns the next byte of the line that isn't a space, or -1 at the end of the line
+    private int peek() {
+        while (cursor < lineEnd && isSpace(line[cursor])) {
+            cursor++;
+        }
+        return cursor < lineEnd ? line[cursor] : -1;
+    }
+
+    //move past the token if the line continues with it, and leave the cursor where it was otherwise
+    private boolean accept(String token) {
+        int saved = cursor;
+        for (int i = 0; i < token.length(); i++) {
+            if (peek() != token.charAt(i)) {
+                cursor = saved;
+                return false;
+            }
+            cursor++;
+        }
+        return true;
+    }
+
+    //accept the token only if it is the last thing on the line
+    private boolean acceptLast(String token) {
+        int saved = cursor;
+        if (accept(token) && peek() == -1) {
+            return true;
+        }
+        cursor = saved;
+        return false;
+    }
+
+    /**
+     * Read the items of a read or a write up to the closing parenthesis at the end of the line: xj, or xj, v when
+     * values are expected, separated by commas
+     *
+     * @param values - whether each item is followed by a value
+     * @return - false if the line doesn't continue with a list of items
+     */
+    private boolean items(boolean values) {
+        count = 0;
+        do {
+            int item;
+            if (!accept("x") || (item = number()) < 0) {
+                return false;
+            }
+            int value = 0;
+            if (values) {
+                if (!accept(",")) {
+                    return false;
+                }
+                boolean negative = accept("-");
+                value = number();
+                if (value < 0) {
+                    return false;
+                }
+                value = negative ? -value : value;
+            }
+            if (count == dataIndexes.length) {
+                dataIndexes = Arrays.copyOf(dataIndexes, count * 2);
+                dataValues = Arrays.copyOf(dataValues, count * 2);
+            }
+            dataIndexes[count] = item;
+            dataValues[count] = value;
+            count++;
+            if (acceptLast(")")) {
+                return true;
+            }
+        } while (accept(","));
+        return false;
+    }
+
+    //read a non negative decimal number, or return -1 if the line doesn't continue with a digit
+    private int number() {
+        int c = peek();
+        if (c < '0' || c > '9') {
+            return -1;
+        }
+        long value = 0;
+        while ((c = peek()) >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+            cursor++;
+        }
+        return (int) value;
+    }
+}
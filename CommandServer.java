@@ -0,0 +1,582 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server that accepts the commands of the input files from many clients at the same time, over TCP on the loopback
+ * interface or over a Unix domain socket.
+ *
+ * Each client sends commands one per line, in the same grammar as the input files, and may send many lines without
+ * waiting for the replies. All connections are served by one thread with a selector, so the commands of all clients
+ * run one at a time on the transaction manager of the driver, in the order in which their lines arrive. The reply to
+ * each command is the text that the system prints while running it, followed by a line holding only a dot. Empty
+ * lines and comments get no reply. A syntax error is sent back as the reply of its line, and the connection stays open.
+ * The text of a transaction goes to the client that began it. When a command wakes up the waiting commands of
+ * transactions of other clients, for instance the waiting writes that run when a transaction ends, their text is sent
+ * to their clients once the command is done, outside the reply to any of their commands. The text that belongs to no
+ * transaction, such as the dumps and the site failures, goes into the reply of the command that printed it.
+ * When a client goes away, the transactions it began and didn't end are aborted, so that the commands of the other
+ * clients waiting for their locks go on.
+ *
+ * With the parking transaction manager, the commands of each client run in a session of their own on a virtual thread
+ * instead, and the selector thread only reads the lines and sends the replies. A command that has to wait parks the
+ * session of its client, whose next lines wait for it, while the commands of the other clients go on. The reply to a
+ * command that waits is sent once it is done.
+ *
+ * Usage: java Driver -server <port or socket path> [sites] [items] [replicas]
+ */
+public class CommandServer implements Closeable {
+
+    //the end of the reply to each command
+    static final String END_OF_REPLY = ".\n";
+    static final byte[] NEW_LINE = {'\n'};
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+    //a connection stops reading commands while this many bytes of replies are waiting to be sent to it
+    static final int MAX_PENDING_REPLIES = 1 << 20;
+    //a connection stops reading commands while this many of its lines wait for its session
+    static final int MAX_QUEUED_LINES = 1024;
+
+    Driver driver;
+    SocketAddress address;
+    ServerSocketChannel server;
+    Selector selector;
+    volatile boolean running = true;
+
+    //parses the lines of every connection in place
+    CommandParser parser = new CommandParser();
+    //sends the output of the system to the connections while the server runs, and keeps the client of each transaction
+    ConnectionSink sink;
+    //the buffer that the bytes of every connection are read into
+    ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    //whether the commands of each client run in a session of their own, and the number of clients so far
+    boolean sessions;
+    int clients = 0;
+
+    /**
+     * Open the server socket. The server accepts clients once run() is called
+     *
+     * @param driver - the driver whose sites and transaction manager run the commands
+     * @param address - a port on the loopback interface, or the path of a Unix domain socket
+     * @throws IOException
+     */
+    public CommandServer(Driver driver, String address) throws IOException {
+        this.driver = driver;
+        if (address.chars().allMatch(Character::isDigit)) {
+            this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+            server = ServerSocketChannel.open(StandardProtocolFamily.INET);
+        } else {
+            this.address = UnixDomainSocketAddress.of(address);
+            //the socket file of a server that was killed is left behind, and would keep the new one from binding
+            Files.deleteIfExists(((UnixDomainSocketAddress) this.address).getPath());
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        }
+        server.bind(this.address);
+        server.configureBlocking(false);
+        selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        sessions = driver.transactionManager instanceof ParkingTransactionManager;
+    }
+
+    //the address the server listens on, with the port that was picked if the port was 0
+    public SocketAddress getAddress() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    /**
+     * Serve the clients until the server is closed. The output of the system goes to the clients in the meantime
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        EventSink console = driver.events;
+        sink = new ConnectionSink(console.isQuiet());
+        driver.events = sink;
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isWritable()) {
+                                write(connection);
+                                //go on with the commands that were held back while the replies were not sent
+                                if (connection.channel.isOpen() && connection.pendingBytes < MAX_PENDING_REPLIES) {
+                                    serve(connection);
+                                }
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(connection);
+                            }
+                        }
+                    } catch (IOException e) {
+                        //the client went away
+                        if (key.attachment() != null) {
+                            disconnect((Connection) key.attachment());
+                        } else {
+                            key.cancel();
+                            key.channel().close();
+                        }
+                    }
+                }
+                //send the replies of the sessions, and the text they printed for other clients
+                deliver();
+            }
+        } finally {
+            driver.events = console;
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+                if (key.attachment() != null && ((Connection) key.attachment()).session != null) {
+                    ((Connection) key.attachment()).session.close();
+                }
+            }
+            selector.close();
+            if (address instanceof UnixDomainSocketAddress) {
+                Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            }
+        }
+    }
+
+    //stop serving, from any thread
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            if (sessions) {
+                connection.session = new ConnectionSession(connection, "client-" + (++clients));
+                connection.session.start();
+            }
+        }
+    }
+
+    /**
+     * Read what the client sent, and run the commands of the complete lines
+     *
+     * @param connection - the connection that can be read
+     * @throws IOException
+     */
+    private void read(Connection connection) throws IOException {
+        readBuffer.clear();
+        int read = connection.channel.read(readBuffer);
+        if (read < 0) {
+            //the client sent all its commands, and the connection closes once the replies are sent. As in the input
+            //files, the last line doesn't have to end with a new line
+            connection.endOfInput = true;
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            if (connection.position < connection.limit) {
+                connection.append(ByteBuffer.wrap(NEW_LINE));
+            }
+        } else {
+            readBuffer.flip();
+            connection.append(readBuffer);
+        }
+        serve(connection);
+    }
+
+    //run the complete lines of a connection, or hand them to its session
+    private void serve(Connection connection) throws IOException {
+        if (connection.session != null) {
+            submit(connection);
+        } else {
+            run(connection);
+        }
+    }
+
+    /**
+     * Run the commands of the complete lines that a connection has received, and send back their replies. Commands are
+     * left in the input of the connection while too many of its replies are waiting to be sent
+     *
+     * @param connection - the connection whose commands run
+     * @throws IOException
+     */
+    private void run(Connection connection) throws IOException {
+        sink.current.set(connection);
+        for (int i = connection.position; i < connection.limit && connection.pendingBytes + connection.output.length() < MAX_PENDING_REPLIES; i++) {
+            if (connection.input[i] != '\n') {
+                continue;
+            }
+            int start = connection.position;
+            connection.position = i + 1;
+            if (!CommandParser.isBlank(connection.input, start, i)) {
+                connection.lineNumber++;
+            }
+            try {
+                if (!parser.parse(connection.input, start, i, connection.lineNumber)) {
+                    continue;
+                }
+                driver.execute(parser);
+            } catch (Exception e) {
+                connection.output.append(e.getMessage()).append(Event.NEWLINE);
+            }
+            connection.output.append(END_OF_REPLY);
+        }
+
+        connection.flush();
+        write(connection);
+        sink.current.set(null);
+        deliver();
+        //stop reading while the replies are not sent
+        if (connection.channel.isOpen() && !connection.endOfInput) {
+            int ops = connection.key.interestOps();
+            boolean blocked = connection.pendingBytes >= MAX_PENDING_REPLIES;
+            connection.key.interestOps(blocked ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Hand the complete lines that a connection has received to its session. Lines are left in the input of the
+     * connection while too many of its lines wait for the session, or too many of its replies wait to be sent
+     *
+     * @param connection - the connection whose lines are handed over
+     */
+    private void submit(Connection connection) {
+        for (int i = connection.position; i < connection.limit && connection.session.pending.get() < MAX_QUEUED_LINES
+                && connection.pendingBytes < MAX_PENDING_REPLIES; i++) {
+            if (connection.input[i] != '\n') {
+                continue;
+            }
+            int start = connection.position;
+            connection.position = i + 1;
+            if (!CommandParser.isBlank(connection.input, start, i)) {
+                connection.lineNumber++;
+                connection.session.submit(Arrays.copyOfRange(connection.input, start, i), connection.lineNumber);
+            }
+        }
+        //stop reading while lines are held back
+        if (connection.channel.isOpen() && !connection.endOfInput) {
+            int ops = connection.key.interestOps();
+            connection.key.interestOps(connection.hasLine() ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+        }
+    }
+
+    //send the text of the woken up commands to the connections of their transactions, and hand the sessions of those
+    //connections the lines that were held back
+    private void deliver() {
+        Connection woken;
+        while ((woken = sink.woken.poll()) != null) {
+            //the client may have gone away since its text was printed
+            if (!woken.channel.isOpen()) {
+                continue;
+            }
+            woken.flush();
+            try {
+                write(woken);
+                if (woken.session != null && woken.channel.isOpen()) {
+                    submit(woken);
+                }
+            } catch (IOException e) {
+                //the client went away
+                disconnect(woken);
+            }
+        }
+    }
+
+    /**
+     * Close the connection of a client that went away, and abort the transactions it began and didn't end. Their
+     * locks are released, and the text of the commands of other clients that go on is sent to those clients
+     *
+     * @param connection - the connection of the client
+     */
+    private void disconnect(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+        }
+        Connection current = sink.current.get();
+        sink.current.set(null);
+        if (connection.session != null) {
+            connection.session.close();
+        }
+        abandon(connection);
+        sink.current.set(current);
+        deliver();
+    }
+
+    //abort the transactions that the client of a connection began and didn't end
+    private void abandon(Connection connection) {
+        for (int transactionID : sink.remove(connection)) {
+            try {
+                driver.transactionManager.abandon(transactionID);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Send as much of the waiting replies as the socket takes. Once all the replies to a client that sent all its
+     * commands are sent, its connection closes
+     *
+     * @param connection - the connection that can be written
+     * @throws IOException
+     */
+    private void write(Connection connection) throws IOException {
+        while (!connection.pending.isEmpty()) {
+            ByteBuffer reply = connection.pending.peek();
+            connection.pendingBytes -= connection.channel.write(reply);
+            if (reply.hasRemaining()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.pending.poll();
+        }
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+
+        if (connection.endOfInput && !connection.hasLine() && connection.isIdle()) {
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * The state of one client: the bytes received and not run yet, and the replies not sent yet
+     */
+    static class Connection {
+
+        SocketChannel channel;
+        SelectionKey key;
+        boolean endOfInput = false;
+        //the session that runs the commands of the client, or null if they run on the selector thread
+        CommandSession session;
+
+        //the bytes between position and limit are received but not run yet
+        byte[] input = new byte[READ_BUFFER_SIZE];
+        int position = 0;
+        int limit = 0;
+        int lineNumber = 0;
+
+        //the text printed for the client and not queued yet, which the sessions print to while holding the connection
+        StringBuilder output = new StringBuilder();
+        ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+        int pendingBytes = 0;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        //add received bytes after the ones that are not run yet
+        void append(ByteBuffer bytes) {
+            int length = bytes.remaining();
+            if (limit + length > input.length) {
+                System.arraycopy(input, position, input, 0, limit - position);
+                limit -= position;
+                position = 0;
+                //a line longer than the buffer makes it grow
+                if (limit + length > input.length) {
+                    input = Arrays.copyOf(input, Math.max(input.length * 2, limit + length));
+                }
+            }
+            bytes.get(input, limit, length);
+            limit += length;
+        }
+
+        //whether a complete line is received and not run yet
+        boolean hasLine() {
+            for (int i = position; i < limit; i++) {
+                if (input[i] == '\n') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void send(byte[] reply) {
+            pending.add(ByteBuffer.wrap(reply));
+            pendingBytes += reply.length;
+        }
+
+        //queue the text printed for the client
+        synchronized void flush() {
+            if (output.length() > 0) {
+                send(output.toString().getBytes(StandardCharsets.US_ASCII));
+                output.setLength(0);
+            }
+        }
+
+        //whether all the commands received are done and their text is queued
+        synchronized boolean isIdle() {
+            return (session == null || session.isIdle()) && output.length() == 0;
+        }
+    }
+
+    /**
+     * The session of a client with the parking transaction manager. The replies of its commands are added to the text
+     * of the connection, which the selector thread sends
+     */
+    class ConnectionSession extends CommandSession {
+
+        Connection connection;
+
+        ConnectionSession(Connection connection, String name) {
+            super(CommandServer.this.driver, name, new AtomicInteger());
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            sink.current.set(connection);
+            super.run();
+        }
+
+        @Override
+        void done(boolean command, Exception error) {
+            if (command) {
+                synchronized (connection) {
+                    if (error != null) {
+                        connection.output.append(error.getMessage()).append(Event.NEWLINE);
+                    }
+                    connection.output.append(END_OF_REPLY);
+                }
+            }
+        }
+
+        //have the selector thread send the reply
+        @Override
+        void ran() {
+            sink.woken.add(connection);
+            selector.wakeup();
+        }
+
+        //a command that began a transaction may have run while the client went away
+        @Override
+        void stopped() {
+            abandon(connection);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Routes the output of the system to the connections: the events of a transaction go to the connection that began
+     * it, and the other events to the connection whose command is running on the thread that emits them. With the
+     * quiet output, the events are dropped, and only the connection that began each transaction is kept
+     */
+    static class ConnectionSink extends EventSink {
+
+        boolean quiet;
+
+        //the connection whose command is running on each thread. The events of threads that run no command, such as
+        //the background catch-up of the concurrent transaction managers, belong to no client and are dropped
+        ThreadLocal<Connection> current = new ThreadLocal<Connection>();
+        //the connection that began each transaction. Committed transactions are removed at once, and aborted ones
+        //once they are no longer running, as an aborted transaction can still print more aborts
+        ConcurrentHashMap<Integer, Connection> clients = new ConcurrentHashMap<Integer, Connection>();
+        //the connections whose text the selector thread has to send: those other than the current one that were
+        //printed to while its command ran, and those of the sessions whose command is done
+        ConcurrentLinkedQueue<Connection> woken = new ConcurrentLinkedQueue<Connection>();
+
+        private final ThreadLocal<Event> event = new ThreadLocal<Event>() {
+            @Override
+            protected Event initialValue() {
+                return new Event();
+            }
+        };
+
+        ConnectionSink(boolean quiet) {
+            this.quiet = quiet;
+        }
+
+        @Override
+        public boolean isQuiet() {
+            return quiet;
+        }
+
+        @Override
+        void emit(int type, int transactionID, int dataItem, int siteId, int value, String text) {
+            Connection current = this.current.get();
+            Connection connection = current;
+            if (type == Event.BEGIN || type == Event.BEGIN_READ_ONLY) {
+                if (clients.size() > 2 * Driver.driver.transactionManager.transactions.size() + 64) {
+                    removeEnded();
+                }
+                if (current != null) {
+                    clients.put(transactionID, current);
+                }
+            } else if (type != Event.TEXT && type < Event.SITE_FAILED) {
+                Connection client = clients.get(transactionID);
+                if (client != null && client.channel.isOpen()) {
+                    connection = client;
+                }
+                if (type == Event.COMMIT || type == Event.END_READ_ONLY) {
+                    clients.remove(transactionID);
+                }
+            }
+            if (connection == null || quiet) {
+                return;
+            }
+
+            synchronized (connection) {
+                if (type == Event.TEXT) {
+                    connection.output.append(text);
+                } else {
+                    Event e = event.get();
+                    e.set(type, transactionID, dataItem, siteId, value, null);
+                    e.format(connection.output);
+                }
+            }
+            if (connection != current && !woken.contains(connection)) {
+                woken.add(connection);
+            }
+        }
+
+        //forget the transactions that a connection began, and return those that are still running
+        ArrayList<Integer> remove(Connection connection) {
+            ArrayList<Integer> running = new ArrayList<Integer>();
+            Iterator<Map.Entry<Integer, Connection>> iterator = clients.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, Connection> client = iterator.next();
+                if (client.getValue() == connection) {
+                    iterator.remove();
+                    if (Driver.driver.transactionManager.transactions.contains(client.getKey())) {
+                        running.add(client.getKey());
+                    }
+                }
+            }
+            return running;
+        }
+
+        //forget the clients of the transactions that are no longer running
+        private void removeEnded() {
+            Iterator<Integer> iterator = clients.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (!Driver.driver.transactionManager.transactions.contains(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A session that runs lines of commands on its own virtual thread, one after the other: the lines of one client of the
+ * command server, or those of one transaction of an input file. With the parking transaction manager, a command that
+ * has to wait parks the thread of its session, and the lines after it wait in the queue of the session, while the
+ * other sessions go on.
+ *
+ * The lines are queued by the thread that reads them, and parsed and run through the driver by the session.
+ */
+public class CommandSession implements Runnable {
+
+    Driver driver;
+    String name;
+    //the lines waiting to be run. A line without bytes stops the session
+    LinkedBlockingQueue<Line> lines = new LinkedBlockingQueue<Line>();
+    //the number of lines queued and not done yet
+    AtomicInteger pending = new AtomicInteger();
+    //the number of sessions that have lines that are not done yet, shared by the sessions of an input file
+    AtomicInteger busy;
+    volatile boolean closed = false;
+    //the first exception thrown by a line, if any
+    Exception failure;
+    Thread thread;
+
+    /**
+     * @param driver - the driver whose transaction manager runs the commands
+     * @param name - the name of the thread of the session
+     * @param busy - counts the sessions with lines that are not done yet
+     */
+    public CommandSession(Driver driver, String name, AtomicInteger busy) {
+        this.driver = driver;
+        this.name = name;
+        this.busy = busy;
+    }
+
+    //start the session on a new virtual thread
+    public Thread start() {
+        thread = Thread.ofVirtual().name(name).start(this);
+        return thread;
+    }
+
+    /**
+     * Queue a line to be run after the lines queued before it
+     *
+     * @param bytes - the bytes of the line, without its new line
+     * @param number - the number of the line, for syntax errors
+     */
+    public void submit(byte[] bytes, int number) {
+        if (pending.getAndIncrement() == 0) {
+            busy.incrementAndGet();
+        }
+        lines.add(new Line(bytes, number));
+    }
+
+    //whether all the lines queued so far are done
+    public boolean isIdle() {
+        return pending.get() == 0;
+    }
+
+    //stop the session once the line it runs is done, dropping the lines that are still queued
+    public void close() {
+        closed = true;
+        lines.add(new Line(null, 0));
+    }
+
+    @Override
+    public void run() {
+        CommandParser parser = new CommandParser();
+        try {
+            while (true) {
+                Line line = lines.take();
+                if (line.bytes == null) {
+                    return;
+                }
+                if (!closed) {
+                    boolean command;
+                    Exception error = null;
+                    try {
+                        command = parser.parse(line.bytes, 0, line.bytes.length, line.number);
+                        if (command) {
+                            driver.execute(parser);
+                        }
+                    } catch (Exception e) {
+                        command = true;
+                        error = e;
+                    }
+                    done(command, error);
+                }
+                if (pending.decrementAndGet() == 0) {
+                    busy.decrementAndGet();
+                }
+                ran();
+            }
+        } catch (InterruptedException e) {
+            //stopped
+        } finally {
+            stopped();
+        }
+    }
+
+    /**
+     * Called by the session after each line it ran
+     *
+     * @param command - false if the line held no command, such as a comment
+     * @param error - the exception the command threw, or null
+     */
+    void done(boolean command, Exception error) {
+        if (error != null && failure == null) {
+            failure = error;
+        }
+    }
+
+    //called by the session after each line, once the line is counted as done
+    void ran() {
+    }
+
+    //called by the session once it stops
+    void stopped() {
+    }
+
+    //a line waiting to be run, with its number
+    static class Line {
+
+        byte[] bytes;
+        int number;
+
+        Line(byte[] bytes, int number) {
+            this.bytes = bytes;
+            this.number = number;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A transaction manager that many client sessions can call at the same time, each session from its own thread.
+ *
+ * Commands that only need the state of the items they touch run in parallel: a read or a write of an item that no
+ * other running transaction conflicts with and that can be locked right away, and the commit of a transaction that
+ * nobody waits for. They hold the engine lock in shared mode and the locks of the stripes of their items, so they
+ * only exclude commands on items of the same stripe.
+ * Every other command - one that conflicts, has to wait, wakes up waiting commands, or aborts a transaction - holds the
+ * engine lock exclusively and runs the code of the single threaded transaction manager, as do site failures and
+ * recoveries. The commands woken up by an exclusive command run under the same exclusive lock.
+ *
+ * Stripes are always locked in increasing order, and the engine lock before any stripe, so the locks of the manager
+ * itself cannot deadlock.
+ */
+public class ConcurrentTransactionManager extends TransactionManager {
+
+    public static final int DEFAULT_STRIPES = 1024;
+
+    //held in shared mode by the commands that run on their stripes, and exclusively by the commands that need the
+    //waits-for graph, the waiting commands, or the state of other items
+    ReentrantReadWriteLock engine = new ReentrantReadWriteLock();
+    //the locks of the stripes of data items, which protect the lock headers, the versions, and the access index
+    //entries of their items on every site
+    ReentrantLock[] stripes;
+
+    public ConcurrentTransactionManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes - the number of stripes the data items are divided into
+     */
+    public ConcurrentTransactionManager(int stripes) {
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    //the index of the stripe of a data item
+    int stripe(int dataIndex) {
+        return Math.floorMod(dataIndex, stripes.length);
+    }
+
+    @Override
+    public void begin(int transactionID) {
+        engine.readLock().lock();
+        try {
+            super.begin(transactionID);
+        } finally {
+            engine.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void beginReadOnly(int transactionID) {
+        engine.readLock().lock();
+        try {
+            //the start time and the snapshot are taken together, so that a commit that reads the oldest snapshot in
+            //between doesn't remove a version that the new transaction reads
+            synchronized (snapshots) {
+                super.beginReadOnly(transactionID);
+            }
+        } finally {
+            engine.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int read(int transactionID, int dataIndex) throws Exception {
+        //the commands woken up by an exclusive command run under its lock
+        if (engine.isWriteLockedByCurrentThread()) {
+            return super.read(transactionID, dataIndex);
+        }
+
+        ReentrantLock stripe = stripes[stripe(dataIndex)];
+        engine.readLock().lock();
+        stripe.lock();
+        try {
+            Transaction t = transactions.get(transactionID);
+            if (t == null) {
+                return 0;
+            }
+            if (t.transactionType == Transaction.READ_ONLY) {
+                readVersion(t, dataIndex);
+                return 1;
+            }
+            if (readAlone(t, dataIndex)) {
+                return 1;
+            }
+        } finally {
+            stripe.unlock();
+            engine.readLock().unlock();
+        }
+
+        return readExclusive(transactionID, dataIndex);
+    }
+
+    //run a read alone, through the code of the single threaded transaction manager
+    int readExclusive(int transactionID, int dataIndex) throws Exception {
+        engine.writeLock().lock();
+        try {
+            return super.read(transactionID, dataIndex);
+        } finally {
+            engine.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int write(int transactionID, int dataIndex, int dataValue) throws Exception {
+        if (engine.isWriteLockedByCurrentThread()) {
+            return super.write(transactionID, dataIndex, dataValue);
+        }
+
+        ReentrantLock stripe = stripes[stripe(dataIndex)];
+        engine.readLock().lock();
+        stripe.lock();
+        try {
+            Transaction t = transactions.get(transactionID);
+            if (t == null) {
+                return 0;
+            }
+            if (writeAlone(t, dataIndex, dataValue)) {
+                return 1;
+            }
+        } finally {
+            stripe.unlock();
+            engine.readLock().unlock();
+        }
+
+        return writeExclusive(transactionID, dataIndex, dataValue);
+    }
+
+    //run a write alone, through the code of the single threaded transaction manager
+    int writeExclusive(int transactionID, int dataIndex, int dataValue) throws Exception {
+        engine.writeLock().lock();
+        try {
+            return super.write(transactionID, dataIndex, dataValue);
+        } finally {
+            engine.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read a set of items while holding the stripes of all of them, locked in increasing order. If one of the items
+     * can't be read right away, the items are read one at a time
+     */
+    @Override
+    public int readBatch(int transactionID, int[] dataIndexes) throws Exception {
+        if (engine.isWriteLockedByCurrentThread()) {
+            return super.readBatch(transactionID, dataIndexes);
+        }
+
+        int[] items = canonicalOrder(dataIndexes);
+        int[] batchStripes = stripesOf(items);
+        engine.readLock().lock();
+        lockStripes(batchStripes);
+        try {
+            Transaction t = transactions.get(transactionID);
+            if (t == null) {
+                return 0;
+            }
+            if (t.transactionType == Transaction.READ_ONLY) {
+                for (int dataIndex : items) {
+                    readVersion(t, dataIndex);
+                }
+                return 1;
+            }
+            DataManager[] copies = readableCopies(t, items);
+            if (copies != null) {
+                readFrom(t, items, copies);
+                return 1;
+            }
+        } finally {
+            unlockStripes(batchStripes);
+            engine.readLock().unlock();
+        }
+
+        //each item is read alone if it can be, and exclusively otherwise
+        return readEach(transactionID, items);
+    }
+
+    /**
+     * Write a set of items while holding the stripes of all of them, locked in increasing order. If one of the items
+     * can't be written right away, the items are written one at a time
+     */
+    @Override
+    public int writeBatch(int transactionID, int[] dataIndexes, int[] dataValues) throws Exception {
+        if (engine.isWriteLockedByCurrentThread()) {
+            return super.writeBatch(transactionID, dataIndexes, dataValues);
+        }
+
+        int[] items = canonicalOrder(dataIndexes);
+        int[] values = valuesInOrder(items, dataIndexes, dataValues);
+        int[] batchStripes = stripesOf(items);
+        engine.readLock().lock();
+        lockStripes(batchStripes);
+        try {
+            Transaction t = transactions.get(transactionID);
+            if (t == null) {
+                return 0;
+            }
+            ArrayList<DataManager>[] copies = writableCopies(t, items);
+            if (copies != null) {
+                writeTo(t, items, values, copies);
+                return 1;
+            }
+        } finally {
+            unlockStripes(batchStripes);
+            engine.readLock().unlock();
+        }
+
+        return writeEach(transactionID, items, values);
+    }
+
+    //the distinct stripes of the items, in the order in which they are locked
+    private int[] stripesOf(int[] items) {
+        int[] indexes = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            indexes[i] = stripe(items[i]);
+        }
+        return canonicalOrder(indexes);
+    }
+
+    private void lockStripes(int[] indexes) {
+        for (int index : indexes) {
+            stripes[index].lock();
+        }
+    }
+
+    private void unlockStripes(int[] indexes) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            stripes[indexes[i]].unlock();
+        }
+    }
+
+    //a scan locks ranges that hold items of many stripes, so it always runs alone
+    @Override
+    public int scan(int transactionID, int first, int last) throws Exception {
+        engine.writeLock().lock();
+        try {
+            return super.scan(transactionID, first, last);
+        } finally {
+            engine.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int end(int transactionID) throws Exception {
+        if (engine.isWriteLockedByCurrentThread()) {
+            return super.end(transactionID);
+        }
+
+        engine.readLock().lock();
+        try {
+            Transaction t = transactions.get(transactionID);
+            //a read-only transaction only removes its snapshot
+            if (t == null || t.transactionType == Transaction.READ_ONLY) {
+                return super.end(transactionID);
+            }
+            if (commitAlone(t)) {
+                return 1;
+            }
+        } finally {
+            engine.readLock().unlock();
+        }
+
+        engine.writeLock().lock();
+        try {
+            return super.end(transactionID);
+        } finally {
+            engine.writeLock().unlock();
+        }
+    }
+
+    //the deadlines of the lock waits expire while no other command runs
+    @Override
+    public void tick() throws Exception {
+        if (deadlines == null) {
+            return;
+        }
+        engine.writeLock().lock();
+        try {
+            super.tick();
+        } finally {
+            engine.writeLock().unlock();
+        }
+    }
+
+    //abort the transaction of a client that went away while no other command runs
+    @Override
+    public void abandon(int transactionID) throws Exception {
+        engine.writeLock().lock();
+        try {
+            super.abandon(transactionID);
+        } finally {
+            engine.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void lockExclusive() {
+        engine.writeLock().lock();
+    }
+
+    @Override
+    public void unlockExclusive() {
+        engine.writeLock().unlock();
+    }
+
+    //fail a site while no other command runs
+    @Override
+    public void fail(DataManager dataSite) throws Exception {
+        engine.writeLock().lock();
+        try {
+            dataSite.fail();
+        } finally {
+            engine.writeLock().unlock();
+        }
+    }
+
+    //recover a site while no other command runs
+    @Override
+    public void recover(DataManager dataSite) {
+        engine.writeLock().lock();
+        try {
+            dataSite.recover();
+        } finally {
+            engine.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read the item if no other running transaction wrote it, and a copy can be read without waiting. Called with the
+     * lock of the item's stripe
+     *
+     * @param t - the regular transaction doing the reading
+     * @param dataIndex - the index of the data item being read
+     * @return - true if the item was read, false if nothing was changed and the read has to run exclusively
+     */
+    private boolean readAlone(Transaction t, int dataIndex) {
+        if (!t.waitingCommands.isEmpty()) {
+            return false;
+        }
+        //a read that would wait, or go ahead of waiting commands, needs the waits-for graph
+        DataManager dataSite = readableCopy(t, dataIndex);
+        if (dataSite == null) {
+            return false;
+        }
+
+        addAccess(t, dataIndex, LockTuple.READ);
+        t.setStatus(Transaction.ACTIVE);
+        int value = dataSite.data.value(dataIndex);
+        t.read(dataIndex, value, dataSite);
+        dataSite.lock(dataIndex, t, LockTuple.READ);
+        Driver.driver.events.read(t.transactionID, dataIndex, dataSite.siteId, value);
+        return true;
+    }
+
+    /**
+     * Write the item if no other running transaction accessed it, and every copy on a running site can be locked
+     * without waiting. Called with the lock of the item's stripe
+     *
+     * @param t - the regular transaction doing the writing
+     * @param dataIndex - the data item that is being updated
+     * @param dataValue - the new value of the data item
+     * @return - true if the write was done, false if nothing was changed and the write has to run exclusively
+     */
+    private boolean writeAlone(Transaction t, int dataIndex, int dataValue) {
+        if (t.transactionType == Transaction.READ_ONLY || !t.waitingCommands.isEmpty()) {
+            return false;
+        }
+        //with no copy to write to, the transaction aborts
+        ArrayList<DataManager> sitesToWriteTo = writableCopies(t, dataIndex);
+        if (sitesToWriteTo == null) {
+            return false;
+        }
+
+        if (t.addWriteCommand(dataIndex, dataValue)) {
+            addAccess(t, dataIndex, LockTuple.WRITE);
+        }
+        Driver.driver.events.write(t.transactionID, dataIndex, dataValue);
+        t.setStatus(Transaction.ACTIVE);
+        t.write(dataIndex, dataValue, sitesToWriteTo);
+        for (DataManager dataSite : sitesToWriteTo) {
+            dataSite.lock(dataIndex, t, LockTuple.WRITE);
+        }
+        return true;
+    }
+
+    /**
+     * Commit the transaction if it has no waiting commands, nobody waits for it, and no command waits on the items
+     * it locked, so that the commit doesn't wake anything up. The stripes of all the items it accessed are locked
+     *
+     * @param t - the regular transaction that ends
+     * @return - true if the transaction committed, false if nothing was changed and the end has to run exclusively
+     * @throws Exception - the values could not be written to the redo log of a site
+     */
+    private boolean commitAlone(Transaction t) throws Exception {
+        //releasing the ranges of a scan wakes up the writes waiting on any of their items
+        if (!t.waitingCommands.isEmpty() || !t.heldRanges.isEmpty()) {
+            return false;
+        }
+
+        TreeSet<Integer> indexes = new TreeSet<Integer>();
+        for (Integer dataIndex : t.accessedItems) {
+            indexes.add(stripe(dataIndex));
+        }
+        for (LinkedHashMap<Integer, Boolean> items : t.heldLocks.values()) {
+            for (Integer dataIndex : items.keySet()) {
+                indexes.add(stripe(dataIndex));
+            }
+        }
+
+        ArrayList<ReentrantLock> locked = new ArrayList<ReentrantLock>();
+        try {
+            for (Integer index : indexes) {
+                stripes[index].lock();
+                locked.add(stripes[index]);
+            }
+
+            //the waits-for graph only changes under the exclusive lock
+            if (waitsFor.contains(t)) {
+                return false;
+            }
+            for (Map.Entry<DataManager, LinkedHashMap<Integer, Boolean>> siteEntry : t.heldLocks.entrySet()) {
+                for (Integer dataIndex : siteEntry.getValue().keySet()) {
+                    LockHeader header = siteEntry.getKey().lockTable.get(dataIndex);
+                    if (header != null && !header.waiters.isEmpty()) {
+                        return false;
+                    }
+                }
+            }
+
+            commit(t);
+            transactions.remove(t);
+            return true;
+        } finally {
+            for (int i = locked.size() - 1; i >= 0; i--) {
+                locked.get(i).unlock();
+            }
+        }
+    }
+}
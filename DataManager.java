@@ -1,6 +1,10 @@
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 /**
  * Every data manager is responsible for one data site
@@ -11,36 +15,282 @@ public class DataManager {
     public static final boolean FAILED = false;
     public static final boolean RUNNING = true;
 
-    //The structure containing the data items and their values. The key is the data item index, and the value is the data item value.
-    HashMap<Integer, Data> data = new HashMap<Integer, Data>();
-    HashMap<Integer, Data> failedData = new HashMap<Integer, Data>();
+    //the number of consecutive items covered by the lock of a range, and the key of the lock of the whole site
+    public static final int RANGE_SIZE = 64;
+    public static final int SITE_RANGE = -1;
+    //a scan that reads items of more ranges than this on a site locks the whole site instead
+    public static final int ESCALATION_RANGES = 16;
+
+    //creates the lock header of an item that has none
+    private static final Function<Integer, LockHeader> NEW_HEADER = new Function<Integer, LockHeader>() {
+        @Override
+        public LockHeader apply(Integer item) {
+            return new LockHeader();
+        }
+    };
+
+    //The structure containing the data items on this site, with their committed values and versions, and whether
+    //each copy can be read
+    ItemStore data;
 
     //The lock table structure
     //The key is the data item
-    //The value is an ArrayList of all the transactions and lock types they hold. ArrayList is used to preserve the order
-    HashMap<Integer, ArrayList<LockTuple>> lockTable = new HashMap<Integer, ArrayList<LockTuple>>();
+    //The value is the lock header of the item, holding its owners and waiting commands. Headers are only kept while
+    //they have owners or waiters. The headers of different items can be added and removed at the same time by the
+    //concurrent transaction manager
+    ConcurrentHashMap<Integer, LockHeader> lockTable = new ConcurrentHashMap<Integer, LockHeader>();
+
+    //The locks of the ranges of items, which scans hold in shared mode and count the write locks on their items, and
+    //the lock of the whole site under SITE_RANGE. They are kept once created, as there are far fewer ranges than items
+    ConcurrentHashMap<Integer, RangeLock> rangeLocks = new ConcurrentHashMap<Integer, RangeLock>();
+
+    //the items whose write was refused because another transaction scans the whole site, so that the end of a scan of
+    //the site only wakes up these items instead of going over the lock table. A write that is still refused is added
+    //again when it is attempted again
+    Set<Integer> scanBlocked = ConcurrentHashMap.newKeySet();
 
     int siteId;
 
     boolean status;
 
+    //the redo log of the values committed on this site, or null if the values are only kept in memory
+    RedoLog log;
+
+    //the number of reads this site served, which the replica selection can use to spread the reads
+    LongAdder reads = new LongAdder();
+    //the time the commands waited in the lock queues of the items of this site, until they were woken up
+    LatencyHistogram lockWaits = new LatencyHistogram();
+
     long lastRecovery;
+    //the times at which this site failed, in order, to know whether it stayed up between two points in time
+    ArrayList<Long> failureTimes = new ArrayList<Long>();
 
     public DataManager(int i) {
+        this(i, new HeapItemStore());
+    }
+
+    /**
+     * @param i - the ID of the site
+     * @param data - the store that keeps the copies of the site
+     */
+    public DataManager(int i, ItemStore data) {
         this.siteId = i;
+        this.data = data;
         status = RUNNING;
-        lastRecovery = System.currentTimeMillis();
-        lockTable = new HashMap<Integer, ArrayList<LockTuple>>();
+        lastRecovery = TimestampOracle.INITIAL;
     }
 
     public void addItem(int item, int value) {
-        data.put(item, new Data(item, value, this));
-        failedData.put(item, new Data(item, value, this));
+        data.add(item, value);
+        Driver.driver.catalog.add(item, this);
     }
 
     public void deleteItem(int item) {
-        if(data.containsKey(item)) {
+        if(data.contains(item)) {
             data.remove(item);
+            Driver.driver.catalog.remove(item, this);
+        }
+    }
+
+    public void countRead() {
+        reads.increment();
+    }
+
+    public long readsServed() {
+        return reads.sum();
+    }
+
+    //a copy can be read if the site is running, and the copy is not waiting for a write after the site recovered
+    public boolean isReadable(int item) {
+        return status == RUNNING && data.isAvailable(item);
+    }
+
+    //returns the lock header of the item, creating it if the item has no owners or waiters. The header is created
+    //atomically, so two commands on the same item can't each create one, whatever locks their callers hold
+    public LockHeader lockHeader(int item) {
+        return lockTable.computeIfAbsent(item, NEW_HEADER);
+    }
+
+    //the range of an item
+    public static int range(int item) {
+        return Math.floorDiv(item, RANGE_SIZE);
+    }
+
+    //returns the lock of a range, or of the whole site for SITE_RANGE, creating it if it was never used
+    public RangeLock rangeLock(int range) {
+        RangeLock lock = rangeLocks.get(range);
+        if (lock == null) {
+            lock = new RangeLock();
+            RangeLock existing = rangeLocks.putIfAbsent(range, lock);
+            if (existing != null) {
+                lock = existing;
+            }
+        }
+        return lock;
+    }
+
+    //a write lock on the item can be granted if the lock header allows it, and no other transaction scans the item
+    public boolean canWrite(int item, int transactionID) {
+        LockHeader header = lockTable.get(item);
+        return (header == null || header.canWrite(transactionID)) && !scannedByOthers(item, transactionID);
+    }
+
+    //whether another transaction holds the range of the item or the whole site in shared mode
+    public boolean scannedByOthers(int item, int transactionID) {
+        RangeLock site = rangeLocks.get(SITE_RANGE);
+        if (site != null && !site.canWrite(transactionID)) {
+            scanBlocked.add(item);
+            return true;
+        }
+        RangeLock range = rangeLocks.get(range(item));
+        return range != null && !range.canWrite(transactionID);
+    }
+
+    //the transactions other than the given one that hold the range of the item or the whole site in shared mode
+    public ArrayList<Integer> scanners(int item, int transactionID) {
+        ArrayList<Integer> scanners = new ArrayList<Integer>();
+        for (int range : new int[]{SITE_RANGE, range(item)}) {
+            RangeLock lock = rangeLocks.get(range);
+            if (lock != null) {
+                for (Integer scanner : lock.scannersOtherThan(transactionID)) {
+                    if (!scanners.contains(scanner)) {
+                        scanners.add(scanner);
+                    }
+                }
+            }
+        }
+        return scanners;
+    }
+
+    /**
+     * Find an item that another transaction holds the write lock of, in a range or anywhere on the site. A scan can
+     * lock the range if there is none, and otherwise waits on the item. Only the ranges with written items are looked
+     * at
+     *
+     * @param range - the range, or SITE_RANGE
+     * @param transactionID - the transaction scanning
+     * @return - the item, or -1 if there is none
+     */
+    public int writtenItem(int range, int transactionID) {
+        if (range != SITE_RANGE) {
+            RangeLock lock = rangeLocks.get(range);
+            return lock != null && lock.isWritten() ? writtenItemIn(range, transactionID) : -1;
+        }
+        for (Map.Entry<Integer, RangeLock> entry : rangeLocks.entrySet()) {
+            if (entry.getKey() != SITE_RANGE && entry.getValue().isWritten()) {
+                int item = writtenItemIn(entry.getKey(), transactionID);
+                if (item != -1) {
+                    return item;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int writtenItemIn(int range, int transactionID) {
+        for (int item = range * RANGE_SIZE; item < (range + 1) * RANGE_SIZE; item++) {
+            LockHeader header = lockTable.get(item);
+            if (header != null && header.writeOwner != LockHeader.NONE && header.writeOwner != transactionID) {
+                return item;
+            }
+        }
+        return -1;
+    }
+
+    //lock a range, or the whole site, in shared mode for a scan, and add it to the ranges the transaction holds
+    public void scanLock(int range, Transaction t) {
+        rangeLock(range).scan(t.transactionID);
+        t.holdRange(this, range);
+    }
+
+    //release the shared lock of a range, and wake up the commands waiting on its items, which may be writes waiting
+    //for the scan
+    public void releaseRange(int range, int transactionID) {
+        RangeLock lock = rangeLocks.get(range);
+        if (lock == null || !lock.release(transactionID)) {
+            return;
+        }
+        if (range == SITE_RANGE) {
+            //the writes that are still refused add their items again while they are woken up
+            ArrayList<Integer> blocked = new ArrayList<Integer>(scanBlocked);
+            scanBlocked.clear();
+            for (int item : blocked) {
+                LockHeader header = lockTable.get(item);
+                if (header != null) {
+                    wakeWaiters(item, header);
+                }
+            }
+        } else {
+            for (int item = range * RANGE_SIZE; item < (range + 1) * RANGE_SIZE; item++) {
+                LockHeader header = lockTable.get(item);
+                if (header != null) {
+                    wakeWaiters(item, header);
+                }
+            }
+        }
+    }
+
+    private void wakeWaiters(int item, LockHeader header) {
+        if (!header.waiters.isEmpty()) {
+            Driver.driver.transactionManager.wake(header);
+            reclaim(item, header);
+        }
+    }
+
+    //a write lock on an item is counted by the lock of its range
+    private void addWrite(int item) {
+        rangeLock(range(item)).addWrite();
+    }
+
+    private void removeWrite(int item) {
+        rangeLock(range(item)).removeWrite();
+    }
+
+    //grant a lock on the item to the transaction, and add it to the locks the transaction holds
+    public void lock(int item, Transaction t, boolean lockType) {
+        LockHeader header = lockHeader(item);
+        boolean wrote = header.holdsWrite(t.transactionID);
+        header.grant(t.transactionID, lockType);
+        if (lockType == LockTuple.WRITE && !wrote) {
+            addWrite(item);
+        }
+        t.holdLock(this, item, header.owners.get(t.transactionID));
+    }
+
+    //grant locks on a set of items to the transaction in one pass, adding them to the locks it holds on this site
+    public void lock(ArrayList<Integer> items, Transaction t, boolean lockType) {
+        LinkedHashMap<Integer, Boolean> held = t.heldLocksOn(this);
+        for (int item : items) {
+            LockHeader header = lockHeader(item);
+            boolean wrote = header.holdsWrite(t.transactionID);
+            header.grant(t.transactionID, lockType);
+            if (lockType == LockTuple.WRITE && !wrote) {
+                addWrite(item);
+            }
+            held.put(item, header.owners.get(t.transactionID));
+        }
+    }
+
+    //release the locks that the transaction holds on the item, wake up the commands waiting on it, and reclaim the
+    //header if it is no longer used
+    public void releaseLock(int item, int transactionID) {
+        LockHeader header = lockTable.get(item);
+        if (header != null) {
+            boolean wrote = header.holdsWrite(transactionID);
+            if (header.release(transactionID)) {
+                if (wrote) {
+                    removeWrite(item);
+                }
+                Driver.driver.transactionManager.wake(header);
+            }
+            reclaim(item, header);
+        }
+    }
+
+    public void reclaim(int item, LockHeader header) {
+        //a header that was already replaced by a newer one stays
+        if (header.isEmpty()) {
+            lockTable.remove(item, header);
         }
     }
 
@@ -51,17 +301,15 @@ public class DataManager {
      * @param item
      * @param value
      * @param t
+     * @param commitTime - the commit time of the transaction, which becomes the time of the new version of the item
      * @return
      */
-    public boolean updateItem(int item, int value, Transaction t) {
-        if(data.containsKey(item) && lockTable.containsKey(item)) {
-            if(lockTable.get(item).get(0).transaction == t.transactionID && lockTable.get(item).get(0).lockType == LockTuple.WRITE) {
-                data.get(item).setDataValue(value);
-                if(failedData.get(item) == null)
-                    failedData.put(item, new Data(item, value, this));
-                else
-                    failedData.get(item).setDataValue(value);
-                lockTable.get(item).remove(0);
+    public boolean updateItem(int item, int value, Transaction t, long commitTime) {
+        if(data.contains(item) && lockTable.containsKey(item)) {
+            if(lockTable.get(item).holdsWrite(t.transactionID)) {
+                data.commit(item, value, commitTime, Driver.driver.transactionManager.oldestSnapshot());
+                data.setAvailable(item, true);
+                releaseLock(item, t.transactionID);
                 return true;
             } else {
                 return false;
@@ -71,6 +319,20 @@ public class DataManager {
         }
     }
 
+    /**
+     * Apply a value from the redo log, as the committed value of the item at its commit time
+     *
+     * @param item - the item written
+     * @param value - the committed value
+     * @param commitTime - the commit time of the transaction that wrote it
+     */
+    public void redo(int item, int value, long commitTime) {
+        if (data.contains(item)) {
+            data.commit(item, value, commitTime, Driver.driver.transactionManager.oldestSnapshot());
+            data.setAvailable(item, true);
+        }
+    }
+
     /**
      * a site failure will erase its lock table, and will cause all the transactions that have interacted with it
      * previously to abort
@@ -79,12 +341,20 @@ public class DataManager {
      */
     public void fail() throws Exception {
         if(status == RUNNING) {
-            lockTable = new HashMap<Integer, ArrayList<LockTuple>>();
+            //the commands waiting on this site are attempted again on the other sites, once the site is down
+            ConcurrentHashMap<Integer, LockHeader> failedLocks = lockTable;
+            lockTable = new ConcurrentHashMap<Integer, LockHeader>();
+            rangeLocks = new ConcurrentHashMap<Integer, RangeLock>();
+            scanBlocked.clear();
             status = FAILED;
-            System.out.println("Site " + siteId + " failed.");
+            for (LockHeader header : failedLocks.values()) {
+                Driver.driver.transactionManager.wake(header);
+            }
+            failureTimes.add(Driver.driver.timestamps.next());
+            Driver.driver.events.site(Event.SITE_FAILED, siteId);
             Driver.driver.transactionManager.siteFail(this);
         } else {
-            System.out.println("Site " + siteId + " is already failed.");
+            Driver.driver.events.site(Event.SITE_ALREADY_FAILED, siteId);
         }
     }
 
@@ -95,74 +365,79 @@ public class DataManager {
     public void recover() {
         if(status == FAILED) {
             status = RUNNING;
-            lastRecovery = System.currentTimeMillis();
-            System.out.println("Site " + siteId + " recovered.");
-
-            HashMap<Integer, Boolean> replicatedData = new HashMap<Integer, Boolean>();
+            lastRecovery = Driver.driver.timestamps.next();
+            Driver.driver.events.site(Event.SITE_RECOVERED, siteId);
 
-            for (Map.Entry<Integer, Data> integerIntegerEntry : data.entrySet()) {
-                replicatedData.put(integerIntegerEntry.getKey(), false);
+            //the catalog tells which items have copies on other sites, without going over the data of those sites
+            ReplicaCatalog catalog = Driver.driver.catalog;
+            for (int item : data.items()) {
+                data.setAvailable(item, !catalog.isReplicated(item));
             }
-
-            for (DataManager dataSite : Driver.driver.dataSites) {
-                if (dataSite != this) {
-                    for (Map.Entry<Integer, Data> integerIntegerEntry : dataSite.data.entrySet()) {
-                        if (replicatedData.containsKey(integerIntegerEntry.getKey())) {
-                            replicatedData.put(integerIntegerEntry.getKey(), true);
-                        }
-                    }
-                }
+            if (Driver.driver.catchUp != null) {
+                Driver.driver.catchUp.add(this);
             }
+        } else {
+            Driver.driver.events.site(Event.SITE_ALREADY_RUNNING, siteId);
+        }
+    }
 
-            for (Map.Entry<Integer, Data> entry : data.entrySet()) {
-                if (replicatedData.get(entry.getKey())) {
-                    failedData.put(entry.getKey(), null);
-                } else {
-                    failedData.put(entry.getKey(), entry.getValue());
-                }
+    /**
+     * Check that the site did not fail after one point in time and up to another
+     *
+     * @param from - the earlier time, usually the commit time of a version
+     * @param to - the later time, usually the start time of a read-only transaction
+     * @return - true if there was no failure in between
+     */
+    public boolean upBetween(long from, long to) {
+        for (int i = failureTimes.size() - 1; i >= 0; i--) {
+            long failureTime = failureTimes.get(i);
+            if (failureTime <= from) {
+                break;
+            }
+            if (failureTime <= to) {
+                return false;
             }
-        } else {
-            System.out.println("Site " + siteId + " is already running.");
         }
+        return true;
     }
 
     //print all the values that are on this site
     public void dump() {
-        for (Integer dataItem : data.keySet()) {
-            System.out.print("x" + dataItem + "." + siteId + " = " + data.get(dataItem).getDataValue());
-            if(failedData.get(dataItem) != null) {
-                System.out.println("");
-            } else {
-                System.out.println(" not available for read until a write command is committed");
-            }
+        StringBuilder text = new StringBuilder();
+        for (int dataItem : data.itemsInPrintOrder()) {
+            dumpCopy(text, dataItem);
         }
-        System.out.println();
+        text.append(Event.NEWLINE);
+        Driver.driver.events.print(text.toString());
     }
 
     //print the value of this particular data item on this site
     public boolean dump(int dataItem) {
-        if (data.containsKey(dataItem)) {
-            System.out.print("x" + dataItem + "." + siteId + " = " + data.get(dataItem).getDataValue());
-            if(failedData.get(dataItem) != null) {
-                System.out.println("");
-            } else {
-                System.out.println(" not available for read until a write command is committed");
-            }
+        if (data.contains(dataItem)) {
+            StringBuilder text = new StringBuilder();
+            dumpCopy(text, dataItem);
+            Driver.driver.events.print(text.toString());
             return true;
         } else {
             return false;
         }
     }
 
+    //the line of the dump of one copy
+    private void dumpCopy(StringBuilder text, int dataItem) {
+        text.append("x").append(dataItem).append(".").append(siteId).append(" = ").append(data.value(dataItem));
+        if(!data.isAvailable(dataItem)) {
+            text.append(" not available for read until a write command is committed");
+        }
+        text.append(Event.NEWLINE);
+    }
+
     @Override
     public String toString() {
         String statusOutput = "Site " + siteId + " is " + (status == FAILED ? "failed" : "running");
 
         for (Integer integer : lockTable.keySet()) {
-            statusOutput += "\n" + "x" + integer;
-            for (LockTuple lockTuple : lockTable.get(integer)) {
-                statusOutput += "\t" + lockTuple.toString();
-            }
+            statusOutput += "\n" + "x" + integer + lockTable.get(integer).toString();
         }
 
         return statusOutput;
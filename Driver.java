@@ -1,14 +1,21 @@
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
-
-import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.ConcurrentModificationException;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The driver contains the main method of the system.
- * It runs with one argument: the file containing the different commands
+ * It runs with one argument: the file containing the different commands. With -server and an address instead of the
+ * file, it runs the commands that clients send to a command server at that address. With -log and a directory before
+ * the other arguments, the values committed on each site are kept in a redo log in that directory, and the values of
+ * earlier runs are restored from it on startup. With -catchup and a number of items, the copies on a recovered site
+ * are caught up that many items after each command
  */
 public class Driver {
 
@@ -16,49 +23,279 @@ public class Driver {
 
     //an arrayList contianing all the data managers, each representing a different site
     public ArrayList<DataManager> dataSites = new ArrayList<DataManager>();
+    //the sites holding a copy of each data item, which reads and writes are routed through
+    public ReplicaCatalog catalog = new ReplicaCatalog();
+    //the logical clock that orders transaction start times, commit times, and site failures and recoveries
+    public TimestampOracle timestamps = new TimestampOracle();
     //the transaction manager that will handle the transactions and communicate with the data managers
     public TransactionManager transactionManager = new TransactionManager();
+    //brings the copies on recovered sites up to date, or null if they wait for a write as in the project specification
+    public ReplicaCatchUp catchUp;
+    //where the output of the system goes
+    public EventSink events = new TextEventSink();
+    //writes the snapshots of the metrics, or null if they are not exported
+    public MetricsReporter metricsReporter;
+    //with the parking transaction manager, the sessions of the running transactions of an input file, and the number
+    //of sessions with commands that are not done yet
+    HashMap<Integer, CommandSession> sessions = new HashMap<Integer, CommandSession>();
+    AtomicInteger busySessions = new AtomicInteger();
+    //whether the sites keep their copies off the heap, and the directory of the files they are mapped from, if any
+    boolean offHeap = false;
+    String storeDirectory;
 
     /**
      * main method
-     * @param args - args[0] contains the path to the file
+     * @param args - args[0] contains the path to the file, or -server followed by a port on the loopback interface or
+     *             the path of a Unix domain socket. Optionally, the next arguments are the number of sites, the number
+     *             of data items, and the number of copies of each item. Without them, the system has 10 sites with 20
+     *             data items placed as in the project specification. All of them can follow -log and the directory of
+     *             the redo logs, -catchup and the number of items caught up after each command, -offheap and
+     *             either direct, or the directory of the files the copies of the sites are mapped from, and -select and
+     *             the replica selection of reads: first, roundrobin, leastloaded, or affinity, and -deadlock and
+     *             how deadlocks are handled: detect, waitdie, or woundwait, and -timeout and the number of commands a
+     *             command can wait for a lock, optionally followed by a comma and the number of commands after its
+     *             begin that a transaction can wait for a lock, and -metrics and the file the snapshots of the metrics
+     *             are written to, as JSON if its name ends with .json and for Prometheus otherwise, optionally followed
+     *             by a comma and the milliseconds between two snapshots, and -output and how the output is
+     *             written: text, printed as it happens, async, written by a background thread, or quiet, dropped,
+     *             and -manager and the transaction manager: single, the single threaded one, concurrent, which
+     *             runs the commands that don't conflict in parallel and catches up recovered sites in the background,
+     *             or parking, which runs each transaction of the file, or each client of the server, in a session on
+     *             a virtual thread that parks while its command waits for a lock
      * @throws Exception
      */
     public static void main(String[] args) throws Exception {
-        //initialize 10 sites with 20 data values
-        driver.initialize(10, 20);
-        //read the file, interpret the lines, and call the relevant functions
-        driver.readFile(args[0]);
+        String logDirectory = null;
+        int catchUpBatch = 0;
+        //the deadlock policy and the timeouts are set once the transaction manager is chosen, whatever the order of
+        //the options
+        String deadlock = null;
+        String[] timeouts = null;
+        while (args[0].equals("-log") || args[0].equals("-catchup") || args[0].equals("-offheap") || args[0].equals("-select")
+                || args[0].equals("-deadlock") || args[0].equals("-timeout")
+                || args[0].equals("-metrics") || args[0].equals("-output") || args[0].equals("-manager")) {
+            if (args[0].equals("-log")) {
+                logDirectory = args[1];
+            } else if (args[0].equals("-select")) {
+                driver.catalog.setSelection(replicaSelection(args[1]));
+            } else if (args[0].equals("-manager")) {
+                driver.transactionManager = transactionManager(args[1]);
+            } else if (args[0].equals("-deadlock")) {
+                deadlock = args[1];
+            } else if (args[0].equals("-output")) {
+                driver.events = eventSink(args[1]);
+            } else if (args[0].equals("-metrics")) {
+                String[] metrics = args[1].split(",");
+                driver.metricsReporter = new MetricsReporter(Paths.get(metrics[0]),
+                        metrics.length > 1 ? Long.parseLong(metrics[1]) : MetricsReporter.DEFAULT_PERIOD_MILLIS);
+            } else if (args[0].equals("-timeout")) {
+                timeouts = args[1].split(",");
+            } else if (args[0].equals("-offheap")) {
+                driver.storeOffHeap(args[1].equals("direct") ? null : args[1]);
+            } else {
+                catchUpBatch = Integer.parseInt(args[1]);
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (deadlock != null) {
+            driver.transactionManager.setDeadlockPolicy(deadlockPolicy(deadlock));
+        }
+        if (timeouts != null) {
+            driver.transactionManager.setTimeouts(Integer.parseInt(timeouts[0]),
+                    timeouts.length > 1 ? Integer.parseInt(timeouts[1]) : TransactionManager.NO_TIMEOUT);
+        }
+        boolean server = args[0].equals("-server");
+        int first = server ? 2 : 1;
+        int sites = args.length > first ? Integer.parseInt(args[first]) : 10;
+        int data = args.length > first + 1 ? Integer.parseInt(args[first + 1]) : 20;
+        if (args.length > first + 2) {
+            driver.initialize(sites, data, new ReplicatedPlacement(Integer.parseInt(args[first + 2])));
+        } else {
+            driver.initialize(sites, data);
+        }
+        if (logDirectory != null) {
+            driver.openLogs(logDirectory);
+        }
+        if (catchUpBatch > 0) {
+            driver.enableCatchUp(catchUpBatch, ReplicaCatchUp.DEFAULT_PAUSE_MILLIS);
+        }
+        if (driver.metricsReporter != null) {
+            driver.metricsReporter.start();
+        }
+
+        if (server) {
+            //the server routes the output of each transaction to the client that began it as the events are taken, so they
+            //can't be written by a background thread
+            if (driver.events instanceof AsyncEventSink) {
+                throw new Exception("The command server needs the text or the quiet output");
+            }
+            CommandServer commandServer = new CommandServer(driver, args[1]);
+            System.err.println("Serving commands at " + commandServer.getAddress());
+            commandServer.run();
+        } else {
+            //read the file, interpret the lines, and call the relevant functions
+            try {
+                driver.readFile(args[0]);
+            } finally {
+                driver.events.close();
+            }
+            if (driver.metricsReporter != null) {
+                driver.metricsReporter.stop();
+            }
+        }
+    }
+
+    //the replica selection policy with the given name
+    static ReplicaSelection replicaSelection(String name) throws Exception {
+        switch (name) {
+            case "first":
+                return new FirstCopySelection();
+            case "roundrobin":
+                return new RoundRobinSelection();
+            case "leastloaded":
+                return new LeastLoadedSelection();
+            case "affinity":
+                return new AffinitySelection();
+            default:
+                throw new Exception("Unknown replica selection " + name + ". Expected first, roundrobin, leastloaded, or affinity");
+        }
+    }
+
+    //the transaction manager with the given name
+    static TransactionManager transactionManager(String name) throws Exception {
+        switch (name) {
+            case "single":
+                return new TransactionManager();
+            case "concurrent":
+                return new ConcurrentTransactionManager();
+            case "parking":
+                return new ParkingTransactionManager();
+            default:
+                throw new Exception("Unknown transaction manager " + name + ". Expected single, concurrent, or parking");
+        }
+    }
+
+    //the event sink with the given name
+    static EventSink eventSink(String name) throws Exception {
+        switch (name) {
+            case "text":
+                return new TextEventSink();
+            case "async":
+                return new AsyncEventSink();
+            case "quiet":
+                return new QuietEventSink();
+            default:
+                throw new Exception("Unknown output " + name + ". Expected text, async, or quiet");
+        }
+    }
+
+    //the deadlock policy with the given name
+    static int deadlockPolicy(String name) throws Exception {
+        switch (name) {
+            case "detect":
+                return TransactionManager.DETECT;
+            case "waitdie":
+                return TransactionManager.WAIT_DIE;
+            case "woundwait":
+                return TransactionManager.WOUND_WAIT;
+            default:
+                throw new Exception("Unknown deadlock policy " + name + ". Expected detect, waitdie, or woundwait");
+        }
     }
 
     /**
-     * The initialization method that creates the data sites, and initializes the data values in the data sites
-     *
-     * this method is designed with the data specifications of our project. For use with other projects, the data
-     * initialization part should be edited to fit the project's specs
+     * The initialization method that creates the data sites, and initializes the data values in the data sites with
+     * the placement of our project's specification
      *
      * @param sites - an integer denoting the number of different sites to create
      * @param data - an integer denoting the number of data items to create
      */
     public void initialize(int sites, int data) {
+        initialize(sites, data, new StandardPlacement());
+    }
+
+    /**
+     * Create the data sites, and place the copies of the data items on them with the given placement policy.
+     * Item i starts with the value 10 * i
+     *
+     * @param sites - an integer denoting the number of different sites to create
+     * @param data - an integer denoting the number of data items to create
+     * @param placement - decides which sites hold a copy of each item
+     */
+    public void initialize(int sites, int data, PlacementPolicy placement) {
         //create the data sites
         for (int i = 0; i < sites; i++) {
-            this.dataSites.add(new DataManager((i + 1)));
+            this.dataSites.add(new DataManager((i + 1), createStore(i + 1)));
         }
 
         //initialize the data in the data sites
-        for (int i = 0; i < data; i++) {
-            if (i % 2 == 1) {
-                for (DataManager dataSite : dataSites) {
-                    dataSite.addItem((i + 1), 10 * (i + 1));
-                }
-            } else {
-                int dataSite = (i + 1) % 10;
-                dataSites.get(dataSite).addItem((i + 1), 10 * (i + 1));
+        for (int item = 1; item <= data; item++) {
+            for (int dataSite : placement.place(item, sites)) {
+                dataSites.get(dataSite).addItem(item, 10 * item);
             }
         }
     }
 
+    /**
+     * Keep the copies of the sites off the heap, so that sites with very many items don't slow down the collections of
+     * the heap. Called before the sites are initialized
+     *
+     * @param directory - the directory of the files the copies are mapped from, which is created if it doesn't exist,
+     *                  or null to keep the copies in direct memory
+     * @throws IOException
+     */
+    public void storeOffHeap(String directory) throws IOException {
+        offHeap = true;
+        storeDirectory = directory;
+        if (directory != null) {
+            Files.createDirectories(Paths.get(directory));
+        }
+    }
+
+    //the store for the copies of a site
+    private ItemStore createStore(int siteId) {
+        if (!offHeap) {
+            return new HeapItemStore();
+        } else if (storeDirectory == null) {
+            return new OffHeapItemStore();
+        } else {
+            return new OffHeapItemStore(Paths.get(storeDirectory, "site-" + siteId + ".store"));
+        }
+    }
+
+    /**
+     * Keep the values committed on each site in a redo log in the directory, and restore the values that earlier runs
+     * committed from the logs that are already there. Called after the sites are initialized
+     *
+     * @param directory - the directory of the logs, which is created if it doesn't exist
+     * @throws IOException
+     */
+    public void openLogs(String directory) throws IOException {
+        Path path = Paths.get(directory);
+        Files.createDirectories(path);
+        long latest = TimestampOracle.INITIAL;
+        for (DataManager dataSite : dataSites) {
+            dataSite.log = new RedoLog(path.resolve("site-" + dataSite.siteId + ".log"));
+            latest = Math.max(latest, dataSite.log.replay(dataSite));
+        }
+        //the transactions of this run start and commit after those in the logs
+        timestamps.advanceTo(latest);
+    }
+
+    /**
+     * Catch up the copies on the sites that recover, instead of leaving them unreadable until they are written. With
+     * a concurrent transaction manager they are caught up by a background thread, and otherwise after each command
+     *
+     * @param batch - the number of items caught up at a time
+     * @param pauseMillis - the time the background thread waits between two batches
+     */
+    public void enableCatchUp(int batch, long pauseMillis) {
+        catchUp = new ReplicaCatchUp(batch, pauseMillis);
+        if (transactionManager instanceof ConcurrentTransactionManager) {
+            catchUp.start();
+        }
+    }
+
     /**
      * readFile method
      * @param filePath - the path to the file containing the commands
@@ -66,158 +303,192 @@ public class Driver {
      */
     private void readFile(String filePath) throws Exception {
 
-        LineIterator it = FileUtils.lineIterator(new File(filePath));
-        int lineCounter = 0;
+        CommandParser parser = new CommandParser(filePath);
+
+        try {
+            while (parser.next()) {
+                if (transactionManager instanceof ParkingTransactionManager) {
+                    runInSession(parser);
+                } else {
+                    execute(parser);
+                }
+            }
+        } finally {
+            parser.close();
+            for (CommandSession session : sessions.values()) {
+                session.close();
+            }
+        }
+    }
 
-        while(it.hasNext()) {
+    /**
+     * Run a command of an input file with the parking transaction manager. The commands of each transaction run in a
+     * session of their own, so that a command that waits parks the session of its transaction while the other
+     * transactions go on. The next command is read once every session has run its commands or is parked, so the
+     * commands start in the order of the file, as with the other transaction managers. The commands of a transaction
+     * run one after the other, so a command that follows a waiting command of its transaction waits for it
+     *
+     * @param parser - the parser holding the command
+     * @throws Exception - an error in the command
+     */
+    private void runInSession(CommandParser parser) throws Exception {
+        int type = parser.getType();
+        CommandSession session = null;
+        if (type != CommandParser.DUMP_ALL && type != CommandParser.DUMP_ITEM && type != CommandParser.DUMP_SITE
+                && type != CommandParser.FAIL && type != CommandParser.RECOVER) {
+            session = sessions.get(parser.getTransactionID());
+            if (session == null && (type == CommandParser.BEGIN || type == CommandParser.BEGIN_READ_ONLY)) {
+                session = new CommandSession(this, "T" + parser.getTransactionID(), busySessions);
+                session.start();
+                sessions.put(parser.getTransactionID(), session);
+            }
+        }
+        //the commands of no transaction, and those of transactions that are not running, run on this thread. They can
+        //still wake up parked sessions, by failing a site or by timing out a wait
+        if (session == null) {
+            execute(parser);
+            awaitSessions();
+            return;
+        }
 
-            String line = it.nextLine();
+        session.submit(parser.copyLine(), parser.getLineNumber());
+        awaitSessions();
+        if (session.failure != null) {
+            Exception failure = session.failure;
+            session.failure = null;
+            throw failure;
+        }
 
-            //empty lines are ignored
-            if (!line.trim().isEmpty()) {
-                //empty spaces in the lines are deleted
-                String cleanedLine = line.replaceAll(" ", "").trim();
-                lineCounter++;
+        //stop the sessions of the transactions that ended or aborted
+        if (sessions.size() > transactionManager.transactions.size()) {
+            Iterator<Map.Entry<Integer, CommandSession>> iterator = sessions.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, CommandSession> entry = iterator.next();
+                if (!transactionManager.transactions.contains(entry.getKey()) && entry.getValue().isIdle()) {
+                    entry.getValue().close();
+                    iterator.remove();
+                }
+            }
+        }
+    }
 
-                //lines starting with // are comment lines and are ignored
-                if (cleanedLine.startsWith("//"))
-                    continue;
+    //wait until every session has run its commands or is parked on a lock
+    private void awaitSessions() {
+        ParkingTransactionManager parking = (ParkingTransactionManager) transactionManager;
+        while (busySessions.get() > parking.parkedSessions.get()) {
+            Thread.yield();
+        }
+    }
 
-                //begin commands
-                else if (cleanedLine.startsWith("begin")) {
-                    //begin read only transactions
-                    if (cleanedLine.startsWith("beginRO(T")) {
-                        int transactionID = Integer.parseInt(cleanedLine.replaceAll("beginRO\\(T", "").replaceAll("\\)", ""));
-                        transactionManager.beginReadOnly(transactionID);
-                    }
-                    //begin regular transactions
-                    else if (cleanedLine.startsWith("begin(T")) {
-                        int transactionID = Integer.parseInt(cleanedLine.replaceAll("begin\\(T", "").replaceAll("\\)", ""));
-                        transactionManager.begin(transactionID);
-                    }
-                    //throw an Exception if the command begins with 'begin' but doesn't follow the expected structure
-                    else {
-                        throw new Exception("Syntax error at line " + lineCounter + ". Expected beginRO(Ti) or begin(Ti)\n\t" + line);
-                    }
+    /**
+     * Run the command that the parser has just read
+     *
+     * @param parser - the parser holding the command
+     * @throws Exception - an error in the command
+     */
+    public void execute(CommandParser parser) throws Exception {
+        switch (parser.getType()) {
+            //begin read only transactions
+            case CommandParser.BEGIN_READ_ONLY:
+                transactionManager.beginReadOnly(parser.getTransactionID());
+                break;
+            //begin regular transactions
+            case CommandParser.BEGIN:
+                transactionManager.begin(parser.getTransactionID());
+                break;
+            //read commands
+            case CommandParser.READ:
+                //make sure that the transaction calling the command hasn't aborted at an earlier point
+                if (transactionManager.transactions.contains(parser.getTransactionID())) {
+                    transactionManager.read(parser.getTransactionID(), parser.getDataIndex());
                 }
-                //read commands
-                else if (cleanedLine.startsWith("R(")) {
-                    String[] segments = cleanedLine.replaceAll("R\\(", "").replaceAll("\\)", "").split(",");
-                    //read commands expect two arguments, the transaction, and the data item to read
-                    if (segments.length != 2) {
-                        throw new Exception("Syntax error at line " + lineCounter + ". Expected R(Ti, xj).\n\t" + line + "\n");
-                    } else {
-                        if (segments[0].startsWith("T") && segments[0].length() > 1 && segments[1].startsWith("x") && segments[1].length() > 1) {
-                            int transactionID = Integer.parseInt(segments[0].replaceAll("T", ""));
-                            int dataIndex = Integer.parseInt(segments[1].replaceAll("x", ""));
-                            //the purpose of this loop is to make sure that the transaction calling the command hasn't aborted at an earlier point
-                            try {
-                                for (Transaction transaction : transactionManager.transactions) {
-                                    if (transaction.transactionID == transactionID) {
-                                        transactionManager.read(transactionID, dataIndex);
-                                    }
-                                }
-                            } catch (ConcurrentModificationException e) {
-                                //We're ignoring this exception because it just means that while we are iterating over the transactions list, one of the transactions aborted
-                            }
-                        } else {
-                            throw new Exception("Syntax error at line " + lineCounter + ". Expected R(Ti, xj).\n\t" + line + "\n");
-                        }
-                    }
+                break;
+            //write commands
+            case CommandParser.WRITE:
+                //make sure that the transaction calling the command hasn't aborted at an earlier point
+                if (transactionManager.transactions.contains(parser.getTransactionID())) {
+                    transactionManager.write(parser.getTransactionID(), parser.getDataIndex(), parser.getDataValue());
                 }
-                //write commands
-                else if (cleanedLine.startsWith("W(")) {
-                    String[] segments = cleanedLine.replaceAll("W\\(", "").replaceAll("\\)", "").split(",");
-                    //write commands expect 3 arguments, the transaction, the data item, and the data value to write to the data item
-                    if (segments.length != 3) {
-                        throw new Exception("Syntax error at line " + lineCounter + ". Expected W(Ti, xj, v).\n\t" + line + "\n");
-                    } else {
-                        if (segments[0].startsWith("T") && segments[0].length() > 1 && segments[1].startsWith("x") && segments[1].length() > 1) {
-                            int transactionID = Integer.parseInt(segments[0].replaceAll("T", ""));
-                            int dataIndex = Integer.parseInt(segments[1].replaceAll("x", ""));
-                            int dataValue = Integer.parseInt(segments[2]);
-                            //the purpose of this loop is to make sure that the transaction calling the command hasn't aborted at an earlier point
-                            try {
-                                for (Transaction transaction : transactionManager.transactions) {
-                                    if (transaction.transactionID == transactionID) {
-                                        transactionManager.write(transactionID, dataIndex, dataValue);
-                                    }
-                                }
-                            } catch (ConcurrentModificationException e) {
-                                //We're ignoring this exception because it just means that while we are iterating over the transactions list, one of the transactions aborted
-                            }
-                        } else {
-                            throw new Exception("Syntax error at line " + lineCounter + ". Expected W(Ti, xj, v).\n\t" + line + "\n");
-                        }
-                    }
+                break;
+            //reads and writes of sets of items
+            case CommandParser.READ_BATCH:
+                if (transactionManager.transactions.contains(parser.getTransactionID())) {
+                    transactionManager.readBatch(parser.getTransactionID(), parser.getDataIndexes());
                 }
-                //end commands
-                else if (cleanedLine.startsWith("end(")) {
-                    if (cleanedLine.startsWith("end(T")) {
-                        int transactionID = Integer.parseInt(cleanedLine.replaceAll("end\\(T", "").replaceAll("\\)", ""));
-                        //the purpose of this loop is to make sure that the transaction calling the command hasn't aborted at an earlier point
-                        try {
-                            for (Transaction transaction : transactionManager.transactions) {
-                                if (transaction.transactionID == transactionID) {
-                                    transactionManager.end(transactionID);
-                                }
-                            }
-                        } catch (ConcurrentModificationException e) {
-                            //We're ignoring this exception because it just means that while we are iterating over the transactions list, one of the transactions aborted
-                        }
-                    } else {
-                        throw new Exception("Syntax error at line " + lineCounter + ". Expected end(Ti)\n\t" + line);
-                    }
+                break;
+            case CommandParser.WRITE_BATCH:
+                if (transactionManager.transactions.contains(parser.getTransactionID())) {
+                    transactionManager.writeBatch(parser.getTransactionID(), parser.getDataIndexes(), parser.getDataValues());
                 }
-                //dump commands
-                else if (cleanedLine.startsWith("dump")) {
-                    //dump() calls the dumpAll method
-                    if (cleanedLine.equals("dump()")) {
-                        dumpAll();
-                    }
-                    //dump(xi) calls the dump method for one data item
-                    else if (cleanedLine.startsWith("dump(x")) {
-                        int dataIndex = Integer.parseInt(cleanedLine.replaceAll("dump\\(x", "").replaceAll("\\)", ""));
-                        dumpDataItem(dataIndex);
-                    }
-                    //dump(i) calls the dump method for a site
-                    else {
-                        int siteID = Integer.parseInt(cleanedLine.replaceAll("dump\\(", "").replaceAll("\\)", ""));
-                        if (siteID > 0 && siteID <= dataSites.size()) {
-                            dumpSite(siteID);
-                        } else {
-                            throw new Exception("Syntax error at line " + lineCounter + ". Site ID is out of scope\n\t" + line);
-                        }
-                    }
+                break;
+            //scans of a range of items
+            case CommandParser.SCAN:
+                if (transactionManager.transactions.contains(parser.getTransactionID())) {
+                    transactionManager.scan(parser.getTransactionID(), parser.getDataIndex(), parser.getLastIndex());
                 }
-                //fail commands
-                else if (cleanedLine.startsWith("fail(")) {
-                    int siteID = Integer.parseInt(cleanedLine.replaceAll("fail\\(", "").replaceAll("\\)", ""));
-                    if (siteID > 0 && siteID <= dataSites.size()) {
-                        dataSites.get(siteID - 1).fail();
-                    } else {
-                        throw new Exception("Syntax error at line " + lineCounter + ". Site ID is out of scope\n\t" + line);
-                    }
+                break;
+            //end commands
+            case CommandParser.END:
+                //make sure that the transaction calling the command hasn't aborted at an earlier point
+                if (transactionManager.transactions.contains(parser.getTransactionID())) {
+                    transactionManager.end(parser.getTransactionID());
                 }
-                //recover commands
-                else if (cleanedLine.startsWith("recover(")) {
-                    int siteID = Integer.parseInt(cleanedLine.replaceAll("recover\\(", "").replaceAll("\\)", ""));
-                    if (siteID > 0 && siteID <= dataSites.size()) {
-                        dataSites.get(siteID - 1).recover();
-                    } else {
-                        throw new Exception("Syntax error at line " + lineCounter + ". Site ID is out of scope\n\t" + line);
+                break;
+            //dump() calls the dumpAll method
+            case CommandParser.DUMP_ALL:
+                transactionManager.lockExclusive();
+                try {
+                    dumpAll();
+                } finally {
+                    transactionManager.unlockExclusive();
+                }
+                break;
+            //dump(xi) calls the dump method for one data item
+            case CommandParser.DUMP_ITEM:
+                transactionManager.lockExclusive();
+                try {
+                    dumpDataItem(parser.getDataIndex());
+                } finally {
+                    transactionManager.unlockExclusive();
+                }
+                break;
+            //dump(i) calls the dump method for a site
+            case CommandParser.DUMP_SITE:
+                if (parser.getSiteID() > 0 && parser.getSiteID() <= dataSites.size()) {
+                    transactionManager.lockExclusive();
+                    try {
+                        dumpSite(parser.getSiteID());
+                    } finally {
+                        transactionManager.unlockExclusive();
                     }
+                } else {
+                    throw parser.syntaxError(" Site ID is out of scope", "");
+                }
+                break;
+            //fail commands
+            case CommandParser.FAIL:
+                if (parser.getSiteID() > 0 && parser.getSiteID() <= dataSites.size()) {
+                    transactionManager.fail(dataSites.get(parser.getSiteID() - 1));
+                } else {
+                    throw parser.syntaxError(" Site ID is out of scope", "");
                 }
-                //unexpected input
-                else {
-                    throw new Exception("Syntax error at line " + lineCounter + ".\n\t" + line);
+                break;
+            //recover commands
+            case CommandParser.RECOVER:
+                if (parser.getSiteID() > 0 && parser.getSiteID() <= dataSites.size()) {
+                    transactionManager.recover(dataSites.get(parser.getSiteID() - 1));
+                } else {
+                    throw parser.syntaxError(" Site ID is out of scope", "");
                 }
+                break;
+        }
 
-                //The purpose of this is to add a delay between two line reads, so that two consecutive begins
-                // won't result in two transactions with the same start time, making is clear which transaction is older
-                TimeUnit.MILLISECONDS.sleep(1);
-            }
+        //copy a batch of items to the recovered sites between two commands
+        if (catchUp != null && catchUp.thread == null) {
+            catchUp.step();
         }
+        //each command is a tick of the clock of the lock waits
+        transactionManager.tick();
     }
 
     //This method iterates over all data sites and calls the dump function from each site that is running
@@ -226,7 +497,7 @@ public class Driver {
             if(dataSite.status == DataManager.RUNNING) {
                 dataSite.dump();
             } else {
-                System.out.println("Site " + dataSite.siteId + " is down.\n");
+                events.print("Site " + dataSite.siteId + " is down.\n" + Event.NEWLINE);
             }
         }
     }
@@ -237,15 +508,15 @@ public class Driver {
             if (dataSites.get(siteID).status == DataManager.RUNNING) {
                 dataSites.get(siteID - 1).dump();
             } else {
-                System.out.println("Site " + siteID + " is down.\n");
+                events.print("Site " + siteID + " is down.\n" + Event.NEWLINE);
             }
         }
     }
 
-    //This method iterates over the running sites, and calls the dump item method from each site
+    //This method iterates over the running sites holding the item, and calls the dump item method from each site
     public void dumpDataItem(int dataItem) throws Exception {
         boolean success = false;
-        for (DataManager dataSite : dataSites) {
+        for (DataManager dataSite : catalog.sites(dataItem)) {
             if(dataSite.status == DataManager.RUNNING) {
                 if (dataSite.dump(dataItem))
                     success = true;
@@ -253,18 +524,18 @@ public class Driver {
         }
 
         if(!success) {
-            System.out.println("Data item index " + dataItem + " is unavailable on running sites.\n");
+            events.print("Data item index " + dataItem + " is unavailable on running sites.\n" + Event.NEWLINE);
         }
     }
 
     //This is a debugging method to print the list of running transactions and the status of all data sites
     public void queryState() {
-        for (Transaction transaction : transactionManager.transactions) {
-            System.out.println(transaction);
+        for (Transaction transaction : transactionManager.transactions.values()) {
+            events.print(transaction + Event.NEWLINE);
         }
 
         for (DataManager dataSite : dataSites) {
-            System.out.println(dataSite);
+            events.print(dataSite + Event.NEWLINE);
         }
     }
 }
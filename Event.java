@@ -0,0 +1,124 @@
+/**
+ * One line of the output of the system, kept as its fields rather than as text, so that an event sink can put off
+ * formatting it, or skip it. Free text, such as the dumps and the report of a deadlock, is kept as it is.
+ *
+ * The sinks reuse events, so an event is only valid until the sink it was given to is done with it.
+ */
+public class Event {
+
+    //the kinds of events
+    public static final int TEXT = 0;
+    public static final int BEGIN = 1;
+    public static final int BEGIN_READ_ONLY = 2;
+    public static final int READ = 3;
+    public static final int CANNOT_READ = 4;
+    public static final int WRITE = 5;
+    public static final int WRITE_COPY = 6;
+    public static final int COMMIT = 7;
+    public static final int END_READ_ONLY = 8;
+    public static final int ABORT_ALL_SITES_DOWN = 9;
+    public static final int ABORT_SITE_FAILURE = 10;
+    public static final int ABORT_FAILED_SITE = 11;
+    public static final int ABORT_WAIT_TIMEOUT = 12;
+    public static final int ABORT_DEADLINE = 13;
+    public static final int ABORT_WAIT_DIE = 14;
+    public static final int ABORT_WOUND_WAIT = 15;
+    public static final int SITE_FAILED = 16;
+    public static final int SITE_ALREADY_FAILED = 17;
+    public static final int SITE_RECOVERED = 18;
+    public static final int SITE_ALREADY_RUNNING = 19;
+    public static final int SITE_CAUGHT_UP = 20;
+
+    static final String NEWLINE = System.lineSeparator();
+
+    int type;
+    int transactionID;
+    int dataItem;
+    //the site of the event, or the other transaction of an abort by wait-die or wound-wait
+    int siteId;
+    int value;
+    String text;
+
+    void set(int type, int transactionID, int dataItem, int siteId, int value, String text) {
+        this.type = type;
+        this.transactionID = transactionID;
+        this.dataItem = dataItem;
+        this.siteId = siteId;
+        this.value = value;
+        this.text = text;
+    }
+
+    /**
+     * Append the text of the event, exactly as the system has always printed it, with the line separators
+     *
+     * @param out - the text being written
+     */
+    public void format(StringBuilder out) {
+        switch (type) {
+            case TEXT:
+                out.append(text);
+                return;
+            case BEGIN:
+                out.append('T').append(transactionID).append(" starts as a regular transaction");
+                break;
+            case BEGIN_READ_ONLY:
+                out.append('T').append(transactionID).append(" starts as a read-only transaction");
+                break;
+            case READ:
+                out.append('T').append(transactionID).append(" reads data item x").append(dataItem).append('.').append(siteId).append(" = ").append(value);
+                break;
+            case CANNOT_READ:
+                out.append('T').append(transactionID).append(" cannot read item x").append(dataItem);
+                break;
+            case WRITE:
+                out.append('T').append(transactionID).append(" attempts to write the value ").append(value).append(" to data item x").append(dataItem);
+                break;
+            case WRITE_COPY:
+                out.append('T').append(transactionID).append(" writes value ").append(value).append(" to data item x").append(dataItem).append('.').append(siteId);
+                break;
+            case COMMIT:
+                out.append(NEWLINE).append('T').append(transactionID).append(" commits").append(NEWLINE);
+                break;
+            case END_READ_ONLY:
+                out.append('T').append(transactionID).append(" ended");
+                break;
+            case ABORT_ALL_SITES_DOWN:
+                out.append(NEWLINE).append('T').append(transactionID).append(" aborted because all sites are down.");
+                break;
+            case ABORT_SITE_FAILURE:
+                out.append(NEWLINE).append('T').append(transactionID).append(" aborted because of site failure.");
+                break;
+            case ABORT_FAILED_SITE:
+                out.append("Transaction T").append(transactionID).append(" aborted because of failure of site ").append(siteId);
+                break;
+            case ABORT_WAIT_TIMEOUT:
+                out.append(NEWLINE).append("Transaction T").append(transactionID).append(" aborted because its wait for x").append(dataItem).append(" timed out").append(NEWLINE);
+                break;
+            case ABORT_DEADLINE:
+                out.append(NEWLINE).append("Transaction T").append(transactionID).append(" aborted because it reached its deadline while waiting for x").append(dataItem).append(NEWLINE);
+                break;
+            case ABORT_WAIT_DIE:
+                out.append(NEWLINE).append("Transaction T").append(transactionID).append(" aborted by wait-die, as it is younger than T").append(siteId).append(NEWLINE);
+                break;
+            case ABORT_WOUND_WAIT:
+                out.append(NEWLINE).append("Transaction T").append(transactionID).append(" aborted by wound-wait, as it is younger than T").append(siteId).append(NEWLINE);
+                break;
+            case SITE_FAILED:
+                out.append("Site ").append(siteId).append(" failed.");
+                break;
+            case SITE_ALREADY_FAILED:
+                out.append("Site ").append(siteId).append(" is already failed.");
+                break;
+            case SITE_RECOVERED:
+                out.append("Site ").append(siteId).append(" recovered.");
+                break;
+            case SITE_ALREADY_RUNNING:
+                out.append("Site ").append(siteId).append(" is already running.");
+                break;
+            case SITE_CAUGHT_UP:
+                out.append("Site ").append(siteId).append(" caught up.");
+                break;
+        }
+        out.append(NEWLINE);
+    }
+}
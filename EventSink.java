@@ -0,0 +1,87 @@
+/**
+ * Where the output of the system goes. The transaction managers, the sites and the driver report what they do as
+ * events, and the sink decides when and whether they are turned into text.
+ *
+ * TextEventSink prints each event to System.out as it happens, which is the output of the system as it has always
+ * been. AsyncEventSink queues the events in a ring buffer, and a background thread formats and writes them, so that
+ * the commands don't wait for the console. QuietEventSink drops them, for benchmarks.
+ */
+public abstract class EventSink {
+
+    /**
+     * Take an event. The fields are copied, so the caller doesn't allocate anything
+     *
+     * @param type - the kind of event, one of the constants of Event
+     * @param transactionID - the transaction of the event
+     * @param dataItem - the data item of the event
+     * @param siteId - the site of the event, or the other transaction of an abort by wait-die or wound-wait
+     * @param value - the value read or written
+     * @param text - the text of a TEXT event, and null otherwise
+     */
+    abstract void emit(int type, int transactionID, int dataItem, int siteId, int value, String text);
+
+    //write the events that were taken and not written yet, and stop taking more
+    public void close() {
+    }
+
+    //whether the events are dropped, so the callers can skip building free text
+    public boolean isQuiet() {
+        return false;
+    }
+
+    //free text, written exactly as given
+    public void print(String text) {
+        emit(Event.TEXT, 0, 0, 0, 0, text);
+    }
+
+    public void begin(int transactionID) {
+        emit(Event.BEGIN, transactionID, 0, 0, 0, null);
+    }
+
+    public void beginReadOnly(int transactionID) {
+        emit(Event.BEGIN_READ_ONLY, transactionID, 0, 0, 0, null);
+    }
+
+    public void read(int transactionID, int dataItem, int siteId, int value) {
+        emit(Event.READ, transactionID, dataItem, siteId, value, null);
+    }
+
+    public void cannotRead(int transactionID, int dataItem) {
+        emit(Event.CANNOT_READ, transactionID, dataItem, 0, 0, null);
+    }
+
+    //a write command that is issued
+    public void write(int transactionID, int dataItem, int value) {
+        emit(Event.WRITE, transactionID, dataItem, 0, value, null);
+    }
+
+    //a value written to a copy at commit
+    public void writeCopy(int transactionID, int dataItem, int siteId, int value) {
+        emit(Event.WRITE_COPY, transactionID, dataItem, siteId, value, null);
+    }
+
+    public void commit(int transactionID) {
+        emit(Event.COMMIT, transactionID, 0, 0, 0, null);
+    }
+
+    public void endReadOnly(int transactionID) {
+        emit(Event.END_READ_ONLY, transactionID, 0, 0, 0, null);
+    }
+
+    /**
+     * A transaction that aborts for a reason that involves at most an item and a site or another transaction
+     *
+     * @param type - one of the ABORT_ constants of Event
+     * @param transactionID - the transaction that aborts
+     * @param dataItem - the item it waited for, for a timeout
+     * @param siteId - the site that failed, or the older transaction for wait-die and wound-wait
+     */
+    public void abort(int type, int transactionID, int dataItem, int siteId) {
+        emit(type, transactionID, dataItem, siteId, 0, null);
+    }
+
+    //a site that fails, recovers, or catches up, as one of the SITE_ constants of Event
+    public void site(int type, int siteId) {
+        emit(type, 0, 0, siteId, 0, null);
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * The selection of the project specification: a read tries the copies in the order of the site IDs, so the site with
+ * the lowest ID that can grant the lock serves the read
+ */
+public class FirstCopySelection implements ReplicaSelection {
+
+    @Override
+    public DataManager[] order(Transaction t, int item, DataManager[] sites) {
+        return sites;
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.Arrays;
+
+/**
+ * An item store that keeps its columns in arrays on the heap
+ */
+public class HeapItemStore extends ItemStore {
+
+    //the latest committed value of each slot, its commit time, and 1 if the copy can be read
+    int[] values = new int[INITIAL_CAPACITY];
+    long[] commitTimes = new long[INITIAL_CAPACITY];
+    byte[] available = new byte[INITIAL_CAPACITY];
+
+    @Override
+    void grow(int capacity) {
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, capacity);
+            commitTimes = Arrays.copyOf(commitTimes, capacity);
+            available = Arrays.copyOf(available, capacity);
+        }
+    }
+
+    @Override
+    int valueAt(int slot) {
+        return values[slot];
+    }
+
+    @Override
+    long commitTimeAt(int slot) {
+        return commitTimes[slot];
+    }
+
+    @Override
+    void set(int slot, int value, long commitTime) {
+        values[slot] = value;
+        commitTimes[slot] = commitTime;
+    }
+
+    @Override
+    boolean availableAt(int slot) {
+        return available[slot] != 0;
+    }
+
+    @Override
+    void setAvailableAt(int slot, boolean readable) {
+        available[slot] = (byte) (readable ? 1 : 0);
+    }
+}
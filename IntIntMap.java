@@ -0,0 +1,134 @@
+import java.util.Arrays;
+
+/**
+ * A map from int keys to int values, with open addressing and linear probing, so that neither the keys nor the values
+ * are boxed and there is no entry object per key. Integer.MIN_VALUE can't be used as a key, it marks the free slots.
+ *
+ * Like a HashMap, the map can be read by many threads at once as long as nobody changes it.
+ */
+public class IntIntMap {
+
+    static final int FREE = Integer.MIN_VALUE;
+    static final int INITIAL_CAPACITY = 16;
+
+    int[] keys;
+    int[] values;
+    int size = 0;
+    //the map grows once it is three quarters full
+    int threshold;
+
+    public IntIntMap() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param expected - the number of keys the map can hold before it grows
+     */
+    public IntIntMap(int expected) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity * 3 / 4 < expected) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(int key) {
+        return keys[find(key)] != FREE;
+    }
+
+    /**
+     * @param key
+     * @param absent - the value returned if the key is not in the map
+     * @return - the value of the key, or absent
+     */
+    public int get(int key, int absent) {
+        int index = find(key);
+        return keys[index] == FREE ? absent : values[index];
+    }
+
+    public void put(int key, int value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("The key " + key + " can't be stored");
+        }
+        int index = find(key);
+        if (keys[index] == FREE) {
+            keys[index] = key;
+            size++;
+        }
+        values[index] = value;
+        if (size > threshold) {
+            resize(keys.length * 2);
+        }
+    }
+
+    /**
+     * @param key
+     * @return - true if the key was in the map
+     */
+    public boolean remove(int key) {
+        int index = find(key);
+        if (keys[index] == FREE) {
+            return false;
+        }
+        //move back the keys after it that would no longer be found once their probe sequence has a hole
+        int mask = keys.length - 1;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (keys[next] != FREE) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = FREE;
+        size--;
+        return true;
+    }
+
+    //the index holding the key, or the free index where it would be added
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (keys[index] != FREE && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    //spread consecutive keys over the table
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        values = new int[capacity];
+        threshold = capacity * 3 / 4;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int index = find(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.Arrays;
+
+/**
+ * A map from int keys to objects, with open addressing and linear probing, for maps that only hold a few of many
+ * possible keys and should not box them. Integer.MIN_VALUE can't be used as a key, it marks the free slots.
+ *
+ * Like a HashMap, the map can be read by many threads at once as long as nobody changes it.
+ */
+public class IntObjectMap<V> {
+
+    static final int FREE = Integer.MIN_VALUE;
+    static final int INITIAL_CAPACITY = 16;
+
+    int[] keys;
+    Object[] values;
+    int size = 0;
+    //the map grows once it is three quarters full
+    int threshold;
+
+    public IntObjectMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param key
+     * @return - the value of the key, or null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        return (V) values[find(key)];
+    }
+
+    public void put(int key, V value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("The key " + key + " can't be stored");
+        }
+        int index = find(key);
+        if (keys[index] == FREE) {
+            keys[index] = key;
+            size++;
+        }
+        values[index] = value;
+        if (size > threshold) {
+            resize(keys.length * 2);
+        }
+    }
+
+    /**
+     * @param key
+     * @return - the value the key had, or null if the key was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int index = find(key);
+        if (keys[index] == FREE) {
+            return null;
+        }
+        V removed = (V) values[index];
+        //move back the keys after it that would no longer be found once their probe sequence has a hole
+        int mask = keys.length - 1;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (keys[next] != FREE) {
+            int home = IntIntMap.hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = FREE;
+        values[hole] = null;
+        size--;
+        return removed;
+    }
+
+    //the keys in the map
+    public int[] keys() {
+        int[] stored = new int[size];
+        int count = 0;
+        for (int key : keys) {
+            if (key != FREE) {
+                stored[count++] = key;
+            }
+        }
+        return stored;
+    }
+
+    //the index holding the key, or the free index where it would be added
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int index = IntIntMap.hash(key) & mask;
+        while (keys[index] != FREE && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        values = new Object[capacity];
+        threshold = capacity * 3 / 4;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int index = find(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The copies of the data items on one site, stored in columns instead of an object per item.
+ *
+ * Every item gets a slot when it is added, and the slot of an item is found in an open addressing map. The value of
+ * the item, the commit time of that value and whether the copy can be read are kept by slot, in arrays on the heap or
+ * off the heap depending on the subclass. The older versions of an item are only kept while a running read-only
+ * transaction may read them, so they are stored apart, in a map from the slot to the versions. The versions that no
+ * read-only transaction can read are dropped when the item commits again, and when the oldest read-only transaction
+ * ends, so the map is empty while no read-only transaction runs.
+ *
+ * The items are added and removed while no transaction runs. Once they are added, the concurrent transaction managers
+ * read and commit the copies of different items at the same time, each under the lock of its item, so every slot has
+ * its own entry in each column, and the map of the older versions is synchronized.
+ */
+public abstract class ItemStore {
+
+    static final int NONE = -1;
+    static final int INITIAL_CAPACITY = 16;
+
+    //the slot of each item, and the item of each slot
+    IntIntMap slots = new IntIntMap();
+    int[] items = new int[INITIAL_CAPACITY];
+
+    //the versions older than the latest one that read-only transactions may still read, oldest first, by slot
+    IntObjectMap<ArrayList<Version>> history = new IntObjectMap<ArrayList<Version>>();
+
+    //the number of slots handed out, and the largest number of items the store held
+    int used = 0;
+    int peak = 0;
+
+    //make room for the given number of slots in the columns
+    abstract void grow(int capacity);
+
+    abstract int valueAt(int slot);
+
+    abstract long commitTimeAt(int slot);
+
+    //set the latest committed value of a slot and its commit time
+    abstract void set(int slot, int value, long commitTime);
+
+    abstract boolean availableAt(int slot);
+
+    abstract void setAvailableAt(int slot, boolean readable);
+
+    public int size() {
+        return slots.size();
+    }
+
+    public boolean contains(int item) {
+        return slots.containsKey(item);
+    }
+
+    /**
+     * Add an item, or reset it if it is already stored, with a value that can be read
+     *
+     * @param item
+     * @param value - the initial value of the item
+     */
+    public void add(int item, int value) {
+        int slot = slots.get(item, NONE);
+        if (slot == NONE) {
+            if (used == items.length) {
+                items = Arrays.copyOf(items, items.length * 2);
+            }
+            grow(items.length);
+            slot = used++;
+            items[slot] = item;
+            slots.put(item, slot);
+            peak = Math.max(peak, slots.size());
+        } else {
+            synchronized (history) {
+                history.remove(slot);
+            }
+        }
+        set(slot, value, TimestampOracle.INITIAL);
+        setAvailableAt(slot, true);
+    }
+
+    //the slot of a removed item is not handed out again
+    public void remove(int item) {
+        int slot = slots.get(item, NONE);
+        if (slot != NONE) {
+            slots.remove(item);
+            synchronized (history) {
+                history.remove(slot);
+            }
+        }
+    }
+
+    //the latest committed value of a stored item
+    public int value(int item) {
+        return valueAt(slot(item));
+    }
+
+    //the commit time of the latest value of a stored item
+    public long commitTime(int item) {
+        return commitTimeAt(slot(item));
+    }
+
+    //whether the copy is stored and can be read, that is it is not waiting for a write after the site recovered
+    public boolean isAvailable(int item) {
+        int slot = slots.get(item, NONE);
+        return slot != NONE && availableAt(slot);
+    }
+
+    public void setAvailable(int item, boolean readable) {
+        setAvailableAt(slot(item), readable);
+    }
+
+    /**
+     * Commit a new value of the item as its latest version. The previous version is kept if a running read-only
+     * transaction may still read it, and the versions that none can read any more are dropped
+     *
+     * @param item - a stored item
+     * @param value - the committed value
+     * @param commitTime - the commit time of the transaction that wrote the value
+     * @param oldestSnapshot - the start time of the oldest running read-only transaction
+     */
+    public void commit(int item, int value, long commitTime, long oldestSnapshot) {
+        int slot = slot(item);
+        if (commitTime <= oldestSnapshot) {
+            //the new version is the one every read-only transaction reads. Whether there are older versions at all is
+            //checked without the lock, since only commits of this item, which are not concurrent, add versions of it
+            if (!history.isEmpty()) {
+                synchronized (history) {
+                    history.remove(slot);
+                }
+            }
+        } else {
+            synchronized (history) {
+                ArrayList<Version> older = history.get(slot);
+                if (older == null) {
+                    older = new ArrayList<Version>();
+                    history.put(slot, older);
+                }
+                older.add(new Version(commitTimeAt(slot), valueAt(slot)));
+                //keep the version the oldest read-only transaction reads, and the ones after it
+                int keep = versionIndexAt(older, oldestSnapshot);
+                if (keep > 0) {
+                    older.subList(0, keep).clear();
+                }
+                //the new latest version is set under the lock, so that prune sees it together with the version it
+                //moved to the history
+                set(slot, value, commitTime);
+                return;
+            }
+        }
+        set(slot, value, commitTime);
+    }
+
+    /**
+     * Drop the older versions that no running read-only transaction can read any more. Called when the oldest
+     * read-only transaction ends
+     *
+     * @param oldestSnapshot - the start time of the oldest running read-only transaction, or Long.MAX_VALUE if none is
+     *                       running
+     */
+    public void prune(long oldestSnapshot) {
+        if (history.isEmpty()) {
+            return;
+        }
+        synchronized (history) {
+            for (int slot : history.keys()) {
+                //the oldest read-only transaction reads the latest version, or one of the versions after the kept one
+                if (commitTimeAt(slot) <= oldestSnapshot) {
+                    history.remove(slot);
+                } else {
+                    ArrayList<Version> older = history.get(slot);
+                    int keep = versionIndexAt(older, oldestSnapshot);
+                    if (keep > 0) {
+                        older.subList(0, keep).clear();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the version that a transaction that started at the given time reads
+     *
+     * @param item - a stored item
+     * @param time - the start time of the read-only transaction
+     * @return - the latest version committed at or before that time, or null if there is none
+     */
+    public Version versionAt(int item, long time) {
+        int slot = slot(item);
+        long commitTime = commitTimeAt(slot);
+        if (commitTime <= time) {
+            return new Version(commitTime, valueAt(slot));
+        }
+        synchronized (history) {
+            ArrayList<Version> older = history.get(slot);
+            if (older == null) {
+                return null;
+            }
+            int index = versionIndexAt(older, time);
+            return index < 0 ? null : older.get(index);
+        }
+    }
+
+    //the stored items, in the order in which they were added
+    public int[] items() {
+        int[] stored = new int[slots.size()];
+        int count = 0;
+        for (int slot = 0; slot < used; slot++) {
+            if (slots.get(items[slot], NONE) == slot) {
+                stored[count++] = items[slot];
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * The stored items in the order in which a HashMap with the items as keys would go over them, which is the order
+     * in which the sites have always printed their items: by the bucket of the item in a table sized for the largest
+     * number of items the map held, and by the order in which the items were added within a bucket
+     *
+     * @return - the items in printing order
+     */
+    public int[] itemsInPrintOrder() {
+        int capacity = 16;
+        while (peak > capacity * 3 / 4) {
+            capacity *= 2;
+        }
+        int[] stored = items();
+        long[] order = new long[stored.length];
+        int count = 0;
+        for (int slot = 0; slot < used; slot++) {
+            if (slots.get(items[slot], NONE) == slot) {
+                int h = items[slot];
+                long bucket = (h ^ (h >>> 16)) & (capacity - 1);
+                order[count++] = bucket << 32 | slot;
+            }
+        }
+        Arrays.sort(order);
+        for (int i = 0; i < count; i++) {
+            stored[i] = items[(int) order[i]];
+        }
+        return stored;
+    }
+
+    int slot(int item) {
+        int slot = slots.get(item, NONE);
+        if (slot == NONE) {
+            throw new IllegalArgumentException("Data item x" + item + " is not stored on this site");
+        }
+        return slot;
+    }
+
+    //binary search for the index of the latest version committed at or before the given time, or -1
+    private static int versionIndexAt(ArrayList<Version> versions, long time) {
+        int low = 0;
+        int high = versions.size() - 1;
+        int index = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (versions.get(middle).commitTime <= time) {
+                index = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return index;
+    }
+}
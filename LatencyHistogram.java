@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets that double in width.
+ *
+ * Bucket i counts the latencies below 2^i nanoseconds that are not counted by a lower bucket, and the last bucket
+ * counts everything longer. Recording a latency is a few atomic increments and doesn't lock or allocate, so the
+ * concurrent transaction managers record into the same histogram from any thread, and a snapshot can be taken while
+ * they do. A snapshot taken while latencies are recorded may count a latency in the count but not yet in a bucket.
+ */
+public class LatencyHistogram {
+
+    //the buckets go up to 2^39 nanoseconds, about nine minutes
+    static final int BUCKETS = 40;
+
+    AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    AtomicLong count = new AtomicLong();
+    AtomicLong sum = new AtomicLong();
+    AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos - the latency to record, in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long previous = max.get();
+        while (nanos > previous && !max.compareAndSet(previous, nanos)) {
+            previous = max.get();
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long sum() {
+        return sum.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    //the upper bound of the bucket, in nanoseconds, or Long.MAX_VALUE for the last one
+    static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * @param fraction - the fraction of the latencies, between 0 and 1
+     * @return - the upper bound of the bucket below which that fraction of the latencies fall, capped by the longest
+     * latency, or 0 if nothing was recorded
+     */
+    public long percentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBound(i), max());
+            }
+        }
+        return max();
+    }
+}
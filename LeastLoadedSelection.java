@@ -0,0 +1,46 @@
+/**
+ * Reads try first the copy with the shortest lock queue on the item, counting the owners and the waiting commands,
+ * and among copies with the same queue the one on the site that served the fewest reads. The other copies follow in
+ * the order of their sites, so a read that can't use the first copy falls back as with the first copy selection
+ */
+public class LeastLoadedSelection implements ReplicaSelection {
+
+    @Override
+    public DataManager[] order(Transaction t, int item, DataManager[] sites) {
+        if (sites.length < 2) {
+            return sites;
+        }
+        //a single pass over the copies of the item, reading the load of each one once. Copies that can't be read are
+        //only picked if no copy can
+        int best = 0;
+        long bestDepth = Long.MAX_VALUE;
+        long bestServed = Long.MAX_VALUE;
+        for (int i = 0; i < sites.length; i++) {
+            DataManager dataSite = sites[i];
+            long depth = dataSite.isReadable(item) ? queueDepth(dataSite, item) : Long.MAX_VALUE;
+            if (depth > bestDepth) {
+                continue;
+            }
+            long served = dataSite.readsServed();
+            if (depth < bestDepth || served < bestServed) {
+                best = i;
+                bestDepth = depth;
+                bestServed = served;
+            }
+        }
+        if (best == 0) {
+            return sites;
+        }
+        DataManager[] ordered = new DataManager[sites.length];
+        ordered[0] = sites[best];
+        System.arraycopy(sites, 0, ordered, 1, best);
+        System.arraycopy(sites, best + 1, ordered, best + 1, sites.length - best - 1);
+        return ordered;
+    }
+
+    //the number of transactions holding a lock on the item on the site, and of commands waiting for one
+    static long queueDepth(DataManager dataSite, int item) {
+        LockHeader header = dataSite.lockTable.get(item);
+        return header == null ? 0 : header.owners.size() + header.waiters.size();
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * The lock header of one data item on one site.
+ * It keeps the mode the item is currently locked in, the number of transactions sharing a read lock, the set of
+ * transactions holding a lock, and the queue of commands waiting for the item, so that deciding whether a lock can be
+ * granted, granting it, and releasing it do not depend on how many transactions hold the item.
+ */
+public class LockHeader {
+
+    public static final int NONE = -1;
+
+    //the mode the item is locked in, only meaningful when the item has owners
+    boolean grantedMode = LockTuple.READ;
+    //the number of owners holding a read lock only
+    int sharedCount = 0;
+    //the transaction holding the write lock, or NONE
+    int writeOwner = NONE;
+
+    //The owners of the item. The key is the transaction ID and the value is the strongest lock type it holds.
+    //LinkedHashMap is used to preserve the order in which the locks were granted
+    LinkedHashMap<Integer, Boolean> owners = new LinkedHashMap<Integer, Boolean>();
+
+    //The commands waiting for this item in the order in which they arrived
+    LinkedHashSet<Command> waiters = new LinkedHashSet<Command>();
+
+    //a read lock can be granted unless another transaction holds the write lock
+    public boolean canRead(int transactionID) {
+        return writeOwner == NONE || writeOwner == transactionID;
+    }
+
+    //a write lock can be granted if there are no owners, or if the transaction is the only owner
+    public boolean canWrite(int transactionID) {
+        return owners.isEmpty() || (owners.size() == 1 && owners.containsKey(transactionID));
+    }
+
+    public void grant(int transactionID, boolean lockType) {
+        Boolean held = owners.get(transactionID);
+        if (lockType == LockTuple.WRITE) {
+            if (held != null && held == LockTuple.READ) {
+                sharedCount--;
+            }
+            owners.put(transactionID, LockTuple.WRITE);
+            writeOwner = transactionID;
+            grantedMode = LockTuple.WRITE;
+        } else if (held == null) {
+            owners.put(transactionID, LockTuple.READ);
+            sharedCount++;
+            if (writeOwner == NONE) {
+                grantedMode = LockTuple.READ;
+            }
+        }
+    }
+
+    //release every lock the transaction holds on the item, and return whether it held any
+    public boolean release(int transactionID) {
+        Boolean held = owners.remove(transactionID);
+        if (held == null) {
+            return false;
+        }
+        if (held == LockTuple.READ) {
+            sharedCount--;
+        } else {
+            writeOwner = NONE;
+            grantedMode = LockTuple.READ;
+        }
+        return true;
+    }
+
+    public boolean holdsWrite(int transactionID) {
+        return writeOwner == transactionID;
+    }
+
+    public boolean isOwner(int transactionID) {
+        return owners.containsKey(transactionID);
+    }
+
+    public void enqueue(Command command) {
+        waiters.add(command);
+    }
+
+    public void dequeue(Command command) {
+        waiters.remove(command);
+    }
+
+    //an empty header has no owners and no waiters, and can be removed from the lock table
+    public boolean isEmpty() {
+        return owners.isEmpty() && waiters.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        String output = "";
+        for (Map.Entry<Integer, Boolean> entry : owners.entrySet()) {
+            output += "\t" + new LockTuple(entry.getKey(), entry.getValue()).toString();
+        }
+        return output;
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters and latency histograms of the engine, and the snapshots of them that are exported.
+ *
+ * The transaction manager keeps one instance, with the aborts by reason, the latency of commits, and the time spent
+ * looking for deadlocks. Each site keeps the latency of the lock waits on its items. Only the commit latency is
+ * recorded on the path of a command that doesn't wait; everything else is recorded when a command waits or a
+ * transaction aborts. The depth of the queues and the size of the waits-for graph are read when a snapshot is taken,
+ * without the locks of the engine, so they can be a little out of date. A snapshot is written either as JSON or in the
+ * text format of Prometheus.
+ */
+public class Metrics {
+
+    //the reasons a transaction aborts
+    public static final int DEADLOCK = 0;
+    public static final int SITE_FAILURE = 1;
+    public static final int ALL_SITES_DOWN = 2;
+    public static final int WAIT_DIE = 3;
+    public static final int WOUND_WAIT = 4;
+    public static final int LOCK_WAIT_TIMEOUT = 5;
+    public static final int DEADLINE = 6;
+    public static final int ABANDONED = 7;
+    static final String[] ABORT_REASONS = {"deadlock", "site_failure", "all_sites_down", "wait_die", "wound_wait",
+            "lock_wait_timeout", "deadline", "abandoned"};
+
+    //the percentiles of the histograms in the JSON snapshots, and the first bucket of the histograms for Prometheus,
+    //about a microsecond, which also counts the shorter latencies
+    static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+    static final int FIRST_EXPORTED_BUCKET = 10;
+
+    AtomicLongArray aborts = new AtomicLongArray(ABORT_REASONS.length);
+    LatencyHistogram commits = new LatencyHistogram();
+    LatencyHistogram deadlockDetection = new LatencyHistogram();
+
+    //count an abort for the given reason
+    public void aborted(int reason) {
+        aborts.incrementAndGet(reason);
+    }
+
+    //the number of transactions aborted so far, each counted once under the reason it first aborted for
+    public long totalAborts() {
+        long total = 0;
+        for (int i = 0; i < aborts.length(); i++) {
+            total += aborts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param transactionManager - the transaction manager whose metrics these are
+     * @param dataSites - the sites
+     * @return - a snapshot of the metrics as a JSON object
+     */
+    public String json(TransactionManager transactionManager, List<DataManager> dataSites) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n");
+        json.append("  \"transactions\": ").append(transactionManager.transactions.size()).append(",\n");
+        json.append("  \"waitingCommands\": ").append(transactionManager.waitingCommands.size()).append(",\n");
+        json.append("  \"readyCommands\": ").append(transactionManager.readyCommands.size()).append(",\n");
+        json.append("  \"waitsForEdges\": ").append(transactionManager.waitsFor.size()).append(",\n");
+        json.append("  \"aborts\": {");
+        for (int i = 0; i < ABORT_REASONS.length; i++) {
+            json.append("\"").append(ABORT_REASONS[i]).append("\": ").append(aborts.get(i)).append(", ");
+        }
+        json.append("\"total\": ").append(totalAborts()).append("},\n");
+        json.append("  \"commitLatency\": ");
+        json(json, commits);
+        json.append(",\n  \"deadlockDetection\": ");
+        json(json, deadlockDetection);
+        json.append(",\n  \"sites\": [");
+        for (int i = 0; i < dataSites.size(); i++) {
+            DataManager dataSite = dataSites.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"site\": ").append(dataSite.siteId);
+            json.append(", \"up\": ").append(dataSite.status == DataManager.RUNNING);
+            json.append(", \"reads\": ").append(dataSite.reads.sum());
+            json.append(", \"lockedItems\": ").append(dataSite.lockTable.size());
+            json.append(", \"lockWaits\": ");
+            json(json, dataSite.lockWaits);
+            json.append("}");
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+
+    //a histogram as a JSON object of its count, the sum, the longest latency and a few percentiles, in nanoseconds
+    private static void json(StringBuilder json, LatencyHistogram histogram) {
+        json.append("{\"count\": ").append(histogram.count());
+        json.append(", \"sumNanos\": ").append(histogram.sum());
+        json.append(", \"maxNanos\": ").append(histogram.max());
+        for (double percentile : PERCENTILES) {
+            json.append(", \"p").append(Math.round(percentile * 100)).append("Nanos\": ").append(histogram.percentile(percentile));
+        }
+        json.append("}");
+    }
+
+    /**
+     * @param transactionManager - the transaction manager whose metrics these are
+     * @param dataSites - the sites
+     * @return - a snapshot of the metrics in the text format of Prometheus, with the latencies in seconds
+     */
+    public String prometheus(TransactionManager transactionManager, List<DataManager> dataSites) {
+        StringBuilder text = new StringBuilder();
+        gauge(text, "db_transactions", "Running transactions", transactionManager.transactions.size());
+        gauge(text, "db_waiting_commands", "Commands waiting for a lock", transactionManager.waitingCommands.size());
+        gauge(text, "db_ready_commands", "Woken up commands waiting to be attempted again", transactionManager.readyCommands.size());
+        gauge(text, "db_waits_for_edges", "Edges of the waits-for graph", transactionManager.waitsFor.size());
+
+        text.append("# HELP db_aborts_total Aborted transactions by reason\n");
+        text.append("# TYPE db_aborts_total counter\n");
+        for (int i = 0; i < ABORT_REASONS.length; i++) {
+            text.append("db_aborts_total{reason=\"").append(ABORT_REASONS[i]).append("\"} ").append(aborts.get(i)).append("\n");
+        }
+
+        text.append("# HELP db_commit_seconds Time to commit a transaction\n");
+        text.append("# TYPE db_commit_seconds histogram\n");
+        histogram(text, "db_commit_seconds", "", commits);
+        text.append("# HELP db_deadlock_detection_seconds Time to look for a cycle in the waits-for graph\n");
+        text.append("# TYPE db_deadlock_detection_seconds histogram\n");
+        histogram(text, "db_deadlock_detection_seconds", "", deadlockDetection);
+
+        text.append("# HELP db_site_up Whether the site is running\n");
+        text.append("# TYPE db_site_up gauge\n");
+        for (DataManager dataSite : dataSites) {
+            text.append("db_site_up{site=\"").append(dataSite.siteId).append("\"} ").append(dataSite.status == DataManager.RUNNING ? 1 : 0).append("\n");
+        }
+        text.append("# HELP db_site_reads_total Reads served by the site\n");
+        text.append("# TYPE db_site_reads_total counter\n");
+        for (DataManager dataSite : dataSites) {
+            text.append("db_site_reads_total{site=\"").append(dataSite.siteId).append("\"} ").append(dataSite.reads.sum()).append("\n");
+        }
+        text.append("# HELP db_lock_wait_seconds Time a command waited in the lock queue of an item on the site\n");
+        text.append("# TYPE db_lock_wait_seconds histogram\n");
+        for (DataManager dataSite : dataSites) {
+            histogram(text, "db_lock_wait_seconds", "site=\"" + dataSite.siteId + "\",", dataSite.lockWaits);
+        }
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        text.append("# TYPE ").append(name).append(" gauge\n");
+        text.append(name).append(" ").append(value).append("\n");
+    }
+
+    //the cumulative buckets of a histogram, up to the highest one that counted anything
+    private static void histogram(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+        int highest = FIRST_EXPORTED_BUCKET;
+        for (int i = FIRST_EXPORTED_BUCKET; i < LatencyHistogram.BUCKETS - 1; i++) {
+            if (histogram.counts.get(i) > 0) {
+                highest = i;
+            }
+        }
+        long cumulative = 0;
+        for (int i = 0; i <= highest; i++) {
+            cumulative += histogram.counts.get(i);
+            if (i < FIRST_EXPORTED_BUCKET) {
+                continue;
+            }
+            text.append(name).append("_bucket{").append(labels).append("le=\"").append(LatencyHistogram.upperBound(i) / 1e9).append("\"} ").append(cumulative).append("\n");
+        }
+        //the count is taken from the buckets, so that it is never below a bucket that was read before it
+        for (int i = highest + 1; i < LatencyHistogram.BUCKETS; i++) {
+            cumulative += histogram.counts.get(i);
+        }
+        text.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(cumulative).append("\n");
+        String plainLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        text.append(name).append("_sum").append(plainLabels).append(" ").append(histogram.sum() / 1e9).append("\n");
+        text.append(name).append("_count").append(plainLabels).append(" ").append(cumulative).append("\n");
+    }
+}
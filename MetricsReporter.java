@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes a snapshot of the metrics of the engine to a file periodically, from a background thread, and once more when
+ * it is stopped. A file whose name ends with .json gets JSON, and any other file the text format of Prometheus, for
+ * the textfile collector of its node exporter.
+ *
+ * Each snapshot is written to a temporary file that is then moved over the file, so that a reader never sees half a
+ * snapshot. The snapshots read the metrics without the locks of the engine, so they don't hold up the commands.
+ */
+public class MetricsReporter implements Runnable {
+
+    public static final long DEFAULT_PERIOD_MILLIS = 1000;
+
+    Path path;
+    Path temporary;
+    boolean json;
+    long periodMillis;
+
+    Thread thread;
+    volatile boolean running = true;
+
+    /**
+     * @param path - the file the snapshots are written to
+     * @param periodMillis - the time between two snapshots
+     */
+    public MetricsReporter(Path path, long periodMillis) {
+        this.path = path;
+        this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        this.json = path.getFileName().toString().endsWith(".json");
+        this.periodMillis = periodMillis;
+    }
+
+    //write a snapshot of the metrics of the driver's transaction manager and sites
+    public void write() throws IOException {
+        Driver driver = Driver.driver;
+        Metrics metrics = driver.transactionManager.metrics;
+        String snapshot = json ? metrics.json(driver.transactionManager, driver.dataSites)
+                : metrics.prometheus(driver.transactionManager, driver.dataSites);
+        Files.write(temporary, snapshot.getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void start() {
+        thread = new Thread(this, "metrics reporter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //stop the background thread, and write the last snapshot
+    public void stop() throws Exception {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+        write();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                Thread.sleep(periodMillis);
+                try {
+                    write();
+                } catch (IOException e) {
+                    System.err.println("Cannot write the metrics to " + path + ": " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            //stopped
+        }
+    }
+}
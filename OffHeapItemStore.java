@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * An item store that keeps the values, the commit times and the availability of the copies off the heap, for sites
+ * with so many items that their columns would make the collections of the heap too slow.
+ *
+ * The columns are kept in one record per slot - the commit time, the value, and whether the copy can be read - in
+ * pages of direct memory, or in pages of a file mapped into memory, which the operating system can write out when
+ * memory is short. A record never spans two pages. The file only backs the memory of the store: it is emptied when the
+ * store is created, and the committed values are restored from the redo logs, as with the heap store.
+ *
+ * The index of the items and the older versions stay on the heap. The index holds no references, so the collector
+ * doesn't trace it, and older versions are only kept while read-only transactions run.
+ */
+public class OffHeapItemStore extends ItemStore {
+
+    static final int RECORD_SIZE = 16;
+    static final int COMMIT_TIME = 0;
+    static final int VALUE = 8;
+    static final int AVAILABLE = 12;
+
+    static final int PAGE_BITS = 20;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int RECORDS_PER_PAGE = PAGE_SIZE / RECORD_SIZE;
+
+    ByteBuffer[] pages = new ByteBuffer[0];
+    //the file the pages are mapped from, or null if they are in direct memory
+    Path path;
+    FileChannel channel;
+
+    //keep the records in direct memory
+    public OffHeapItemStore() {
+    }
+
+    /**
+     * Keep the records in pages mapped from a file, which is created or emptied
+     *
+     * @param path - the path of the file
+     */
+    public OffHeapItemStore(Path path) {
+        this.path = path;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the item store " + path, e);
+        }
+    }
+
+    @Override
+    void grow(int capacity) {
+        int needed = (capacity + RECORDS_PER_PAGE - 1) / RECORDS_PER_PAGE;
+        if (needed <= pages.length) {
+            return;
+        }
+        int first = pages.length;
+        pages = Arrays.copyOf(pages, needed);
+        for (int i = first; i < needed; i++) {
+            ByteBuffer page;
+            if (channel == null) {
+                page = ByteBuffer.allocateDirect(PAGE_SIZE);
+            } else {
+                try {
+                    page = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * PAGE_SIZE, PAGE_SIZE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot grow the item store " + path, e);
+                }
+            }
+            pages[i] = page.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    //the page holding the record of a slot, and the offset of the record in it
+    private ByteBuffer page(int slot) {
+        return pages[slot / RECORDS_PER_PAGE];
+    }
+
+    private static int offset(int slot) {
+        return (slot % RECORDS_PER_PAGE) * RECORD_SIZE;
+    }
+
+    @Override
+    int valueAt(int slot) {
+        return page(slot).getInt(offset(slot) + VALUE);
+    }
+
+    @Override
+    long commitTimeAt(int slot) {
+        return page(slot).getLong(offset(slot) + COMMIT_TIME);
+    }
+
+    @Override
+    void set(int slot, int value, long commitTime) {
+        ByteBuffer page = page(slot);
+        int offset = offset(slot);
+        page.putInt(offset + VALUE, value);
+        page.putLong(offset + COMMIT_TIME, commitTime);
+    }
+
+    @Override
+    boolean availableAt(int slot) {
+        return page(slot).get(offset(slot) + AVAILABLE) != 0;
+    }
+
+    @Override
+    void setAvailableAt(int slot, boolean readable) {
+        page(slot).put(offset(slot) + AVAILABLE, (byte) (readable ? 1 : 0));
+    }
+}
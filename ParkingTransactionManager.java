@@ -0,0 +1,344 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent transaction manager for sessions that run each transaction on its own thread, usually a virtual
+ * thread, one command after the other.
+ *
+ * When a read or a write has to wait for a lock, the session parks on the lock queue of the item instead of leaving a
+ * command to be replayed. When the lock is released, the waiting commands that can get their lock are granted it in
+ * the order in which they arrived, and their sessions are unparked. A session then goes on exactly where it stopped:
+ * a read reads the copy it was granted, and a write only locks the copies it doesn't hold yet, without routing the
+ * command or looking for conflicts again.
+ * A session is also unparked when its transaction aborts, or when the site it waits on fails, in which case the
+ * command runs again from the start. A scan that waits runs again from the start too, once the item it waits on is
+ * released.
+ */
+public class ParkingTransactionManager extends ConcurrentTransactionManager {
+
+    //with deadlock detection, the transactions of the parked commands that were passed over, each followed by the
+    //transaction whose command was granted the lock ahead of it. The edges are only added once the lock is released,
+    //since a deadlock aborts transactions and takes their commands out of the queue that is being woken up
+    ArrayList<Transaction> overtaken = new ArrayList<Transaction>();
+    //the number of sessions parked on a command that is not granted, aborted or told to run again yet. These sessions
+    //can't go on until another command releases a lock or aborts their transaction
+    AtomicInteger parkedSessions = new AtomicInteger();
+
+    public ParkingTransactionManager() {
+        super();
+    }
+
+    public ParkingTransactionManager(int stripes) {
+        super(stripes);
+    }
+
+    @Override
+    int readExclusive(int transactionID, int dataIndex) throws Exception {
+        Command command = null;
+        while (true) {
+            engine.writeLock().lock();
+            try {
+                replaying = command;
+                int result = super.readExclusive(transactionID, dataIndex);
+                command = parkOn(transactionID);
+                if (command == null) {
+                    return result;
+                }
+            } finally {
+                replaying = null;
+                engine.writeLock().unlock();
+            }
+
+            int outcome = park(command);
+            if (outcome == Command.GRANTED) {
+                return completeRead(command);
+            } else if (outcome == Command.ABORTED) {
+                return 0;
+            }
+            //the site failed, so the read looks for another copy
+        }
+    }
+
+    @Override
+    int writeExclusive(int transactionID, int dataIndex, int dataValue) throws Exception {
+        Command command;
+        engine.writeLock().lock();
+        try {
+            int result = super.writeExclusive(transactionID, dataIndex, dataValue);
+            command = parkOn(transactionID);
+            if (command == null) {
+                return result;
+            }
+        } finally {
+            engine.writeLock().unlock();
+        }
+
+        while (true) {
+            int outcome = park(command);
+            if (outcome == Command.ABORTED) {
+                return 0;
+            }
+
+            engine.writeLock().lock();
+            try {
+                Transaction t = transactions.get(transactionID);
+                if (t == null) {
+                    return 0;
+                }
+                //a write whose site failed runs again from the start, and a granted write goes on with the other copies
+                //the write keeps the deadline of its first wait
+                replaying = command;
+                if (outcome == Command.RETRY) {
+                    super.writeExclusive(transactionID, dataIndex, dataValue);
+                } else {
+                    resumeWrite(t, dataIndex, dataValue);
+                }
+                command = parkOn(transactionID);
+                if (command == null) {
+                    return transactions.contains(transactionID) ? 1 : 0;
+                }
+            } finally {
+                replaying = null;
+                engine.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public int scan(int transactionID, int first, int last) throws Exception {
+        //a scan woken up by an exclusive command runs under its lock
+        if (engine.isWriteLockedByCurrentThread()) {
+            return super.scan(transactionID, first, last);
+        }
+
+        Command command = null;
+        while (true) {
+            engine.writeLock().lock();
+            try {
+                replaying = command;
+                int result = super.scan(transactionID, first, last);
+                command = parkOn(transactionID);
+                if (command == null) {
+                    return result;
+                }
+            } finally {
+                replaying = null;
+                engine.writeLock().unlock();
+            }
+
+            if (park(command) == Command.ABORTED) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Called with the exclusive lock after a command ran. If the command has to wait, it is marked as parked by the
+     * current thread, before the lock is released and anything can wake it up
+     *
+     * @return - the command the session has to park on, or null if it doesn't wait
+     */
+    private Command parkOn(int transactionID) {
+        Transaction t = transactions.get(transactionID);
+        if (t == null || t.waitingCommands.isEmpty()) {
+            return null;
+        }
+        //a session issues one command at a time, so its transaction waits for at most one command
+        Command command = t.waitingCommands.iterator().next();
+        command.parked = Thread.currentThread();
+        parkedSessions.incrementAndGet();
+        return command;
+    }
+
+    //park the session until the command is granted its lock, its transaction aborts, or its site fails
+    private int park(Command command) {
+        while (command.outcome == Command.PARKED) {
+            LockSupport.park(command);
+        }
+        return command.outcome;
+    }
+
+    /**
+     * Finish a read that was granted its lock: read the value of the copy it was granted
+     *
+     * @param command - the read command that was granted
+     * @return - 1 if the item was read, 0 if the transaction aborted in the meantime
+     * @throws Exception
+     */
+    private int completeRead(Command command) throws Exception {
+        int dataIndex = command.getDataItem();
+        DataManager dataSite = command.waitingAt;
+        ReentrantLock stripe = stripes[stripe(dataIndex)];
+        engine.readLock().lock();
+        stripe.lock();
+        try {
+            Transaction t = transactions.get(command.getTransactionID());
+            if (t == null) {
+                return 0;
+            }
+            if (dataSite.status == DataManager.RUNNING) {
+                int value = dataSite.data.value(dataIndex);
+                t.setStatus(Transaction.ACTIVE);
+                t.read(dataIndex, value, dataSite);
+                Driver.driver.events.read(t.transactionID, dataIndex, dataSite.siteId, value);
+                return 1;
+            }
+        } finally {
+            stripe.unlock();
+            engine.readLock().unlock();
+        }
+        //the site failed after the lock was granted
+        return readExclusive(command.getTransactionID(), dataIndex);
+    }
+
+    /**
+     * Go on with a write after it was granted the lock of one copy. The copies that are not locked by the transaction
+     * yet are locked if they are free, or the write waits for the first one that isn't. Called with the exclusive lock
+     *
+     * @param t - the transaction doing the writing
+     * @param dataIndex - the data item that is being updated
+     * @param dataValue - the new value of the data item
+     * @throws Exception
+     */
+    private void resumeWrite(Transaction t, int dataIndex, int dataValue) throws Exception {
+        ArrayList<DataManager> sitesToWriteTo = new ArrayList<DataManager>();
+        for (DataManager dataSite : Driver.driver.catalog.sites(dataIndex)) {
+            if (dataSite.status == DataManager.RUNNING) {
+                if (dataSite.canWrite(dataIndex, t.transactionID)) {
+                    sitesToWriteTo.add(dataSite);
+                } else {
+                    waitFor(t, new Command("W", t.transactionID, dataIndex, dataValue), dataSite);
+                    return;
+                }
+            }
+        }
+
+        if (sitesToWriteTo.isEmpty()) {
+            abort(t, Metrics.SITE_FAILURE);
+            transactions.remove(t);
+            Driver.driver.events.abort(Event.ABORT_SITE_FAILURE, t.transactionID, dataIndex, 0);
+            return;
+        }
+
+        t.setStatus(Transaction.ACTIVE);
+        t.write(dataIndex, dataValue, sitesToWriteTo);
+        for (DataManager dataSite : sitesToWriteTo) {
+            dataSite.lock(dataIndex, t, LockTuple.WRITE);
+        }
+    }
+
+    /**
+     * Grant the lock to the parked commands that can get it now, in the order in which they arrived, and unpark their
+     * sessions. A command whose site is down, and a scan, are told to run again. Commands that nobody parked on are
+     * replayed as in the single threaded transaction manager. With deadlock detection, a command that can't get the
+     * lock is passed over, and its transaction then waits for those of the commands granted after it
+     *
+     * @param header - the lock header of the item whose lock was released
+     */
+    @Override
+    public void wake(LockHeader header) {
+        long now = System.nanoTime();
+        ArrayList<Transaction> skipped = null;
+        Iterator<Command> iterator = header.waiters.iterator();
+        while (iterator.hasNext()) {
+            Command command = iterator.next();
+            if (command.parked == null) {
+                iterator.remove();
+                command.waitingAt.lockWaits.record(now - command.waitStart);
+                command.waitingAt = null;
+                if (deadlines != null) {
+                    deadlines.cancel(command);
+                }
+                readyCommands.add(command);
+                continue;
+            }
+
+            DataManager dataSite = command.waitingAt;
+            int dataIndex = command.getDataItem();
+            Transaction t = transactions.get(command.getTransactionID());
+            boolean read = command.getCommand().equals("R");
+            int outcome;
+            if (t == null || dataSite.status != DataManager.RUNNING || command.getCommand().equals("S")) {
+                outcome = Command.RETRY;
+            } else if (read ? header.canRead(t.transactionID) && dataSite.isReadable(dataIndex) : dataSite.canWrite(dataIndex, t.transactionID)) {
+                dataSite.lock(dataIndex, t, read ? LockTuple.READ : LockTuple.WRITE);
+                outcome = Command.GRANTED;
+            } else if (deadlockPolicy == DETECT) {
+                if (t != null) {
+                    if (skipped == null) {
+                        skipped = new ArrayList<Transaction>();
+                    }
+                    skipped.add(t);
+                }
+                continue;
+            } else {
+                //the commands after it would go ahead of it without the check of their ages that deadlock prevention
+                //relies on, so they keep waiting behind it
+                break;
+            }
+
+            iterator.remove();
+            dataSite.lockWaits.record(now - command.waitStart);
+            waitingCommands.remove(command);
+            if (deadlines != null) {
+                deadlines.cancel(command);
+            }
+            if (t != null) {
+                t.waitingCommands.remove(command);
+            }
+            if (skipped != null && outcome == Command.GRANTED) {
+                for (Transaction waiter : skipped) {
+                    if (waiter != t) {
+                        overtaken.add(waiter);
+                        overtaken.add(t);
+                    }
+                }
+            }
+            unpark(command, outcome);
+        }
+    }
+
+    //tell the session parked on the command what happened to it, and unpark it
+    private void unpark(Command command, int outcome) {
+        if (command.outcome == Command.PARKED) {
+            parkedSessions.decrementAndGet();
+        }
+        command.outcome = outcome;
+        LockSupport.unpark(command.parked);
+    }
+
+    //add the edges of the parked commands that were passed over before the woken up commands run
+    @Override
+    void runReadyCommands() throws Exception {
+        if (!overtaken.isEmpty()) {
+            //a deadlock aborts a transaction, which can release locks and pass over more commands
+            ArrayList<Transaction> pairs = new ArrayList<Transaction>(overtaken);
+            overtaken.clear();
+            for (int i = 0; i < pairs.size(); i += 2) {
+                Transaction waiter = pairs.get(i);
+                Transaction holder = pairs.get(i + 1);
+                //the waiter may have been granted the lock or aborted in the meantime, and the holder may have ended
+                if (!waiter.isAborted() && !waiter.waitingCommands.isEmpty() && !holder.isAborted()
+                        && transactions.get(holder.transactionID) == holder) {
+                    addWait(waiter, holder);
+                }
+            }
+        }
+        super.runReadyCommands();
+    }
+
+    //an aborted transaction unparks the session waiting for its command
+    @Override
+    void abort(Transaction t) throws Exception {
+        ArrayList<Command> parked = new ArrayList<Command>(t.waitingCommands);
+        super.abort(t);
+        for (Command command : parked) {
+            if (command.parked != null) {
+                unpark(command, Command.ABORTED);
+            }
+        }
+    }
+}
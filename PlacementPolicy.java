@@ -0,0 +1,12 @@
+/**
+ * A placement policy decides which sites hold a copy of each data item when the sites are initialized
+ */
+public interface PlacementPolicy {
+
+    /**
+     * @param item - the index of the data item, starting from 1
+     * @param sites - the number of sites
+     * @return - the indexes of the sites in the list of data sites, starting from 0, that hold a copy of the item
+     */
+    int[] place(int item, int sites);
+}
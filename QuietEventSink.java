@@ -0,0 +1,14 @@
+/**
+ * Drops every event, for benchmarks and other runs whose output nobody reads
+ */
+public class QuietEventSink extends EventSink {
+
+    @Override
+    void emit(int type, int transactionID, int dataItem, int siteId, int value, String text) {
+    }
+
+    @Override
+    public boolean isQuiet() {
+        return true;
+    }
+}
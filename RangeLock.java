@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The lock of a range of data items on one site, or of all the items of a site.
+ *
+ * Scans hold it in shared mode, to read the items of the range without locking each of them. The lock of a range also
+ * counts the write locks held on its items, so that a scan can tell that no item of the range is being written without
+ * going over the items. A scan conflicts with the writes of every other transaction. Single reads don't conflict with
+ * scans, so they are not counted.
+ *
+ * Scans lock and release ranges while no other command runs, so the scanners are only read by the commands that run at
+ * the same time. The concurrent transaction managers lock and release items of different stripes at the same time, so
+ * the count of writes is atomic, and each range has its own, instead of one for the whole site.
+ */
+public class RangeLock {
+
+    //the transactions holding the range in shared mode, in the order in which they locked it
+    LinkedHashSet<Integer> scanners = new LinkedHashSet<Integer>();
+    //the number of items of the range whose write lock is held, by any transaction
+    AtomicInteger writes = new AtomicInteger();
+
+    //an item of the range can be written unless another transaction scans the range
+    public boolean canWrite(int transactionID) {
+        return scanners.isEmpty() || (scanners.size() == 1 && scanners.contains(transactionID));
+    }
+
+    public void scan(int transactionID) {
+        scanners.add(transactionID);
+    }
+
+    //release the shared lock of the transaction, and return whether it held it
+    public boolean release(int transactionID) {
+        return scanners.remove(transactionID);
+    }
+
+    //a transaction took the write lock of an item in the range
+    public void addWrite() {
+        writes.incrementAndGet();
+    }
+
+    //a transaction released the write lock of an item in the range
+    public void removeWrite() {
+        writes.decrementAndGet();
+    }
+
+    //whether the write lock of any item of the range is held
+    public boolean isWritten() {
+        return writes.get() > 0;
+    }
+
+    //the transactions other than the given one that scan the range
+    public ArrayList<Integer> scannersOtherThan(int transactionID) {
+        ArrayList<Integer> others = new ArrayList<Integer>();
+        for (Integer scanner : scanners) {
+            if (scanner != transactionID) {
+                others.add(scanner);
+            }
+        }
+        return others;
+    }
+}
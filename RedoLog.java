@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The redo log of a site is an append-only file holding the values that committed transactions wrote to the site, so
+ * that the committed values survive a crash of the process. A record is written for every transaction that commits
+ * values on the site, before the values are applied, and the transaction only commits once its record is on disk.
+ *
+ * Forcing the file to disk is much slower than writing to it, so the log uses group commit: records are appended to a
+ * buffer in memory, and the first transaction that needs its record on disk writes and forces everything appended
+ * so far. The transactions that need their records on disk while the file is forced wait for that force to end, and
+ * the next one of them forces all their records together. With many transactions committing at the same time, each
+ * force makes the records of many transactions durable.
+ *
+ * A record is the length of its body, the body - the commit time, the transaction ID, the number of values, and the
+ * item and value of each - and the CRC32 of the body. On startup the records are replayed in order, up to the first
+ * one that is incomplete or damaged, which is the tail of a write the crash interrupted and is cut off the file.
+ */
+public class RedoLog {
+
+    //the length, commit time, transaction ID, number of values, and CRC32 of a record
+    static final int RECORD_OVERHEAD = 4 + 8 + 4 + 4 + 4;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    Path path;
+    FileChannel channel;
+
+    //the records appended and not written to the file yet, and the buffer that the last force wrote from
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+    CRC32 checksum = new CRC32();
+
+    //the number of bytes appended to the log, and the number of them that are on disk
+    long appended;
+    long durable;
+    //whether a transaction is writing and forcing the file, outside of the lock of the log
+    boolean forcing = false;
+    IOException failure;
+
+    //the number of records appended and the number of times the file was forced
+    long records = 0;
+    long forces = 0;
+
+    /**
+     * Open the log, and create it if it doesn't exist. Its records are not replayed until replay() is called
+     *
+     * @param path - the path of the file of the log
+     * @throws IOException
+     */
+    public RedoLog(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        appended = channel.size();
+        durable = appended;
+        channel.position(appended);
+    }
+
+    /**
+     * Apply the records of the log to the site, oldest first, and cut off the incomplete or damaged record at the end
+     * of the file, if any
+     *
+     * @param dataSite - the site whose values are restored
+     * @return - the latest commit time in the log, or TimestampOracle.INITIAL if the log is empty
+     * @throws IOException
+     */
+    public synchronized long replay(DataManager dataSite) throws IOException {
+        long latest = TimestampOracle.INITIAL;
+        long size = channel.size();
+        //the file is read in chunks, as it can be larger than an array. A record cut by the end of a chunk is moved to
+        //the front of the chunk and completed by the next read, and a record larger than the chunk makes it grow
+        ByteBuffer chunk = ByteBuffer.allocate(BUFFER_SIZE);
+        chunk.flip();
+        //the position in the file of the start of the chunk, and of the next byte to read into it
+        long offset = 0;
+        long read = 0;
+        long valid = 0;
+        boolean damaged = false;
+        while (!damaged) {
+            while (chunk.remaining() >= 4) {
+                int start = chunk.position();
+                int length = chunk.getInt(start);
+                //a length that doesn't fit in the file is the tail of an interrupted write, or garbage
+                if (length < 16 || offset + start + 4 + (long) length + 4 > size) {
+                    damaged = true;
+                    break;
+                }
+                if (chunk.remaining() < 4 + length + 4) {
+                    break;
+                }
+                checksum.reset();
+                checksum.update(chunk.array(), start + 4, length);
+                if ((int) checksum.getValue() != chunk.getInt(start + 4 + length)) {
+                    damaged = true;
+                    break;
+                }
+
+                chunk.position(start + 4);
+                long commitTime = chunk.getLong();
+                chunk.getInt();
+                int count = chunk.getInt();
+                if (count * 8 + 16 != length) {
+                    damaged = true;
+                    break;
+                }
+                for (int i = 0; i < count; i++) {
+                    dataSite.redo(chunk.getInt(), chunk.getInt(), commitTime);
+                }
+                chunk.getInt();
+                latest = Math.max(latest, commitTime);
+                valid = offset + chunk.position();
+            }
+            if (damaged || read == size) {
+                break;
+            }
+
+            offset += chunk.position();
+            chunk.compact();
+            if (!chunk.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(chunk.capacity() * 2);
+                chunk.flip();
+                larger.put(chunk);
+                chunk = larger;
+            }
+            int bytes = channel.read(chunk, read);
+            chunk.flip();
+            if (bytes < 0) {
+                break;
+            }
+            read += bytes;
+        }
+
+        if (valid < size) {
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        appended = valid;
+        durable = valid;
+        return latest;
+    }
+
+    /**
+     * Append the record of a committing transaction to the log. It is not on disk until sync() returns
+     *
+     * @param commitTime - the commit time of the transaction
+     * @param transactionID - the transaction that commits
+     * @param items - the items the transaction wrote on this site
+     * @param values - the values it wrote to them, in the same order
+     * @param count - the number of values
+     * @return - the position in the log after the record, which sync() waits for
+     */
+    public synchronized long append(long commitTime, int transactionID, int[] items, int[] values, int count) {
+        int length = 16 + count * 8;
+        if (buffer.remaining() < RECORD_OVERHEAD + count * 8) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + RECORD_OVERHEAD + count * 8));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+
+        int start = buffer.position();
+        buffer.putInt(length);
+        buffer.putLong(commitTime);
+        buffer.putInt(transactionID);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(items[i]);
+            buffer.putInt(values[i]);
+        }
+        checksum.reset();
+        checksum.update(buffer.array(), start + 4, length);
+        buffer.putInt((int) checksum.getValue());
+
+        records++;
+        appended += RECORD_OVERHEAD + count * 8;
+        return appended;
+    }
+
+    /**
+     * Wait until the log is on disk up to a position. If no other transaction is forcing the file, this one writes and
+     * forces all the records appended so far, including those of the transactions that wait for it
+     *
+     * @param position - the position returned by append()
+     * @throws IOException - the log could not be written, and the record may not be durable
+     */
+    public void sync(long position) throws IOException {
+        ByteBuffer group;
+        long end;
+        synchronized (this) {
+            while (durable < position && forcing && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the redo log", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (durable >= position) {
+                return;
+            }
+            //this transaction forces the group of the records appended so far
+            forcing = true;
+            group = buffer;
+            buffer = spare;
+            spare = null;
+            end = appended;
+        }
+
+        IOException error = null;
+        try {
+            group.flip();
+            while (group.hasRemaining()) {
+                channel.write(group);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            group.clear();
+            spare = group;
+            forcing = false;
+            if (error != null) {
+                failure = error;
+            } else {
+                durable = end;
+                forces++;
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
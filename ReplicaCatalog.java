@@ -0,0 +1,113 @@
+import java.util.HashMap;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * The replica catalog maps each data item to the sites that hold a copy of it, in the order of the site IDs.
+ * Reads, writes, and recoveries route through it, so they only go to the sites that hold the item instead of probing
+ * the data of every site. Sites register their items in it when the items are added.
+ * The replica selection policy of the catalog decides in which order reads try the copies.
+ */
+public class ReplicaCatalog {
+
+    static final DataManager[] NO_SITES = new DataManager[0];
+
+    //The key is the data item, and the value is the sites holding a copy of it, sorted by site ID
+    HashMap<Integer, DataManager[]> replicas = new HashMap<Integer, DataManager[]>();
+    //the items that have at least one copy, in order, so that a scan only goes over the items of its range
+    TreeSet<Integer> items = new TreeSet<Integer>();
+
+    //decides which copy serves a read when more than one can
+    ReplicaSelection selection = new FirstCopySelection();
+
+    public void setSelection(ReplicaSelection selection) {
+        this.selection = selection;
+    }
+
+    //add the site to the sites holding the item, keeping the sites in the order of their IDs
+    public void add(int item, DataManager site) {
+        DataManager[] sites = sites(item);
+        int position = 0;
+        while (position < sites.length && sites[position].siteId < site.siteId) {
+            position++;
+        }
+        if (position < sites.length && sites[position] == site) {
+            return;
+        }
+
+        DataManager[] added = new DataManager[sites.length + 1];
+        System.arraycopy(sites, 0, added, 0, position);
+        added[position] = site;
+        System.arraycopy(sites, position, added, position + 1, sites.length - position);
+        replicas.put(item, added);
+        items.add(item);
+    }
+
+    public void remove(int item, DataManager site) {
+        DataManager[] sites = sites(item);
+        for (int i = 0; i < sites.length; i++) {
+            if (sites[i] == site) {
+                if (sites.length == 1) {
+                    replicas.remove(item);
+                    items.remove(item);
+                } else {
+                    DataManager[] removed = new DataManager[sites.length - 1];
+                    System.arraycopy(sites, 0, removed, 0, i);
+                    System.arraycopy(sites, i + 1, removed, i, sites.length - i - 1);
+                    replicas.put(item, removed);
+                }
+                return;
+            }
+        }
+    }
+
+    //the sites holding the item, which must not be modified, or no sites if the item doesn't exist
+    public DataManager[] sites(int item) {
+        DataManager[] sites = replicas.get(item);
+        return sites != null ? sites : NO_SITES;
+    }
+
+    //the items between first and last, both included, that have at least one copy, in order
+    public NavigableSet<Integer> items(int first, int last) {
+        if (first > last) {
+            return new TreeSet<Integer>();
+        }
+        return items.subSet(first, true, last, true);
+    }
+
+    //the sites holding the item, in the order in which a read of the transaction tries them
+    public DataManager[] readOrder(Transaction t, int item) {
+        return selection.order(t, item, sites(item));
+    }
+
+    public boolean isReplicated(int item) {
+        return sites(item).length > 1;
+    }
+
+    //the number of copies of the item that are on running sites
+    public int liveCount(int item) {
+        int count = 0;
+        for (DataManager site : sites(item)) {
+            if (site.status == DataManager.RUNNING) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    //the number of copies of the item that are on running sites and can be read
+    public int readableCount(int item) {
+        int count = 0;
+        for (DataManager site : sites(item)) {
+            if (site.isReadable(item)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    //the number of items in the catalog
+    public int size() {
+        return replicas.size();
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Catch-up brings the copies of replicated items on a recovered site up to date, instead of leaving them unreadable
+ * until a transaction writes them.
+ *
+ * For every copy that is not readable, the latest committed version is copied from the readable copy with the latest
+ * commit time, and the copy becomes readable. A copy is put off while a transaction holds a write lock on the item on
+ * any site, since that transaction commits to the sites it locked, which may not include the recovered one. Reads
+ * waiting on the copy are woken up once it is readable. A copy with no readable copy to catch up from is left to be
+ * written, as without catch-up.
+ *
+ * Catch-up is throttled so that it doesn't starve the transactions: it copies a batch of items at a time. With the
+ * single threaded transaction manager, the driver runs one batch after each command. With the concurrent transaction
+ * managers, a background thread runs the batches, with a pause after each, and copies each item holding only the lock
+ * of its stripe, like the commands that run alone. The recovered sites take turns, one batch at a time.
+ */
+public class ReplicaCatchUp implements Runnable {
+
+    public static final int DEFAULT_BATCH = 64;
+    public static final long DEFAULT_PAUSE_MILLIS = 1;
+
+    //the results of copying an item
+    static final int COPIED = 0;
+    static final int PUT_OFF = 1;
+    static final int EXCLUSIVE = 2;
+
+    //the number of items copied in one batch, and the time the background thread waits between two batches
+    int batch;
+    long pauseMillis;
+
+    //the sites that are catching up, in the order in which they recovered, with the items they still have to copy
+    ArrayDeque<SiteCatchUp> sites = new ArrayDeque<SiteCatchUp>();
+    //the site whose batch is being copied, which is not in the queue
+    SiteCatchUp current;
+    Thread thread;
+    volatile boolean running = true;
+
+    //the number of items copied
+    long copied = 0;
+
+    public ReplicaCatchUp() {
+        this(DEFAULT_BATCH, DEFAULT_PAUSE_MILLIS);
+    }
+
+    /**
+     * @param batch - the number of items copied at a time
+     * @param pauseMillis - the time the background thread waits after each batch
+     */
+    public ReplicaCatchUp(int batch, long pauseMillis) {
+        this.batch = batch;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * Start catching up the copies of a site that has just recovered, which are not readable
+     *
+     * @param dataSite - the recovered site
+     */
+    public synchronized void add(DataManager dataSite) {
+        //a site that failed again before it caught up starts over
+        Iterator<SiteCatchUp> iterator = sites.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().dataSite == dataSite) {
+                iterator.remove();
+            }
+        }
+        if (current != null && current.dataSite == dataSite) {
+            current.cancelled = true;
+        }
+
+        ArrayDeque<Integer> items = new ArrayDeque<Integer>();
+        for (int item : dataSite.data.items()) {
+            if (!dataSite.data.isAvailable(item)) {
+                items.add(item);
+            }
+        }
+        if (!items.isEmpty()) {
+            sites.add(new SiteCatchUp(dataSite, items));
+            notifyAll();
+        }
+    }
+
+    //whether there are copies left to catch up
+    public synchronized boolean isDone() {
+        return sites.isEmpty() && current == null;
+    }
+
+    /**
+     * Copy a batch of items with the single threaded transaction manager, between two commands
+     *
+     * @throws Exception
+     */
+    public void step() throws Exception {
+        SiteCatchUp site = nextSite();
+        if (site != null) {
+            for (int i = 0; i < batch && !site.items.isEmpty(); i++) {
+                copy(site, site.items.poll(), true);
+            }
+            finish(site);
+        }
+    }
+
+    //start the background thread that catches up the sites for the concurrent transaction managers
+    public void start() {
+        thread = new Thread(this, "replica catch-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                SiteCatchUp site;
+                synchronized (this) {
+                    while (sites.isEmpty()) {
+                        wait();
+                    }
+                    site = nextSite();
+                }
+                ConcurrentTransactionManager transactionManager = (ConcurrentTransactionManager) Driver.driver.transactionManager;
+                for (int i = 0; i < batch && !site.items.isEmpty(); i++) {
+                    copyConcurrently(transactionManager, site, site.items.poll());
+                }
+                finish(site);
+                Thread.sleep(pauseMillis);
+            }
+        } catch (InterruptedException e) {
+            //stopped
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copy an item with the lock of its stripe, or with the exclusive lock if reads are waiting on the copy
+     */
+    private void copyConcurrently(ConcurrentTransactionManager transactionManager, SiteCatchUp site, int item) throws Exception {
+        ReentrantLock stripe = transactionManager.stripes[transactionManager.stripe(item)];
+        int result;
+        transactionManager.engine.readLock().lock();
+        stripe.lock();
+        try {
+            result = copy(site, item, false);
+        } finally {
+            stripe.unlock();
+            transactionManager.engine.readLock().unlock();
+        }
+
+        if (result == EXCLUSIVE) {
+            transactionManager.engine.writeLock().lock();
+            try {
+                copy(site, item, true);
+            } finally {
+                transactionManager.engine.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Bring one copy up to date and make it readable
+     *
+     * @param site - the recovered site and the items it has left to catch up
+     * @param item - the item whose copy is caught up
+     * @param exclusive - whether the caller can wake up the commands waiting on the copy
+     * @return - COPIED if the copy is readable or can't be caught up, PUT_OFF if it is tried again later, and
+     * EXCLUSIVE if commands wait on it and the caller can't wake them up
+     * @throws Exception
+     */
+    int copy(SiteCatchUp site, int item, boolean exclusive) throws Exception {
+        DataManager dataSite = site.dataSite;
+        //the site failed again, or a write committed to the copy in the meantime
+        if (dataSite.status != DataManager.RUNNING || !dataSite.data.contains(item) || dataSite.data.isAvailable(item)) {
+            return COPIED;
+        }
+
+        DataManager source = null;
+        for (DataManager other : Driver.driver.catalog.sites(item)) {
+            LockHeader header = other.lockTable.get(item);
+            if (header != null && header.writeOwner != LockHeader.NONE) {
+                site.items.add(item);
+                return PUT_OFF;
+            }
+            if (other != dataSite && other.isReadable(item)) {
+                if (source == null || other.data.commitTime(item) > source.data.commitTime(item)) {
+                    source = other;
+                }
+            }
+        }
+        //no other copy is readable, and none can become readable before a write commits to the item
+        if (source == null) {
+            return COPIED;
+        }
+        LockHeader header = dataSite.lockTable.get(item);
+        boolean waiting = header != null && !header.waiters.isEmpty();
+        if (waiting && !exclusive) {
+            return EXCLUSIVE;
+        }
+
+        long commitTime = source.data.commitTime(item);
+        int value = source.data.value(item);
+        if (commitTime > dataSite.data.commitTime(item)) {
+            dataSite.data.commit(item, value, commitTime, Driver.driver.transactionManager.oldestSnapshot());
+            //the copied value is forced with the next commit on the site
+            if (dataSite.log != null) {
+                dataSite.log.append(commitTime, 0, new int[]{item}, new int[]{value}, 1);
+            }
+        }
+        dataSite.data.setAvailable(item, true);
+        synchronized (this) {
+            copied++;
+        }
+
+        if (waiting) {
+            Driver.driver.transactionManager.wake(header);
+            dataSite.reclaim(item, header);
+            Driver.driver.transactionManager.runReadyCommands();
+        }
+        return COPIED;
+    }
+
+    //take the site whose turn it is off the queue while a batch of its items is copied
+    private synchronized SiteCatchUp nextSite() {
+        current = sites.poll();
+        return current;
+    }
+
+    //after a batch, the site is done once it has no items left, and otherwise goes to the end of the queue
+    private synchronized void finish(SiteCatchUp site) {
+        current = null;
+        if (site.cancelled || site.dataSite.status != DataManager.RUNNING) {
+            return;
+        }
+        if (site.items.isEmpty()) {
+            Driver.driver.events.site(Event.SITE_CAUGHT_UP, site.dataSite.siteId);
+        } else {
+            sites.add(site);
+        }
+    }
+
+    //the copies one site still has to catch up
+    static class SiteCatchUp {
+        DataManager dataSite;
+        ArrayDeque<Integer> items;
+        //the site recovered again while a batch of its items was copied, and catches up from the start
+        boolean cancelled = false;
+
+        SiteCatchUp(DataManager dataSite, ArrayDeque<Integer> items) {
+            this.dataSite = dataSite;
+            this.items = items;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * A replica selection policy decides the order in which a read tries the copies of a data item. The read goes to the
+ * first copy in that order that it can read, so the policy decides how the reads of replicated items spread over the
+ * sites.
+ */
+public interface ReplicaSelection {
+
+    /**
+     * @param t - the transaction doing the reading
+     * @param item - the data item being read
+     * @param sites - the sites holding a copy of the item, in the order of their IDs, which must not be modified
+     * @return - the same sites in the order in which the read tries them
+     */
+    DataManager[] order(Transaction t, int item, DataManager[] sites);
+
+    //the sites starting from the one at the given position, wrapping around
+    static DataManager[] rotate(DataManager[] sites, int first) {
+        if (first == 0) {
+            return sites;
+        }
+        DataManager[] rotated = new DataManager[sites.length];
+        System.arraycopy(sites, first, rotated, 0, sites.length - first);
+        System.arraycopy(sites, 0, rotated, sites.length - first, first);
+        return rotated;
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * A placement with a fixed replication factor: item i is on the site with index i modulo the number of sites, and on
+ * the sites that follow it, wrapping around, until it has the given number of copies
+ */
+public class ReplicatedPlacement implements PlacementPolicy {
+
+    int replicas;
+
+    public ReplicatedPlacement(int replicas) {
+        this.replicas = replicas;
+    }
+
+    @Override
+    public int[] place(int item, int sites) {
+        int[] placement = new int[Math.max(1, Math.min(replicas, sites))];
+        for (int k = 0; k < placement.length; k++) {
+            placement[k] = (item + k) % sites;
+        }
+        return placement;
+    }
+}
@@ -0,0 +1,17 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads start from the next copy each time, so consecutive reads of replicated items go to different sites
+ */
+public class RoundRobinSelection implements ReplicaSelection {
+
+    AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public DataManager[] order(Transaction t, int item, DataManager[] sites) {
+        if (sites.length < 2) {
+            return sites;
+        }
+        return ReplicaSelection.rotate(sites, Math.floorMod(next.getAndIncrement(), sites.length));
+    }
+}
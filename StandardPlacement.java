@@ -0,0 +1,18 @@
+/**
+ * The placement of the project specification: even items are replicated on every site, and each odd item is only on
+ * the site whose index is the item modulo the number of sites, i.e. site 1 + (i mod 10) with 10 sites
+ */
+public class StandardPlacement implements PlacementPolicy {
+
+    @Override
+    public int[] place(int item, int sites) {
+        if (item % 2 == 0) {
+            int[] all = new int[sites];
+            for (int i = 0; i < sites; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        return new int[] {item % sites};
+    }
+}
@@ -1,126 +1,498 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 public class Test {
 
-    static ArrayList<ArrayList<Transaction>> waitList = new ArrayList<ArrayList<Transaction>>();
+    static WaitsForGraph waitsFor = new WaitsForGraph();
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws Exception {
 
         Transaction t1 = new Transaction(1, true);
-        TimeUnit.MILLISECONDS.sleep(1);
         Transaction t2 = new Transaction(2, true);
-        TimeUnit.MILLISECONDS.sleep(1);
         Transaction t3 = new Transaction(3, true);
-        TimeUnit.MILLISECONDS.sleep(1);
         Transaction t4 = new Transaction(4, true);
-        TimeUnit.MILLISECONDS.sleep(1);
         Transaction t5 = new Transaction(5, true);
-        TimeUnit.MILLISECONDS.sleep(1);
         Transaction t6 = new Transaction(6, true);
-        TimeUnit.MILLISECONDS.sleep(1);
 
-        ArrayList a1 = new ArrayList();
-        a1.add(t1);
-        a1.add(t2);
-        waitList.add(a1);
+        System.out.println(checkDeadLock(t1, t2));
+        System.out.println(checkDeadLock(t2, t3));
+        System.out.println(checkDeadLock(t3, t4));
+        System.out.println(checkDeadLock(t3, t1));
+        System.out.println(checkDeadLock(t1, t6));
+        System.out.println(checkDeadLock(t2, t5));
 
-        ArrayList a2 = new ArrayList();
-        a2.add(t2);
-        a2.add(t3);
-        waitList.add(a2);
+        //removing a transaction on the cycle breaks it
+        waitsFor.remove(t2);
+        System.out.println(waitsFor.findCycle(t3, t1) != null);
 
-        ArrayList a3 = new ArrayList();
-        a3.add(t3);
-        a3.add(t4);
-        waitList.add(a3);
+        System.out.println();
+
+        testParser();
+        testDeadlockPrevention();
+        testBatches();
+        testRangeScans();
+        testTimeouts();
+        testRedoLogReplay();
+        testServer();
+        testParkingServer();
+        testItemStore("the heap store", new HeapItemStore());
+        testItemStore("the direct store", new OffHeapItemStore());
+        Path storeFile = Files.createTempFile("store", ".dat");
+        try {
+            testItemStore("the mapped store", new OffHeapItemStore(storeFile));
+        } finally {
+            Files.deleteIfExists(storeFile);
+        }
+    }
+
+    //print the name of a check, and stop the tests if it fails
+    static void check(String name, boolean passed) {
+        System.out.println(name + (passed ? " ok" : " FAILED"));
+        if (!passed) {
+            throw new AssertionError(name);
+        }
+    }
 
-        ArrayList a4 = new ArrayList();
-        a4.add(t3);
-        a4.add(t1);
-        waitList.add(a4);
+    //a new system with the sites and items of the project specification, whose output is dropped
+    static TransactionManager newSystem() {
+        Driver.driver = new Driver();
+        Driver.driver.events = new QuietEventSink();
+        Driver.driver.initialize(10, 20);
+        return Driver.driver.transactionManager;
+    }
 
-        ArrayList a5 = new ArrayList();
-        a5.add(t1);
-        a5.add(t6);
-        waitList.add(a5);
+    //with wait-die a younger transaction aborts instead of waiting for an older one, and with wound-wait an older
+    //transaction aborts the younger one it would wait for
+    static void testDeadlockPrevention() throws Exception {
+        TransactionManager tm = newSystem();
+        tm.setDeadlockPolicy(TransactionManager.WAIT_DIE);
+        tm.begin(1);
+        tm.begin(2);
+        tm.write(1, 2, 100);
+        tm.write(2, 2, 200);
+        check("wait-die aborts the younger waiter", !tm.transactions.contains(2) && tm.transactions.contains(1)
+                && tm.metrics.aborts.get(Metrics.WAIT_DIE) == 1);
+        tm.begin(3);
+        tm.write(3, 4, 300);
+        tm.write(1, 4, 400);
+        check("wait-die lets the older one wait", tm.transactions.contains(3)
+                && !tm.transactions.get(1).waitingCommands.isEmpty());
 
-        ArrayList a6 = new ArrayList();
-        a6.add(t2);
-        a6.add(t5);
-        waitList.add(a6);
+        tm = newSystem();
+        tm.setDeadlockPolicy(TransactionManager.WOUND_WAIT);
+        tm.begin(1);
+        tm.begin(2);
+        tm.write(2, 2, 200);
+        tm.write(1, 2, 100);
+        check("wound-wait aborts the younger holder", !tm.transactions.contains(2)
+                && tm.transactions.get(1).waitingCommands.isEmpty() && tm.metrics.aborts.get(Metrics.WOUND_WAIT) == 1);
+        tm.begin(3);
+        tm.write(1, 4, 400);
+        tm.write(3, 4, 300);
+        check("wound-wait lets the younger one wait", tm.transactions.contains(1)
+                && !tm.transactions.get(3).waitingCommands.isEmpty());
+        tm.end(1);
+        check("the waiter runs once the holder commits", tm.transactions.get(3).waitingCommands.isEmpty()
+                && tm.metrics.totalAborts() == 1);
+    }
 
-        System.out.println(checkDeadLock());
+    //add the edge and print the transactions on the cycle it closes, if any
+    public static boolean checkDeadLock(Transaction from, Transaction to) {
+        waitsFor.addEdge(from, to);
+        ArrayList<Transaction> cycle = waitsFor.findCycle(from, to);
+        if (cycle == null) {
+            return false;
+        }
 
-        long earliest = 0;
+        long latest = 0;
         Transaction t = null;
 
-        for (Map.Entry<Transaction, Boolean> entry : recStack.entrySet()) {
-            if (entry.getValue()) {
-                if(entry.getKey().startTime > earliest) {
-                    t = entry.getKey();
-                    earliest = entry.getKey().startTime;
-                }
+        for (Transaction transaction : cycle) {
+            System.out.print("T" + transaction.getTransactionID() + " ");
+            if(transaction.startTime > latest) {
+                t = transaction;
+                latest = transaction.startTime;
             }
         }
+        System.out.println("youngest T" + t.getTransactionID());
 
-        System.out.println();
+        return true;
+    }
+
+    //scans lock the ranges of their items, wait for the writes of other transactions in them, and hold up the writes
+    //of other transactions until they end
+    static void testRangeScans() throws Exception {
+        RangeLock lock = new RangeLock();
+        lock.scan(1);
+        check("a range can be written by the transaction scanning it", lock.canWrite(1) && !lock.canWrite(2));
+        lock.addWrite();
+        check("a range counts the writes on its items", lock.isWritten());
+        lock.removeWrite();
+        check("a range with no writes left is not written", !lock.isWritten() && lock.release(1) && lock.canWrite(2));
 
+        TransactionManager tm = newSystem();
+        tm.begin(1);
+        long start = System.nanoTime();
+        tm.scan(1, 1, 2000000000);
+        check("a wide scan only goes over the existing items", System.nanoTime() - start < 1000000000L
+                && tm.transactions.get(1).waitingCommands.isEmpty() && !tm.transactions.get(1).heldRanges.isEmpty());
+        tm.begin(2);
+        tm.write(2, 4, 40);
+        check("a write waits for a scan of its item", !tm.transactions.get(2).waitingCommands.isEmpty());
+        tm.end(1);
+        check("the write runs once the scan ends", tm.transactions.get(2).waitingCommands.isEmpty());
+
+        tm.begin(3);
+        tm.scan(3, 1, 10);
+        check("a scan waits for a write in its range", !tm.transactions.get(3).waitingCommands.isEmpty());
+        tm.end(2);
+        check("the scan runs once the writer ends", tm.transactions.get(3).waitingCommands.isEmpty()
+                && !tm.transactions.get(3).heldRanges.isEmpty());
+
+        tm.end(3);
+        tm.begin(4);
+        tm.write(4, 12, 120);
+        tm.scan(4, 11, 20);
+        check("a scan doesn't wait for the writes of its own transaction", tm.transactions.get(4).waitingCommands.isEmpty());
     }
 
-    static HashMap<Transaction, Boolean> explored = new HashMap<Transaction, Boolean>();
-    static HashMap<Transaction, Boolean> recStack = new HashMap<Transaction, Boolean>();
+    //the records of a redo log are replayed across the chunks the file is read in, and a torn record at the end is cut
+    //off the file
+    static void testRedoLogReplay() throws Exception {
+        Path path = Files.createTempFile("redo", ".log");
+        try {
+            RedoLog log = new RedoLog(path);
+            //enough records to span many chunks, and one larger than a chunk
+            long position = 0;
+            for (int i = 1; i <= 5000; i++) {
+                position = log.append(i, i, new int[]{2, 4}, new int[]{i, -i}, 2);
+            }
+            int[] items = new int[RedoLog.BUFFER_SIZE / 8];
+            int[] values = new int[items.length];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = 6;
+                values[i] = i;
+            }
+            position = log.append(5001, 5001, items, values, items.length);
+            log.sync(position);
+            log.close();
+            long complete = Files.size(path);
 
-    public static boolean checkDeadLock() {
-        ArrayList<Transaction> transactionsInWaitList = new ArrayList<Transaction>();
-        for (ArrayList<Transaction> list : waitList) {
-            if(!transactionsInWaitList.contains(list.get(0)))
-                transactionsInWaitList.add(list.get(0));
-            if(!transactionsInWaitList.contains(list.get(1)))
-                transactionsInWaitList.add(list.get(1));
+            //a crash in the middle of writing the next record
+            log = new RedoLog(path);
+            position = log.append(5002, 5002, new int[]{2}, new int[]{99}, 1);
+            log.sync(position);
+            log.close();
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            channel.truncate(complete + 10);
+            channel.close();
+
+            newSystem();
+            DataManager dataSite = Driver.driver.dataSites.get(0);
+            log = new RedoLog(path);
+            long latest = log.replay(dataSite);
+            log.close();
+            check("the redo log replays every complete record", latest == 5001 && dataSite.data.value(2) == 5000
+                    && dataSite.data.value(4) == -5000 && dataSite.data.value(6) == items.length - 1);
+            check("the torn record is cut off the redo log", Files.size(path) == complete);
+        } finally {
+            Files.deleteIfExists(path);
         }
+    }
 
+    //a parser reading the given text
+    static CommandParser parser(String text) {
+        return new CommandParser(Channels.newChannel(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII))));
+    }
 
-        for (Transaction t : transactionsInWaitList) {
-            explored.put(t, false);
+    //the message of the syntax error of the first line that has one, or null if there is none
+    static String syntaxError(String text) {
+        CommandParser parser = parser(text);
+        try {
+            while (parser.next()) {
+            }
+            return null;
+        } catch (Exception e) {
+            return e.getMessage();
         }
+    }
+
+    //the tokenizer reads the grammar of the input files, ignoring spaces, blank lines, comments and carriage returns,
+    //and reports syntax errors with the same text and line numbers as the original driver
+    static void testParser() throws Exception {
+        CommandParser parser = parser("begin(T1)\n\n// comment\n W(T1, x2, -5)\r\nR(T1,x2,x4)\nRS(T1,x1,x20)\n"
+                + "beginRO(T2)\ndump(x3)\nfail(4)\nend(T1)");
+        check("a begin is parsed", parser.next() && parser.getType() == CommandParser.BEGIN && parser.getTransactionID() == 1);
+        check("a write is parsed with its spaces and carriage return", parser.next() && parser.getType() == CommandParser.WRITE
+                && parser.getDataIndex() == 2 && parser.getDataValue() == -5);
+        check("a batch read is parsed", parser.next() && parser.getType() == CommandParser.READ_BATCH
+                && Arrays.equals(parser.getDataIndexes(), new int[]{2, 4}));
+        check("a scan is parsed", parser.next() && parser.getType() == CommandParser.SCAN && parser.getDataIndex() == 1
+                && parser.getLastIndex() == 20);
+        check("a read-only begin is parsed", parser.next() && parser.getType() == CommandParser.BEGIN_READ_ONLY
+                && parser.getTransactionID() == 2);
+        check("a dump of an item is parsed", parser.next() && parser.getType() == CommandParser.DUMP_ITEM
+                && parser.getDataIndex() == 3);
+        check("a failure is parsed", parser.next() && parser.getType() == CommandParser.FAIL && parser.getSiteID() == 4);
+        check("the last line doesn't need a new line", parser.next() && parser.getType() == CommandParser.END
+                && !parser.next());
+
+        check("a read error counts the lines that are not blank", "Syntax error at line 3. Expected R(Ti, xj).\n\tR(T1)\n"
+                .equals(syntaxError("begin(T1)\n\n   \n// comment\nR(T1)\n")));
+        check("a begin error keeps its text", "Syntax error at line 1. Expected beginRO(Ti) or begin(Ti)\n\tbegin(1)"
+                .equals(syntaxError("begin(1)")));
+        check("a write error keeps its text", "Syntax error at line 2. Expected W(Ti, xj, v).\n\tW(T1, x2)\n"
+                .equals(syntaxError("begin(T1)\r\nW(T1, x2)\r\n")));
+        check("an unknown command is an error", "Syntax error at line 1.\n\tquery(T1)".equals(syntaxError("query(T1)")));
+    }
+
+    //the timer wheel expires each deadline at its tick, also when several turns of the wheel share a bucket, and the
+    //transaction manager aborts the transactions whose waits time out
+    static void testTimeouts() throws Exception {
+        TimerWheel wheel = new TimerWheel(4);
+        Command first = new Command("W", 1, 2, 0);
+        Command later = new Command("W", 2, 2, 0);
+        Command cancelled = new Command("W", 3, 2, 0);
+        wheel.schedule(first, 3);
+        wheel.schedule(later, 7);
+        wheel.schedule(cancelled, 2);
+        wheel.cancel(cancelled);
+        check("a cancelled deadline doesn't expire", wheel.tick().isEmpty() && wheel.tick().isEmpty() && wheel.size() == 2);
+        ArrayList<Command> expired = wheel.tick();
+        check("a deadline expires at its tick, and one a turn later stays", expired.size() == 1 && expired.get(0) == first
+                && wheel.size() == 1);
+        wheel.tick();
+        wheel.tick();
+        wheel.tick();
+        expired = wheel.tick();
+        check("a deadline a turn later expires on that turn", expired.size() == 1 && expired.get(0) == later
+                && wheel.size() == 0);
+        wheel.schedule(first, 1);
+        check("a deadline that passed expires at the next tick", wheel.tick().size() == 1);
 
+        TransactionManager tm = newSystem();
+        tm.setTimeouts(2, TransactionManager.NO_TIMEOUT);
+        tm.begin(1);
+        tm.begin(2);
+        tm.write(1, 2, 100);
+        tm.write(2, 2, 200);
+        tm.tick();
+        check("a wait doesn't time out before its deadline", tm.transactions.contains(2));
+        tm.tick();
+        check("a wait times out at its deadline", !tm.transactions.contains(2)
+                && tm.metrics.aborts.get(Metrics.LOCK_WAIT_TIMEOUT) == 1);
 
-        for (Transaction t : transactionsInWaitList) {
-            recStack.put(t, false);
+        tm = newSystem();
+        tm.setTimeouts(TransactionManager.NO_TIMEOUT, 3);
+        tm.begin(1);
+        tm.begin(2);
+        tm.write(1, 2, 100);
+        tm.tick();
+        tm.write(2, 2, 200);
+        tm.tick();
+        tm.tick();
+        check("a transaction stops waiting at its deadline", !tm.transactions.contains(2) && tm.transactions.contains(1)
+                && tm.metrics.aborts.get(Metrics.DEADLINE) == 1);
+    }
+
+    //a store keeps the latest value of every item, across the pages of the off-heap stores, and the older versions
+    //only while a read-only transaction may read them
+    static void testItemStore(String name, ItemStore store) {
+        int count = OffHeapItemStore.RECORDS_PER_PAGE + 100;
+        for (int item = 1; item <= count; item++) {
+            store.add(item, 10 * item);
         }
+        check(name + " keeps the items of many pages", store.size() == count && store.value(1) == 10
+                && store.value(count) == 10 * count && store.isAvailable(OffHeapItemStore.RECORDS_PER_PAGE + 1));
 
-        for (Transaction transaction : transactionsInWaitList) {
-            if(!explored.get(transaction)) {
-                if(checkCycle(transaction, explored, recStack)) {
-                    return true;
-                }
+        store.commit(5, 51, 10, Long.MAX_VALUE);
+        check(name + " keeps no version that no snapshot reads", store.value(5) == 51 && store.commitTime(5) == 10
+                && store.history.isEmpty());
+        store.commit(5, 52, 20, 15);
+        check(name + " keeps the version a snapshot reads", store.versionAt(5, 15).getValue() == 51
+                && store.versionAt(5, 25).getValue() == 52 && store.versionAt(5, 5) == null);
+        store.prune(Long.MAX_VALUE);
+        check(name + " drops the older versions once no snapshot runs", store.history.isEmpty()
+                && store.versionAt(5, 15) == null);
+
+        store.setAvailable(7, false);
+        store.remove(9);
+        check(name + " marks copies and removes items", !store.isAvailable(7) && store.value(7) == 70
+                && !store.contains(9) && store.items().length == count - 1);
+    }
+
+    //whether the transaction read the item from any site
+    static boolean hasRead(Transaction t, int item) {
+        for (HashMap<Integer, Integer> read : t.readValues.values()) {
+            if (read.containsKey(item)) {
+                return true;
             }
         }
-
         return false;
     }
 
-    private static boolean checkCycle(Transaction transaction, HashMap<Transaction, Boolean> explored, HashMap<Transaction, Boolean> recStack) {
-        explored.put(transaction, true);
-        recStack.put(transaction, true);
+    //batches go over their items in increasing order, a write keeps the last value given for an item, and an item
+    //that can't be locked waits alone while the others are done
+    static void testBatches() throws Exception {
+        int[] items = TransactionManager.canonicalOrder(new int[]{4, 2, 4});
+        check("a batch is sorted without repeats", Arrays.equals(items, new int[]{2, 4}) && Arrays.equals(
+                TransactionManager.valuesInOrder(items, new int[]{4, 2, 4}, new int[]{1, 2, 3}), new int[]{2, 3}));
 
-        for (ArrayList<Transaction> transactionArrayList : waitList) {
-            if(transactionArrayList.get(0).equals(transaction)) {
-                Transaction neighbour = transactionArrayList.get(1);
-                if(!explored.get(neighbour)) {
-                    if(checkCycle(neighbour, explored, recStack)) {
-                        return true;
-                    }
-                } else if(recStack.get(neighbour)) {
-                    return true;
+        TransactionManager tm = newSystem();
+        tm.begin(1);
+        tm.writeBatch(1, new int[]{4, 2, 4}, new int[]{1, 2, 3});
+        tm.end(1);
+        check("a batch write commits the last value of each item", Driver.driver.catalog.sites(2)[0].data.value(2) == 2
+                && Driver.driver.catalog.sites(4)[0].data.value(4) == 3);
+
+        tm.begin(2);
+        tm.begin(3);
+        tm.write(3, 6, 66);
+        tm.readBatch(2, new int[]{6, 2});
+        Transaction t2 = tm.transactions.get(2);
+        check("a batch read waits only for the locked item", hasRead(t2, 2) && !hasRead(t2, 6)
+                && t2.waitingCommands.size() == 1);
+        tm.end(3);
+        check("the waiting item is read once it is released", hasRead(t2, 6) && t2.waitingCommands.isEmpty());
+    }
+
+    //run the command server on a thread of its own
+    static Thread serve(final CommandServer server) {
+        Thread serving = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
+        });
+        serving.start();
+        return serving;
+    }
+
+    //a client of the command server, which gives up waiting for a reply after a few seconds
+    static Socket connect(int port) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    static void send(Socket socket, String commands) throws IOException {
+        socket.getOutputStream().write(commands.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    //read what the server sends until the text is received, and return false if it doesn't come
+    static boolean receive(Socket socket, String text) throws IOException {
+        StringBuilder received = new StringBuilder();
+        byte[] buffer = new byte[4096];
+        while (received.indexOf(text) < 0) {
+            int read;
+            try {
+                read = socket.getInputStream().read(buffer);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            if (read < 0) {
+                return false;
+            }
+            received.append(new String(buffer, 0, read, StandardCharsets.US_ASCII));
         }
+        return true;
+    }
 
-        recStack.put(transaction, false);
-        return false;
+    //the transactions that a client began and didn't end are aborted when it goes away, whether it closes its
+    //connection or the connection is reset, so the clients waiting for their locks go on
+    static void testServer() throws Exception {
+        TransactionManager tm = newSystem();
+        Driver.driver.events = new TextEventSink();
+        CommandServer server = new CommandServer(Driver.driver, "0");
+        Thread serving = serve(server);
+        int port = ((InetSocketAddress) server.getAddress()).getPort();
+        try {
+            Socket first = connect(port);
+            send(first, "begin(T1)\nW(T1,x2,5)\n");
+            receive(first, "T1 attempts to write the value 5");
+            Socket second = connect(port);
+            send(second, "begin(T2)\nW(T2,x2,6)\n");
+            check("a write waits for the lock of another client", receive(second, "T2 attempts to write the value 6"));
+            first.close();
+            send(second, "end(T2)\n");
+            check("a client goes on once the client holding its lock closes", receive(second, "T2 commits"));
+            second.close();
+
+            Socket third = connect(port);
+            send(third, "begin(T3)\nW(T3,x4,7)\n");
+            receive(third, "T3 attempts to write the value 7");
+            Socket fourth = connect(port);
+            send(fourth, "begin(T4)\nW(T4,x4,8)\n");
+            receive(fourth, "T4 attempts to write the value 8");
+            third.setSoLinger(true, 0);
+            third.close();
+            send(fourth, "end(T4)\n");
+            check("a client goes on once the connection of the client holding its lock is reset",
+                    receive(fourth, "T4 commits") && tm.metrics.aborts.get(Metrics.ABANDONED) == 2);
+            fourth.close();
+        } finally {
+            server.close();
+            serving.join();
+        }
+    }
+
+    //with the parking transaction manager, a client whose command waits for a lock doesn't hold up the other clients,
+    //and its next commands run once its command is granted the lock, or once the client holding it goes away
+    static void testParkingServer() throws Exception {
+        newSystem();
+        ParkingTransactionManager tm = new ParkingTransactionManager();
+        Driver.driver.transactionManager = tm;
+        Driver.driver.events = new TextEventSink();
+        CommandServer server = new CommandServer(Driver.driver, "0");
+        Thread serving = serve(server);
+        int port = ((InetSocketAddress) server.getAddress()).getPort();
+        try {
+            Socket first = connect(port);
+            send(first, "begin(T1)\nW(T1,x2,5)\n");
+            receive(first, "T1 attempts to write the value 5");
+            Socket second = connect(port);
+            send(second, "begin(T2)\nW(T2,x2,6)\nend(T2)\n");
+            receive(second, "T2 attempts to write the value 6");
+            send(first, "R(T1,x4)\n");
+            check("a client runs its commands while the session of another client is parked",
+                    receive(first, "T1 reads data item x4"));
+            send(first, "end(T1)\n");
+            check("a parked session goes on once the lock is released", receive(first, "T1 commits")
+                    && receive(second, "T2 commits"));
+            first.close();
+            second.close();
+
+            Socket third = connect(port);
+            send(third, "begin(T3)\nW(T3,x6,7)\n");
+            receive(third, "T3 attempts to write the value 7");
+            Socket fourth = connect(port);
+            send(fourth, "begin(T4)\nW(T4,x6,8)\nend(T4)\n");
+            receive(fourth, "T4 attempts to write the value 8");
+            third.setSoLinger(true, 0);
+            third.close();
+            check("a parked session goes on once the client holding its lock goes away", receive(fourth, "T4 commits")
+                    && tm.parkedSessions.get() == 0);
+            fourth.close();
+        } finally {
+            server.close();
+            serving.join();
+        }
     }
 }
@@ -0,0 +1,33 @@
+/**
+ * Prints every event to System.out as it happens
+ */
+public class TextEventSink extends EventSink {
+
+    //the text of the event being printed, reused by the thread that prints it
+    private final ThreadLocal<StringBuilder> line = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+    private final ThreadLocal<Event> event = new ThreadLocal<Event>() {
+        @Override
+        protected Event initialValue() {
+            return new Event();
+        }
+    };
+
+    @Override
+    void emit(int type, int transactionID, int dataItem, int siteId, int value, String text) {
+        if (type == Event.TEXT) {
+            System.out.print(text);
+            return;
+        }
+        Event e = event.get();
+        e.set(type, transactionID, dataItem, siteId, value, null);
+        StringBuilder out = line.get();
+        out.setLength(0);
+        e.format(out);
+        System.out.print(out);
+    }
+}
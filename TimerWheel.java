@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel that holds the deadlines of the commands waiting for a lock.
+ *
+ * Time is counted in ticks, which the owner of the wheel advances. The wheel has a power of two number of buckets, and
+ * a command whose deadline is at tick d is kept in bucket d modulo the number of buckets, in a list linked through the
+ * command itself. Scheduling and cancelling a deadline take constant time and allocate nothing, however many deadlines
+ * are pending. Each tick only goes over the bucket of the new tick: the deadlines due at that tick are expired, and the
+ * ones a whole turn of the wheel or more away stay in the bucket.
+ */
+public class TimerWheel {
+
+    public static final long NEVER = Long.MAX_VALUE;
+    static final int DEFAULT_BUCKETS = 512;
+
+    //the first command of the list of each bucket
+    Command[] buckets;
+    int mask;
+    //the current tick, which the transaction managers read without the lock that advances it
+    volatile long now = 0;
+    int size = 0;
+
+    public TimerWheel() {
+        this(DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param buckets - the number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(int buckets) {
+        int capacity = 1;
+        while (capacity < buckets) {
+            capacity *= 2;
+        }
+        this.buckets = new Command[capacity];
+        mask = capacity - 1;
+    }
+
+    public long now() {
+        return now;
+    }
+
+    //the number of pending deadlines
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedule the deadline of a command that is not scheduled yet
+     *
+     * @param command - the waiting command
+     * @param deadline - the tick at which it expires. A deadline that has already passed expires at the next tick
+     */
+    public void schedule(Command command, long deadline) {
+        deadline = Math.max(deadline, now + 1);
+        int bucket = (int) (deadline & mask);
+        command.deadline = deadline;
+        command.previousTimeout = null;
+        command.nextTimeout = buckets[bucket];
+        if (buckets[bucket] != null) {
+            buckets[bucket].previousTimeout = command;
+        }
+        buckets[bucket] = command;
+        command.scheduled = true;
+        size++;
+    }
+
+    //remove the deadline of the command, if it has one
+    public void cancel(Command command) {
+        if (!command.scheduled) {
+            return;
+        }
+        if (command.previousTimeout != null) {
+            command.previousTimeout.nextTimeout = command.nextTimeout;
+        } else {
+            buckets[(int) (command.deadline & mask)] = command.nextTimeout;
+        }
+        if (command.nextTimeout != null) {
+            command.nextTimeout.previousTimeout = command.previousTimeout;
+        }
+        command.previousTimeout = null;
+        command.nextTimeout = null;
+        command.scheduled = false;
+        size--;
+    }
+
+    /**
+     * Advance the wheel by one tick
+     *
+     * @return - the commands whose deadline is the new tick, which are no longer scheduled
+     */
+    public ArrayList<Command> tick() {
+        now++;
+        ArrayList<Command> expired = new ArrayList<Command>();
+        if (size == 0) {
+            return expired;
+        }
+        Command command = buckets[(int) (now & mask)];
+        while (command != null) {
+            Command next = command.nextTimeout;
+            if (command.deadline <= now) {
+                cancel(command);
+                expired.add(command);
+            }
+            command = next;
+        }
+        return expired;
+    }
+}
@@ -0,0 +1,29 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The timestamp oracle is the logical clock of the system.
+ * Every call to next() returns a timestamp larger than all the timestamps returned before it, so transaction start
+ * times, commit times, and site failure and recovery times are totally ordered without depending on the wall clock.
+ */
+public class TimestampOracle {
+
+    //the time of the initial values of the data items, before any transaction starts
+    public static final long INITIAL = 0;
+
+    AtomicLong clock = new AtomicLong(INITIAL);
+
+    //returns a new timestamp
+    public long next() {
+        return clock.incrementAndGet();
+    }
+
+    //move the clock past a timestamp that was given out before, such as a commit time in the redo logs
+    public void advanceTo(long time) {
+        clock.accumulateAndGet(time, Math::max);
+    }
+
+    //returns the latest timestamp, without advancing the clock
+    public long now() {
+        return clock.get();
+    }
+}
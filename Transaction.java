@@ -1,6 +1,8 @@
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 
 public class Transaction {
     //A transaction can be a read only transaction, or a regular transaction
@@ -10,20 +12,45 @@ public class Transaction {
     int transactionID;
     boolean transactionType;
     long startTime;
-    boolean status;
-
-    public final boolean WAITING = false;
-    public final boolean RUNNING = true;
-
-    HashMap<Data, HashMap<Integer, DataManager>> readValues = new HashMap<Data, HashMap<Integer, DataManager>>();
+    int status;
+
+    //The lifecycle states of a transaction
+    //A transaction is active until one of its commands has to wait for a lock, it is committing while its writes are
+    //being applied at end time, and it is aborted once it has been chosen to abort
+    public static final int ACTIVE = 0;
+    public static final int WAITING = 1;
+    public static final int COMMITTING = 2;
+    public static final int ABORTED = 3;
+
+    //The commands of this transaction that are waiting for a lock, and whether its end is put off until they are done
+    LinkedHashSet<Command> waitingCommands = new LinkedHashSet<Command>();
+    boolean endPending = false;
+    //the tick after which a command of this transaction stops waiting for a lock, when transactions have a deadline
+    long deadline = TimerWheel.NEVER;
+
+    //The data items this transaction read or wrote, and the write commands it issued, where the key is the data item
+    //and the value is the set of values written to it
+    HashSet<Integer> accessedItems = new HashSet<Integer>();
+    HashMap<Integer, HashSet<Integer>> writeCommands = new HashMap<Integer, HashSet<Integer>>();
+
+    //The locks this transaction holds, so they can be released without going over the lock tables of all the sites
+    //The key is the site, and the value maps the data item to the strongest lock type held on it
+    LinkedHashMap<DataManager, LinkedHashMap<Integer, Boolean>> heldLocks = new LinkedHashMap<DataManager, LinkedHashMap<Integer, Boolean>>();
+    //The ranges this transaction holds in shared mode for its scans, by site, including DataManager.SITE_RANGE when
+    //it holds the whole site
+    LinkedHashMap<DataManager, LinkedHashSet<Integer>> heldRanges = new LinkedHashMap<DataManager, LinkedHashSet<Integer>>();
+
+    //The values this transaction read, where the key is the site read from, and the value maps each item read from
+    //the site to the value read
+    HashMap<DataManager, HashMap<Integer, Integer>> readValues = new HashMap<DataManager, HashMap<Integer, Integer>>();
     HashMap<Integer, HashMap<Integer, ArrayList<DataManager>>> writeValues = new HashMap<Integer, HashMap<Integer, ArrayList<DataManager>>>();
 
 
     public Transaction(int transactionID, boolean transactionType) {
         this.transactionID = transactionID;
         this.transactionType = transactionType;
-        startTime = System.currentTimeMillis();
-        status = RUNNING;
+        startTime = Driver.driver.timestamps.next();
+        status = ACTIVE;
     }
 
     public int getTransactionID() {
@@ -38,11 +65,11 @@ public class Transaction {
         return startTime;
     }
 
-    public boolean isStatus() {
+    public int getStatus() {
         return status;
     }
 
-    public void setStatus(boolean status) {
+    public void setStatus(int status) {
         this.status = status;
     }
 
@@ -50,21 +77,91 @@ public class Transaction {
         this.status = WAITING;
     }
 
+    public boolean isAborted() {
+        return status == ABORTED;
+    }
+
     @Override
     public String toString() {
-        return "T" + transactionID + "\t" + (transactionType == READ_ONLY ? "Read Only" : "Regular") + "\t" + "Started at " + startTime + "\tStatus: " + (status == WAITING ? "Waiting" : "Running");
+        return "T" + transactionID + "\t" + (transactionType == READ_ONLY ? "Read Only" : "Regular") + "\t" + "Started at " + startTime + "\tStatus: " + statusName();
+    }
+
+    private String statusName() {
+        switch (status) {
+            case WAITING:
+                return "Waiting";
+            case COMMITTING:
+                return "Committing";
+            case ABORTED:
+                return "Aborted";
+            default:
+                return "Running";
+        }
+    }
+
+    /**
+     * add a write command to the write commands issued by the transaction
+     * @param dataIndex
+     * @param value
+     * @return - true if the transaction had not issued this write command before
+     */
+    public boolean addWriteCommand(int dataIndex, int value) {
+        HashSet<Integer> values = writeCommands.get(dataIndex);
+        if (values == null) {
+            values = new HashSet<Integer>();
+            writeCommands.put(dataIndex, values);
+        }
+        return values.add(value);
+    }
+
+    /**
+     * add a lock to the locks held by the transaction
+     * @param site
+     * @param dataIndex
+     * @param lockType
+     */
+    public void holdLock(DataManager site, int dataIndex, boolean lockType) {
+        heldLocksOn(site).put(dataIndex, lockType);
+    }
+
+    //the locks held on a site, where the key is the data item and the value the strongest lock type held on it
+    public LinkedHashMap<Integer, Boolean> heldLocksOn(DataManager site) {
+        LinkedHashMap<Integer, Boolean> items = heldLocks.get(site);
+        if (items == null) {
+            items = new LinkedHashMap<Integer, Boolean>();
+            heldLocks.put(site, items);
+        }
+        return items;
+    }
+
+    /**
+     * add a range to the ranges held by the transaction
+     * @param site
+     * @param range - the range, or DataManager.SITE_RANGE
+     */
+    public void holdRange(DataManager site, int range) {
+        LinkedHashSet<Integer> ranges = heldRanges.get(site);
+        if (ranges == null) {
+            ranges = new LinkedHashSet<Integer>();
+            heldRanges.put(site, ranges);
+        }
+        ranges.add(range);
     }
 
     /**
      * add a read value to the readValues hash
-     * @param d
+     * @param dataIndex
      * @param value
      * @param site
      */
-    public void read(Data d, int value, DataManager site) {
-        HashMap<Integer, DataManager> temp = new HashMap<Integer, DataManager>();
-        temp.put(value, site);
-        readValues.put(d, temp);
+    public void read(int dataIndex, int value, DataManager site) {
+        site.countRead();
+        HashMap<Integer, Integer> values = readValues.get(site);
+        if (values == null) {
+            values = new HashMap<Integer, Integer>();
+            readValues.put(site, values);
+        }
+        values.put(dataIndex, value);
     }
 
     /**
@@ -78,30 +175,4 @@ public class Transaction {
         temp.put(value, sites);
         writeValues.put(dataIndex, temp);
     }
-
-    /**
-     * When a read is done by a read only transaction it attempts to read the value that is stored in its readValues
-     * hash, if it has it
-     *
-     * @param dataIndex
-     * @return
-     */
-    public int printRead(int dataIndex) {
-        DataManager m = null;
-        int dataValue = 0;
-
-        for (Map.Entry<Data, HashMap<Integer, DataManager>> dataHashMapEntry : readValues.entrySet()) {
-            if(dataHashMapEntry.getKey().dataIndex == dataIndex) {
-                for (Map.Entry<Integer, DataManager> integerDataManagerEntry : dataHashMapEntry.getValue().entrySet()) {
-                    m = integerDataManagerEntry.getValue();
-                    dataValue = integerDataManagerEntry.getKey();
-                }
-                System.out.println("T" + transactionID + " reads data item x" + dataIndex + "." + m.siteId + " = " + dataValue);
-                return 1;
-            }
-        }
-
-        System.out.println("T" + transactionID + " cannot read item x" + dataIndex);
-        return 0;
-    }
 }
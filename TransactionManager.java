@@ -1,4 +1,6 @@
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This system should contain one instance of this class.
@@ -11,17 +13,67 @@ public class TransactionManager {
     public final boolean REGULAR = true;
     public final boolean READ_ONLY = false;
 
-    //An arrayList that tracks transactions
-    ArrayList<Transaction> transactions = new ArrayList<Transaction>();
-
-    //These two array lists keep track of transactions waiting on each other, to detect and resolve deadlocks
-    ArrayList<ArrayList<Transaction>> waitList = new ArrayList<ArrayList<Transaction>>();
-    ArrayList<Command> commands = new ArrayList<Command>();
+    //Deadlocks are either detected in the waits-for graph once they happen, or prevented by the ages of the
+    //transactions when a command is about to wait: with wait-die a transaction never waits for an older one, and with
+    //wound-wait never for a younger one
+    public static final int DETECT = 0;
+    public static final int WAIT_DIE = 1;
+    public static final int WOUND_WAIT = 2;
+    int deadlockPolicy = DETECT;
+
+    //the aborts by reason, the latencies of commits and the time spent looking for deadlocks
+    Metrics metrics = new Metrics();
+
+    //A command can wait for a lock for at most lockWaitTimeout ticks, and the commands of a transaction stop waiting
+    //transactionTimeout ticks after it began, unless they are NO_TIMEOUT. The clock advances by one tick for each
+    //command the driver runs, and the deadlines of the waiting commands are kept in a timer wheel, or it is null if
+    //waits don't time out
+    public static final int NO_TIMEOUT = 0;
+    int lockWaitTimeout = NO_TIMEOUT;
+    int transactionTimeout = NO_TIMEOUT;
+    TimerWheel deadlines;
+    //the woken up command that is being attempted again, whose wait keeps its deadline if it has to wait again
+    Command replaying;
+
+    //The table of running transactions, keyed by transaction ID
+    TransactionTable transactions = new TransactionTable();
+
+    //The waits-for graph keeps track of transactions waiting on each other, to detect and resolve deadlocks
+    WaitsForGraph waitsFor = new WaitsForGraph();
+
+    //The access index, used to find the transactions a command conflicts with
+    //The key is the data item, and the value maps the running transactions that accessed it, in the order of their
+    //first access, to LockTuple.WRITE if they wrote the item, or LockTuple.READ if they only read it
+    //The entries of different items can be changed at the same time by the concurrent transaction manager
+    ConcurrentHashMap<Integer, LinkedHashMap<Transaction, Boolean>> accesses = new ConcurrentHashMap<Integer, LinkedHashMap<Transaction, Boolean>>();
+
+    //The start times of the running read-only transactions, with the number of transactions that started at each time
+    //The oldest one decides which old versions of the data items can still be read
+    TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+
+    //The commands that are waiting for a lock, in the order in which they arrived
+    //Each waiting command is also queued on the lock header of the item it waits for on one site, so releasing a lock
+    //only wakes up the commands that were waiting on that item
+    LinkedHashSet<Command> waitingCommands = new LinkedHashSet<Command>();
+
+    //The commands that were woken up by a lock release, in the order they were queued, and which are executed again
+    ArrayDeque<Command> readyCommands = new ArrayDeque<Command>();
+    boolean runningReadyCommands = false;
+
+    public void setDeadlockPolicy(int deadlockPolicy) {
+        this.deadlockPolicy = deadlockPolicy;
+    }
 
-    //LinkedList works like a Queue with FIFO by using get(0), and remove(Object at index 0)
-    //The purpose of this Linked list is to keep track of the commands in the order in which they arrive and execute
-    //them when transactions are waiting
-    LinkedList<Command> waitingCommands = new LinkedList<Command>();
+    /**
+     * @param lockWaitTimeout - the number of ticks a command can wait for a lock, or NO_TIMEOUT
+     * @param transactionTimeout - the number of ticks after its begin that the commands of a transaction can wait
+     *                           for a lock, or NO_TIMEOUT
+     */
+    public void setTimeouts(int lockWaitTimeout, int transactionTimeout) {
+        this.lockWaitTimeout = lockWaitTimeout;
+        this.transactionTimeout = transactionTimeout;
+        deadlines = lockWaitTimeout == NO_TIMEOUT && transactionTimeout == NO_TIMEOUT ? null : new TimerWheel();
+    }
 
     /**
      * A regular transaction begins by creating an object for the transaction and adding it to the list of transactions
@@ -29,34 +81,25 @@ public class TransactionManager {
      * @param transactionID - the ID of the transaction that is starting
      */
     public void begin(int transactionID) {
-        transactions.add(new Transaction(transactionID, REGULAR));
-        System.out.println("T" + transactionID + " starts as a regular transaction");
+        Transaction t = new Transaction(transactionID, REGULAR);
+        if (deadlines != null && transactionTimeout != NO_TIMEOUT) {
+            t.deadline = deadlines.now() + transactionTimeout;
+        }
+        transactions.add(t);
+        Driver.driver.events.begin(transactionID);
     }
 
     /**
-     * When a read only transaction starts it reads all the available data items available at start time and stores
-     * them in an array that is specific for the transaction
+     * When a read only transaction starts it only records its start time. Each of its reads then reads the version of
+     * the data item that was committed when it started
      *
      * @param transactionID - the ID of the transaction that is starting
      */
     public void beginReadOnly(int transactionID) {
         Transaction t = new Transaction(transactionID, READ_ONLY);
         transactions.add(t);
-        System.out.println("T" + transactionID + " starts as a read-only transaction");
-
-        for (DataManager dataSite : Driver.driver.dataSites) {
-            //Check that the site is up
-            if(dataSite.status == DataManager.RUNNING) {
-                for (Map.Entry<Integer, Data> entry : dataSite.data.entrySet()) {
-                    //Check that that the site contains the data item, and that it is available for read
-                    if(!t.readValues.containsKey(entry.getKey()) && dataSite.failedData.get(entry.getKey()) != null) {
-                        HashMap<Integer, DataManager> temp = new HashMap<Integer, DataManager>();
-                        temp.put(entry.getValue().getDataValue(), dataSite);
-                        t.readValues.put(entry.getValue(), temp);
-                    }
-                }
-            }
-        }
+        addSnapshot(t.startTime);
+        Driver.driver.events.beginReadOnly(transactionID);
     }
 
     /**
@@ -73,13 +116,7 @@ public class TransactionManager {
         //Determine the transaction object that is doing the reading
         //The point of this is to know to which transaction object to store the read value, and to make sure that the
         //transaction is still running, and that it had not failed at a previous point.
-        Transaction t = null;
-        for (Transaction transaction : transactions) {
-            if(transaction.getTransactionID() == transactionID) {
-                t = transaction;
-                break;
-            }
-        }
+        Transaction t = transactions.get(transactionID);
 
         boolean allSitesDown = true;
 
@@ -90,113 +127,69 @@ public class TransactionManager {
                 //The command object is created
                 Command command = new Command("R", transactionID, dataIndex, 0);
                 //determine if there is any transaction that this command would conflict with -
-                //i.e. a different transaction that has an earlier write lock on the same data item
-                for (Command strings : commands) {
-                    if (strings.getDataItem() == command.getDataItem() && strings.getTransactionID() != command.getTransactionID() && strings.getCommand().equals("W")) {
-                        //Then our transaction needs to wait for this previous transaction iff it is still running
-                        //We add the transactions to the wait list
-                        ArrayList<Transaction> newWait = new ArrayList<Transaction>();
-                        Transaction t1 = null;
-                        Transaction t2 = null;
-                        for (Transaction transaction : transactions) {
-                            if (transaction.getTransactionID() == transactionID) {
-                                t1 = transaction;
-                            } else if (transaction.getTransactionID() == strings.getTransactionID()) {
-                                t2 = transaction;
-                            }
-                        }
-
-                        if(t1 != null && t2 != null) {
-                            newWait.add(t1);
-                            newWait.add(t2);
-                            //check that we don't already have the edge between T1 and T2 in the wait list
-                            if (!waitList.contains(newWait))
-                                waitList.add(newWait);
-
-                            if (checkDeadLock()) {
-                                //To break out of the method in case of a deadlock
-                                return 0;
-                            }
-                        }
-                    }
+                //i.e. a different running transaction that wrote the same data item
+                if (addConflicts(t, dataIndex, true)) {
+                    //To break out of the method in case of a deadlock
+                    return 0;
                 }
-                commands.add(command);
+                addAccess(t, dataIndex, LockTuple.READ);
 
                 boolean read = false;
+                //the first copy that is locked by another transaction, and the first copy that is not available for
+                //read, to know where the command waits if it can't read
+                DataManager lockedSite = null;
+                DataManager unavailableSite = null;
 
                 //if the transaction has already written the data item, then it reads the same value that it wrote
                 if(t.writeValues.containsKey(dataIndex)) {
+                    t.setStatus(Transaction.ACTIVE);
                     int siteId = 0;
                     int dataValue = 0;
                     for (Map.Entry<Integer, ArrayList<DataManager>> entry : t.writeValues.get(dataIndex).entrySet()) {
                         try {
                             siteId = entry.getValue().get(0).siteId;
                         } catch (IndexOutOfBoundsException e) {
-                            System.out.println();
+                            Driver.driver.events.print(Event.NEWLINE);
                         }
                         dataValue = entry.getKey();
                     }
 
-                    System.out.println("T" + transactionID + " reads data item x" + dataIndex + "." + siteId + " = " + dataValue);
+                    Driver.driver.events.read(transactionID, dataIndex, siteId, dataValue);
                     read = true;
                     allSitesDown = false;
                 }
                 //otherwise, it looks for the data item elsewhere
                 else {
-                    //iterate over the data sites
-                    for (DataManager dataSite : Driver.driver.dataSites) {
+                    //iterate over the data sites that hold a copy of the item, in the order of the replica selection
+                    for (DataManager dataSite : Driver.driver.catalog.readOrder(t, dataIndex)) {
                         //check if the sites are up
                         if (dataSite.status == DataManager.RUNNING) {
                             //and if they contain the data item we want
-                            if (dataSite.data.containsKey(dataIndex)) {
+                            if (dataSite.data.contains(dataIndex)) {
                                 allSitesDown = false;
                                 //and that item is available to be read - i.e. it's not a duplicated item on a site that recovered before the item is written and committed again
-                                if (dataSite.failedData.get(dataIndex) != null) {
-                                    if (dataSite.lockTable.containsKey(dataIndex)) {
-                                        //and that it doesn't have any locks on it but the data item exists in the lock table
-                                        if (dataSite.lockTable.get(dataIndex).size() == 0) {
-                                            //OK to read
-                                            read = true;
-                                            HashMap<Integer, DataManager> temp = new HashMap<Integer, DataManager>();
-                                            temp.put(dataSite.data.get(dataIndex).getDataValue(), dataSite);
-                                            t.readValues.put(dataSite.data.get(dataIndex), temp);
-                                            dataSite.lockTable.get(dataIndex).add(new LockTuple(transactionID, LockTuple.READ));
-                                            System.out.println("T" + transactionID + " reads data item x" + dataIndex + "." + dataSite.siteId + " = " + dataSite.data.get(dataIndex).getDataValue());
-                                            break;
-                                        }
-                                        //or has only read locks, or a write lock that is by the same transaction
-                                        else {
-                                            boolean allReads = true;
-                                            for (LockTuple lockTuple : dataSite.lockTable.get(dataIndex)) {
-                                                if (lockTuple.lockType == LockTuple.WRITE && lockTuple.transaction != transactionID) {
-                                                    allReads = false;
-                                                }
-                                            }
-                                            if (allReads) {
-                                                //OK to read
-                                                read = true;
-                                                HashMap<Integer, DataManager> temp = new HashMap<Integer, DataManager>();
-                                                temp.put(dataSite.data.get(dataIndex).getDataValue(), dataSite);
-                                                t.readValues.put(dataSite.data.get(dataIndex), temp);
-                                                dataSite.lockTable.get(dataIndex).add(new LockTuple(transactionID, LockTuple.READ));
-                                                System.out.println("T" + transactionID + " reads data item x" + dataIndex + "." + dataSite.siteId + " = " + dataSite.data.get(dataIndex).getDataValue());
-                                                break;
-                                            }
-                                        }
+                                if (dataSite.data.isAvailable(dataIndex)) {
+                                    LockHeader header = dataSite.lockTable.get(dataIndex);
+                                    if (header != null && header.canRead(transactionID) && addOvertaken(t, header)) {
+                                        //To break out of the method in case of a deadlock
+                                        return 0;
                                     }
-                                    //and that it doesn't have any locks on it but the data item doesn't exist in the lock table
-                                    else {
+                                    //a deadlock victim may have released its locks and let waiting commands run
+                                    header = dataSite.lockTable.get(dataIndex);
+                                    //and that it doesn't have any locks on it, or has only read locks, or a write lock that is by the same transaction
+                                    if (header == null || header.canRead(transactionID)) {
                                         //OK to read
                                         read = true;
-                                        HashMap<Integer, DataManager> temp = new HashMap<Integer, DataManager>();
-                                        temp.put(dataSite.data.get(dataIndex).getDataValue(), dataSite);
-                                        t.readValues.put(dataSite.data.get(dataIndex), temp);
-                                        ArrayList<LockTuple> tempList = new ArrayList<LockTuple>();
-                                        tempList.add(new LockTuple(transactionID, LockTuple.READ));
-                                        dataSite.lockTable.put(dataIndex, tempList);
-                                        System.out.println("T" + transactionID + " reads data item x" + dataIndex + "." + dataSite.siteId + " = " + dataSite.data.get(dataIndex).getDataValue());
+                                        t.setStatus(Transaction.ACTIVE);
+                                        t.read(dataIndex, dataSite.data.value(dataIndex), dataSite);
+                                        dataSite.lock(dataIndex, t, LockTuple.READ);
+                                        Driver.driver.events.read(transactionID, dataIndex, dataSite.siteId, dataSite.data.value(dataIndex));
                                         break;
+                                    } else if (lockedSite == null) {
+                                        lockedSite = dataSite;
                                     }
+                                } else if (unavailableSite == null) {
+                                    unavailableSite = dataSite;
                                 }
                             }
                         }
@@ -205,17 +198,17 @@ public class TransactionManager {
 
                 //if the transaction cannot read the data item, the read call is added ot the waiting commands to be attempted once other transactions are committed
                 if (!read && !allSitesDown) {
-                    //wait
-                    waitingCommands.add(command);
+                    //wait on the copy that is locked by another transaction, or, if there is none, on a copy that becomes
+                    //available for read once a write to it commits and releases its lock
+                    waitFor(t, command, lockedSite != null ? lockedSite : unavailableSite);
                 } else if(allSitesDown) {
-                    abort(t);
+                    abort(t, Metrics.ALL_SITES_DOWN);
                     transactions.remove(t);
-                    System.out.println("\nT" + transactionID + " aborted because all sites are down.");
+                    Driver.driver.events.abort(Event.ABORT_ALL_SITES_DOWN, transactionID, dataIndex, 0);
                 }
             } else {
-                //Read the value in t.readValues().get(dataIndex)
-                //values are already there at start of transaction
-                t.printRead(dataIndex);
+                //Read the version of the data item that was committed when the transaction started
+                readVersion(t, dataIndex);
             }
             return 1;
         } else {
@@ -223,6 +216,76 @@ public class TransactionManager {
         }
     }
 
+    /**
+     * A read-only transaction reads the latest version of the data item committed before it started, from a running
+     * site. A copy of a replicated item can only be used if its site did not fail between the commit of that version
+     * and the start of the transaction, otherwise the copy may have missed later writes
+     *
+     * @param t - the read-only transaction
+     * @param dataIndex - the index of the data item being read
+     * @return - 1 if the item was read, 0 if no site has a version the transaction can read
+     */
+    int readVersion(Transaction t, int dataIndex) {
+        DataManager[] sites = Driver.driver.catalog.readOrder(t, dataIndex);
+        boolean replicated = sites.length > 1;
+
+        for (DataManager dataSite : sites) {
+            if (dataSite.status == DataManager.RUNNING) {
+                Version version = dataSite.data.versionAt(dataIndex, t.startTime);
+                if (version != null && (!replicated || dataSite.upBetween(version.commitTime, t.startTime))) {
+                    dataSite.countRead();
+                    Driver.driver.events.read(t.transactionID, dataIndex, dataSite.siteId, version.value);
+                    return 1;
+                }
+            }
+        }
+
+        Driver.driver.events.cannotRead(t.transactionID, dataIndex);
+        return 0;
+    }
+
+    //add the start time of a read-only transaction to the running snapshots
+    void addSnapshot(long startTime) {
+        synchronized (snapshots) {
+            Integer count = snapshots.get(startTime);
+            snapshots.put(startTime, count == null ? 1 : count + 1);
+        }
+    }
+
+    //remove the start time of a read-only transaction that ended, and once the oldest snapshot moves forward, drop
+    //the versions that only it could read
+    void removeSnapshot(long startTime) {
+        long oldest;
+        synchronized (snapshots) {
+            Integer count = snapshots.get(startTime);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                snapshots.put(startTime, count - 1);
+                return;
+            }
+            snapshots.remove(startTime);
+            oldest = snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+            if (oldest < startTime) {
+                return;
+            }
+        }
+        for (DataManager dataSite : Driver.driver.dataSites) {
+            dataSite.data.prune(oldest);
+        }
+    }
+
+    /**
+     * @return - the start time of the oldest running read-only transaction, or Long.MAX_VALUE if there is none, in
+     * which case only the latest version of each data item is kept
+     */
+    public long oldestSnapshot() {
+        synchronized (snapshots) {
+            return snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+        }
+    }
+
     /**
      * this method attempts to take a write lock on a data item for the transaction to update the data item value
      *
@@ -238,72 +301,41 @@ public class TransactionManager {
 
         Command command = new Command("W", transactionID, dataIndex, dataValue);
 
-        boolean commandSeen = false;
-
-        for (Command command1 : commands) {
-            if(command1.dataValue == command.dataValue && command1.dataItem == command.dataItem && command1.transactionID == command.transactionID && command1.command.equals(command.command)) {
-                commandSeen = true;
-                break;
-            }
+        Transaction t = transactions.get(transactionID);
+        if (t == null) {
+            return 0;
         }
 
-        if(!commandSeen) {
-            for (Command strings : commands) {
-                if (strings.getDataItem() == command.getDataItem() && strings.getTransactionID() != command.getTransactionID()) {
-                    //Then our transaction needs to wait for this old transaction
-                    ArrayList<Transaction> newWait = new ArrayList<Transaction>();
-                    Transaction t1 = null;
-                    Transaction t2 = null;
-                    for (Transaction transaction : transactions) {
-                        if (transaction.getTransactionID() == transactionID) {
-                            t1 = transaction;
-                        } else if (transaction.getTransactionID() == strings.getTransactionID()) {
-                            t2 = transaction;
-                        }
-                    }
-
-                    if(t1 != null && t2 != null) {
-                        newWait.add(t1);
-                        newWait.add(t2);
-
-                        if (!waitList.contains(newWait))
-                            waitList.add(newWait);
-
-                        if (checkDeadLock()) {
-                            //To break out of the method in case of a deadlock
-                            return 0;
-                        }
-                    }
-                }
+        //the transaction's own set of write commands tells whether this command was seen before
+        if(t.addWriteCommand(dataIndex, dataValue)) {
+            //Then our transaction needs to wait for any other running transaction that accessed the data item
+            if (addConflicts(t, dataIndex, false)) {
+                //To break out of the method in case of a deadlock
+                return 0;
             }
-            commands.add(command);
+            addAccess(t, dataIndex, LockTuple.WRITE);
         }
 
-        System.out.println("T" + transactionID + " attempts to write the value " + dataValue + " to data item x" + dataIndex);
+        Driver.driver.events.write(transactionID, dataIndex, dataValue);
 
         ArrayList<DataManager> sitesToWriteTo = new ArrayList<DataManager>();
 
         //To write, the transaction must take write locks on all copies of the data item that are available on running sites
         boolean canWrite = true;
-        for (DataManager dataSite : Driver.driver.dataSites) {
+        for (DataManager dataSite : Driver.driver.catalog.sites(dataIndex)) {
             if(dataSite.status == DataManager.RUNNING) {
-                if(dataSite.data.containsKey(dataIndex)) {
-                    if(dataSite.lockTable.containsKey(dataIndex)) {
-                        //if the lock table has this item, but doesn't have any locks on it, or it has one lock that is for the same transaction it is okay to write to this site
-                        if (dataSite.lockTable.get(dataIndex).size() == 0 || (dataSite.lockTable.get(dataIndex).size() == 1 && dataSite.lockTable.get(dataIndex).get(0).transaction == transactionID)) {
-                            sitesToWriteTo.add(dataSite);
-                        }
-                        //if the data item is in the lock table, and there are locks that are for other transaction then the entire write cannot be completed, and the command is added to the waiting queue
-                        else {
-                            sitesToWriteTo = null;
-                            canWrite = false;
-                            waitingCommands.add(command);
-                            break;
-                        }
+                if(dataSite.data.contains(dataIndex)) {
+                    //if the item doesn't have any locks on it, or the only lock is for the same transaction, and no other
+                    //transaction scans it, it is okay to write to this site
+                    if (dataSite.canWrite(dataIndex, transactionID)) {
+                        sitesToWriteTo.add(dataSite);
                     }
-                    //if the data lock table doesn't contain the data item at all it's okay to write to it
+                    //if there are locks that are for other transaction then the entire write cannot be completed, and the command is added to the waiting queue
                     else {
-                        sitesToWriteTo.add(dataSite);
+                        sitesToWriteTo = null;
+                        canWrite = false;
+                        waitFor(t, command, dataSite);
+                        break;
                     }
                 }
             }
@@ -315,32 +347,19 @@ public class TransactionManager {
         //are added in a hash in the transaction object to be committed at the time it ends, and locks are added on all
         //the data items that are going to be written on all the sites
         if(canWrite) {
-            Transaction t = null;
-            for (Transaction transaction : transactions) {
-                if (transaction.getTransactionID() == transactionID) {
-                    t = transaction;
-                    break;
-                }
-            }
+            t.setStatus(Transaction.ACTIVE);
 
             if (sitesToWriteTo.size() != 0) {
                 t.write(dataIndex, dataValue, sitesToWriteTo);
                 for (DataManager dataManager : sitesToWriteTo) {
-                    if (dataManager.lockTable.containsKey(dataIndex)) {
-                        dataManager.lockTable.get(dataIndex).add(new LockTuple(transactionID, LockTuple.WRITE));
-                    } else {
-                        LockTuple lockTuple = new LockTuple(transactionID, LockTuple.WRITE);
-                        ArrayList<LockTuple> tempList = new ArrayList<LockTuple>();
-                        tempList.add(lockTuple);
-                        dataManager.lockTable.put(dataIndex, tempList);
-                    }
+                    dataManager.lock(dataIndex, t, LockTuple.WRITE);
                 }
             }
             //it didn't find any sites to write to, which we can assume is because it is trying to write to a failed site
             else {
-                abort(t);
+                abort(t, Metrics.SITE_FAILURE);
                 transactions.remove(t);
-                System.out.println("\nT" + t.transactionID + " aborted because of site failure.");
+                Driver.driver.events.abort(Event.ABORT_SITE_FAILURE, t.transactionID, dataIndex, 0);
             }
         }
 
@@ -348,208 +367,799 @@ public class TransactionManager {
     }
 
     /**
-     * Check deadlock method
-     * @return - true if there is a deadlock, false if there is no deadlock
-     * @throws Exception
+     * Read a set of data items in one command. The items are read in increasing order, each only once, as if the
+     * transaction read them one at a time in that order, so that transactions reading overlapping sets take their
+     * locks in the same order.
+     * If every item can be read right away - no other running transaction wrote it, and its first readable copy is
+     * free - the copies are chosen and checked for the whole set first, and then each site locks the items read from
+     * it in one pass. Otherwise the items are read one at a time, and those that can't be read wait as single reads
      *
-     * Algorithm for this method is adapted from http://www.geeksforgeeks.org/detect-cycle-in-a-graph/
+     * @param transactionID - the ID of the transaction doing the reading
+     * @param dataIndexes - the indexes of the data items being read
+     * @return - 0 if the transaction is not running or aborted on the way, and 1 otherwise
+     * @throws Exception
      */
-    public boolean checkDeadLock() throws Exception {
-        ArrayList<Transaction> transactionsInWaitList = new ArrayList<Transaction>();
-        for (ArrayList<Transaction> list : waitList) {
-            if(!transactionsInWaitList.contains(list.get(0)))
-                transactionsInWaitList.add(list.get(0));
-            if(!transactionsInWaitList.contains(list.get(1)))
-                transactionsInWaitList.add(list.get(1));
+    public int readBatch(int transactionID, int[] dataIndexes) throws Exception {
+        Transaction t = transactions.get(transactionID);
+        if (t == null) {
+            return 0;
+        }
+        int[] items = canonicalOrder(dataIndexes);
+        if (t.transactionType == Transaction.READ_ONLY) {
+            for (int dataIndex : items) {
+                readVersion(t, dataIndex);
+            }
+            return 1;
         }
 
-        HashMap<Transaction, Boolean> explored = new HashMap<Transaction, Boolean>();
-        for (Transaction t : transactionsInWaitList) {
-            explored.put(t, false);
+        DataManager[] copies = readableCopies(t, items);
+        if (copies != null) {
+            readFrom(t, items, copies);
+            return 1;
         }
+        return readEach(transactionID, items);
+    }
 
-        HashMap<Transaction, Boolean> recStack = new HashMap<Transaction, Boolean>();
-        for (Transaction t : transactionsInWaitList) {
-            recStack.put(t, false);
+    /**
+     * Write a set of data items in one command. The items are written in increasing order, and an item given more
+     * than once gets the last value given for it.
+     * If every item can be written right away - no other running transaction accessed it, and all its running copies
+     * are free - each site locks the items written to it in one pass. Otherwise the items are written one at a time,
+     * and those that can't be written wait as single writes
+     *
+     * @param transactionID - the ID of the transaction doing the writing
+     * @param dataIndexes - the data items being updated
+     * @param dataValues - the new values of the data items, in the same order
+     * @return - 0 if the transaction is not running or aborted on the way, and 1 otherwise
+     * @throws Exception
+     */
+    public int writeBatch(int transactionID, int[] dataIndexes, int[] dataValues) throws Exception {
+        Transaction t = transactions.get(transactionID);
+        if (t == null) {
+            return 0;
         }
+        int[] items = canonicalOrder(dataIndexes);
+        int[] values = valuesInOrder(items, dataIndexes, dataValues);
 
-        for (Transaction transaction : transactionsInWaitList) {
-            if(!explored.get(transaction)) {
-                if(checkCycle(transaction, explored, recStack)) {
-                    long latest = 0;
-                    Transaction t = null;
+        ArrayList<DataManager>[] copies = writableCopies(t, items);
+        if (copies != null) {
+            writeTo(t, items, values, copies);
+            return 1;
+        }
+        return writeEach(transactionID, items, values);
+    }
 
-                    //go over the transactions and find the transaction with the latest start time
-                    for (Map.Entry<Transaction, Boolean> entry : recStack.entrySet()) {
-                        if (entry.getValue()) {
-                            if(entry.getKey().startTime > latest) {
-                                t = entry.getKey();
-                                latest = entry.getKey().startTime;
-                            }
-                        }
-                    }
+    /**
+     * Read every item from one item to another, without locking each of them. The copies are chosen first: a copy the
+     * replica selection orders first among the readable ones, or the copy on the site of the previous item if it can
+     * be read there, so that the scan reads from as few ranges as it can. The scan then locks in shared mode each range
+     * it reads on a site, or the whole site when it reads more than ESCALATION_RANGES ranges there, and only then
+     * reads the values.
+     * A range can't be locked while another transaction holds the write lock of an item in it, in which case the scan
+     * waits on that item and starts over once it is released. While the scan holds a range, writes to its items wait
+     * for the transaction to end, and single reads are not held up.
+     * Items that the transaction wrote are read from its own writes, and items no copy of which can be read are skipped
+     *
+     * @param transactionID - the ID of the transaction doing the reading
+     * @param first - the first item of the scan
+     * @param last - the last item of the scan
+     * @return - 0 if the transaction is not running, and 1 otherwise, whether the scan happened or is waiting
+     * @throws Exception
+     */
+    public int scan(int transactionID, int first, int last) throws Exception {
+        Transaction t = transactions.get(transactionID);
+        if (t == null) {
+            return 0;
+        }
+        if (t.transactionType == Transaction.READ_ONLY) {
+            for (int dataIndex : Driver.driver.catalog.items(first, last)) {
+                readVersion(t, dataIndex);
+            }
+            return 1;
+        }
 
-                    //Print the transactions that are causing the deadlock
-                    System.out.print("\nTransaction T" + t.getTransactionID() + " aborted for a deadlock with transactions ");
-                    ArrayList<Transaction> transactionsInDeadlock = new ArrayList<Transaction>();
-                    transactionsInDeadlock.add(t);
-                    for (Map.Entry<Transaction, Boolean> entry : recStack.entrySet()) {
-                        if (entry.getValue() && entry.getKey().getTransactionID() != t.getTransactionID()) {
-                            System.out.print("T" + entry.getKey().getTransactionID() + " ");
-                            transactionsInDeadlock.add(entry.getKey());
-                        }
-                    }
-                    System.out.println();
-
-                    boolean started = false;
-                    for (ArrayList<Transaction> transactionArrayList : waitList) {
-                        if(transactionsInDeadlock.contains(transactionArrayList.get(0)) && transactionsInDeadlock.contains(transactionArrayList.get(1))) {
-                            if(started) {
-                                System.out.print("\t\tT" + transactionArrayList.get(0).transactionID + "\t-->\tT" + transactionArrayList.get(1).transactionID);
-                            } else {
-                                System.out.print("T" + transactionArrayList.get(0).transactionID + "\t-->\tT" + transactionArrayList.get(1).transactionID);
-                                started = true;
-                            }
+        //the copy each item is read from, or null for the items the transaction wrote and the items it can't read,
+        //and the ranges read on each site. Only the items that exist are visited, however wide the range is
+        ArrayList<Integer> items = new ArrayList<Integer>();
+        ArrayList<DataManager> copies = new ArrayList<DataManager>();
+        LinkedHashMap<DataManager, TreeSet<Integer>> ranges = new LinkedHashMap<DataManager, TreeSet<Integer>>();
+        DataManager previous = null;
+        for (int dataIndex : Driver.driver.catalog.items(first, last)) {
+            DataManager copy = null;
+            if (!t.writeValues.containsKey(dataIndex)) {
+                if (previous != null && previous.isReadable(dataIndex)) {
+                    copy = previous;
+                } else {
+                    for (DataManager dataSite : Driver.driver.catalog.readOrder(t, dataIndex)) {
+                        if (dataSite.isReadable(dataIndex)) {
+                            copy = dataSite;
+                            break;
                         }
                     }
-                    System.out.println("\n");
+                }
+            }
+            items.add(dataIndex);
+            copies.add(copy);
+            if (copy != null) {
+                TreeSet<Integer> siteRanges = ranges.get(copy);
+                if (siteRanges == null) {
+                    siteRanges = new TreeSet<Integer>();
+                    ranges.put(copy, siteRanges);
+                }
+                siteRanges.add(DataManager.range(dataIndex));
+                previous = copy;
+            }
+        }
 
-                    //abort the transaction
-                    abort(t);
-                    //remove it from the list of transactions
-                    transactions.remove(t);
-                    return true;
+        //the scan locks all its ranges, or waits on an item written in one of them
+        for (Map.Entry<DataManager, TreeSet<Integer>> entry : ranges.entrySet()) {
+            DataManager dataSite = entry.getKey();
+            if (entry.getValue().size() > DataManager.ESCALATION_RANGES) {
+                entry.setValue(new TreeSet<Integer>(Collections.singleton(DataManager.SITE_RANGE)));
+            }
+            for (int range : entry.getValue()) {
+                int writtenItem = dataSite.writtenItem(range, transactionID);
+                if (writtenItem != -1) {
+                    Command command = new Command("S", transactionID, writtenItem, 0);
+                    command.first = first;
+                    command.last = last;
+                    waitFor(t, command, dataSite);
+                    return 1;
+                }
+            }
+        }
+
+        t.setStatus(Transaction.ACTIVE);
+        for (Map.Entry<DataManager, TreeSet<Integer>> entry : ranges.entrySet()) {
+            for (int range : entry.getValue()) {
+                entry.getKey().scanLock(range, t);
+            }
+        }
+        for (int i = 0; i < items.size(); i++) {
+            int dataIndex = items.get(i);
+            DataManager copy = copies.get(i);
+            if (copy != null) {
+                copy.countRead();
+                Driver.driver.events.read(transactionID, dataIndex, copy.siteId, copy.data.value(dataIndex));
+            } else if (t.writeValues.containsKey(dataIndex)) {
+                for (Map.Entry<Integer, ArrayList<DataManager>> entry : t.writeValues.get(dataIndex).entrySet()) {
+                    Driver.driver.events.read(transactionID, dataIndex, entry.getValue().get(0).siteId, entry.getKey());
+                }
+            } else {
+                Driver.driver.events.cannotRead(transactionID, dataIndex);
+            }
+        }
+        return 1;
+    }
+
+    //read the items of a batch one at a time, stopping if the transaction aborts
+    int readEach(int transactionID, int[] items) throws Exception {
+        for (int dataIndex : items) {
+            if (!transactions.contains(transactionID)) {
+                return 0;
+            }
+            read(transactionID, dataIndex);
+        }
+        return transactions.contains(transactionID) ? 1 : 0;
+    }
+
+    //write the items of a batch one at a time, stopping if the transaction aborts
+    int writeEach(int transactionID, int[] items, int[] values) throws Exception {
+        for (int i = 0; i < items.length; i++) {
+            if (!transactions.contains(transactionID)) {
+                return 0;
+            }
+            write(transactionID, items[i], values[i]);
+        }
+        return transactions.contains(transactionID) ? 1 : 0;
+    }
+
+    //the distinct items of a batch, in increasing order
+    static int[] canonicalOrder(int[] dataIndexes) {
+        int[] items = dataIndexes.clone();
+        Arrays.sort(items);
+        int count = 0;
+        for (int i = 0; i < items.length; i++) {
+            if (count == 0 || items[count - 1] != items[i]) {
+                items[count++] = items[i];
+            }
+        }
+        return Arrays.copyOf(items, count);
+    }
+
+    //the last value given for each item of a batch, in the canonical order of the items
+    static int[] valuesInOrder(int[] items, int[] dataIndexes, int[] dataValues) {
+        int[] values = new int[items.length];
+        for (int i = 0; i < dataIndexes.length; i++) {
+            values[Arrays.binarySearch(items, dataIndexes[i])] = dataValues[i];
+        }
+        return values;
+    }
+
+    /**
+     * Find the copy that a regular transaction reads each item from, if it can read all of them without waiting,
+     * without conflicting with another transaction, and without going ahead of waiting commands
+     *
+     * @param t - the regular transaction doing the reading
+     * @param items - the items being read
+     * @return - the copy read for each item, or null if one of the items can't be read right away
+     */
+    DataManager[] readableCopies(Transaction t, int[] items) {
+        if (!t.waitingCommands.isEmpty()) {
+            return null;
+        }
+        DataManager[] copies = new DataManager[items.length];
+        for (int i = 0; i < items.length; i++) {
+            copies[i] = readableCopy(t, items[i]);
+            if (copies[i] == null) {
+                return null;
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * @param t - the regular transaction doing the reading
+     * @param dataIndex - the item being read
+     * @return - the first readable copy of the item if the transaction can read it right away, or null
+     */
+    DataManager readableCopy(Transaction t, int dataIndex) {
+        if (t.writeValues.containsKey(dataIndex) || conflicts(t, dataIndex, true)) {
+            return null;
+        }
+        for (DataManager dataSite : Driver.driver.catalog.readOrder(t, dataIndex)) {
+            if (dataSite.isReadable(dataIndex)) {
+                LockHeader header = dataSite.lockTable.get(dataIndex);
+                if (header != null && (!header.canRead(t.transactionID) || !header.waiters.isEmpty())) {
+                    return null;
                 }
+                return dataSite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the copies that a regular transaction writes each item to, if it can write all of them without waiting,
+     * without conflicting with another transaction, and without going ahead of waiting commands
+     *
+     * @param t - the regular transaction doing the writing
+     * @param items - the items being written
+     * @return - the copies on running sites of each item, or null if one of the items can't be written right away
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ArrayList<DataManager>[] writableCopies(Transaction t, int[] items) {
+        if (t.transactionType == Transaction.READ_ONLY || !t.waitingCommands.isEmpty()) {
+            return null;
+        }
+        ArrayList<DataManager>[] copies = new ArrayList[items.length];
+        for (int i = 0; i < items.length; i++) {
+            copies[i] = writableCopies(t, items[i]);
+            if (copies[i] == null) {
+                return null;
             }
         }
+        return copies;
+    }
 
+    /**
+     * @param t - the regular transaction doing the writing
+     * @param dataIndex - the item being written
+     * @return - the copies of the item on running sites if the transaction can write them all right away, or null,
+     * also when there is no copy to write to
+     */
+    ArrayList<DataManager> writableCopies(Transaction t, int dataIndex) {
+        if (conflicts(t, dataIndex, false)) {
+            return null;
+        }
+        ArrayList<DataManager> sitesToWriteTo = new ArrayList<DataManager>();
+        for (DataManager dataSite : Driver.driver.catalog.sites(dataIndex)) {
+            if (dataSite.status == DataManager.RUNNING) {
+                LockHeader header = dataSite.lockTable.get(dataIndex);
+                if (!dataSite.canWrite(dataIndex, t.transactionID) || (header != null && !header.waiters.isEmpty())) {
+                    return null;
+                }
+                sitesToWriteTo.add(dataSite);
+            }
+        }
+        return sitesToWriteTo.isEmpty() ? null : sitesToWriteTo;
+    }
+
+    /**
+     * Read the items from the copies found by readableCopies(), locking the items of each site in one pass
+     *
+     * @param t - the regular transaction doing the reading
+     * @param items - the items being read
+     * @param copies - the copy read for each item
+     */
+    void readFrom(Transaction t, int[] items, DataManager[] copies) {
+        t.setStatus(Transaction.ACTIVE);
+        LinkedHashMap<DataManager, ArrayList<Integer>> bySite = new LinkedHashMap<DataManager, ArrayList<Integer>>();
+        for (int i = 0; i < items.length; i++) {
+            addAccess(t, items[i], LockTuple.READ);
+            addToSite(bySite, copies[i], items[i]);
+        }
+        for (Map.Entry<DataManager, ArrayList<Integer>> entry : bySite.entrySet()) {
+            entry.getKey().lock(entry.getValue(), t, LockTuple.READ);
+        }
+        for (int i = 0; i < items.length; i++) {
+            int value = copies[i].data.value(items[i]);
+            t.read(items[i], value, copies[i]);
+            Driver.driver.events.read(t.transactionID, items[i], copies[i].siteId, value);
+        }
+    }
+
+    /**
+     * Write the items to the copies found by writableCopies(), locking the items of each site in one pass
+     *
+     * @param t - the regular transaction doing the writing
+     * @param items - the items being written
+     * @param values - the value written to each item
+     * @param copies - the copies written for each item
+     */
+    void writeTo(Transaction t, int[] items, int[] values, ArrayList<DataManager>[] copies) {
+        t.setStatus(Transaction.ACTIVE);
+        LinkedHashMap<DataManager, ArrayList<Integer>> bySite = new LinkedHashMap<DataManager, ArrayList<Integer>>();
+        for (int i = 0; i < items.length; i++) {
+            if (t.addWriteCommand(items[i], values[i])) {
+                addAccess(t, items[i], LockTuple.WRITE);
+            }
+            Driver.driver.events.write(t.transactionID, items[i], values[i]);
+            t.write(items[i], values[i], copies[i]);
+            for (DataManager dataSite : copies[i]) {
+                addToSite(bySite, dataSite, items[i]);
+            }
+        }
+        for (Map.Entry<DataManager, ArrayList<Integer>> entry : bySite.entrySet()) {
+            entry.getKey().lock(entry.getValue(), t, LockTuple.WRITE);
+        }
+    }
+
+    private static void addToSite(LinkedHashMap<DataManager, ArrayList<Integer>> bySite, DataManager dataSite, int dataIndex) {
+        ArrayList<Integer> items = bySite.get(dataSite);
+        if (items == null) {
+            items = new ArrayList<Integer>();
+            bySite.put(dataSite, items);
+        }
+        items.add(dataIndex);
+    }
+
+    //whether another running transaction accessed the item, or wrote it when only writers conflict
+    boolean conflicts(Transaction t, int dataIndex, boolean writersOnly) {
+        LinkedHashMap<Transaction, Boolean> accessedBy = accesses.get(dataIndex);
+        if (accessedBy == null) {
+            return false;
+        }
+        for (Map.Entry<Transaction, Boolean> entry : accessedBy.entrySet()) {
+            if (entry.getKey() != t && (!writersOnly || entry.getValue() == LockTuple.WRITE)) {
+                return true;
+            }
+        }
         return false;
     }
 
     /**
-     * Remove the transaction and all its related commands from all lists and queues
+     * Check deadlock method
+     * Called after the edge from --> to is added to the waits-for graph. Any new cycle has to go through this edge, so
+     * only the transactions reachable from "to" are searched
      *
-     * @param t - the transaction object that is begin removed
+     * @param from - the transaction that started waiting
+     * @param to - the transaction it waits for
+     * @return - true if there is a deadlock, false if there is no deadlock
      * @throws Exception
      */
-    private void abort(Transaction t) throws Exception {
-        ArrayList<ArrayList<Transaction>> waitListTransactionsToRemove = new ArrayList<ArrayList<Transaction>>();
+    public boolean checkDeadLock(Transaction from, Transaction to) throws Exception {
+        long start = System.nanoTime();
+        ArrayList<Transaction> transactionsInDeadlock = waitsFor.findCycle(from, to);
+        metrics.deadlockDetection.record(System.nanoTime() - start);
+        if (transactionsInDeadlock == null) {
+            return false;
+        }
+
+        long latest = 0;
+        Transaction t = null;
 
-        for (ArrayList<Transaction> transactionArrayList : waitList) {
+        //go over the transactions and find the transaction with the latest start time
+        for (Transaction transaction : transactionsInDeadlock) {
+            if(transaction.startTime > latest) {
+                t = transaction;
+                latest = transaction.startTime;
+            }
+        }
 
-            Transaction firstTransaction = null;
-            for (Transaction transaction1 : transactionArrayList) {
-                if(transaction1 != null) {
-                    firstTransaction = transaction1;
-                    break;
+        //Print the transactions that are causing the deadlock, and the waits between them
+        EventSink events = Driver.driver.events;
+        if (!events.isQuiet()) {
+            StringBuilder report = new StringBuilder();
+            report.append("\nTransaction T").append(t.getTransactionID()).append(" aborted for a deadlock with transactions ");
+            for (Transaction transaction : transactionsInDeadlock) {
+                if (transaction.getTransactionID() != t.getTransactionID()) {
+                    report.append("T").append(transaction.getTransactionID()).append(" ");
                 }
             }
+            report.append(Event.NEWLINE);
+
+            HashSet<Transaction> deadlocked = new HashSet<Transaction>(transactionsInDeadlock);
+            boolean started = false;
+            for (Transaction transaction : transactionsInDeadlock) {
+                for (Transaction neighbour : waitsFor.waitsFor(transaction)) {
+                    if (deadlocked.contains(neighbour)) {
+                        if(started) {
+                            report.append("\t\tT").append(transaction.transactionID).append("\t-->\tT").append(neighbour.transactionID);
+                        } else {
+                            report.append("T").append(transaction.transactionID).append("\t-->\tT").append(neighbour.transactionID);
+                            started = true;
+                        }
+                    }
+                }
+            }
+            report.append("\n").append(Event.NEWLINE);
+            events.print(report.toString());
+        }
 
+        //abort the transaction
+        abort(t, Metrics.DEADLOCK);
+        //remove it from the list of transactions
+        transactions.remove(t);
 
-            if(firstTransaction.equals(t) || transactionArrayList.get(1).equals(t)) {
-                waitListTransactionsToRemove.add(transactionArrayList);
+        //the edge can close more than one cycle, and it stays in the graph when the victim is not one of its ends
+        checkDeadLock(from, to);
+        return true;
+    }
+
+    /**
+     * Add an edge from the transaction to every other running transaction in the access index of the item that it
+     * conflicts with, and check every new edge for a deadlock
+     *
+     * @param t - the transaction issuing the command
+     * @param dataIndex - the data item the command accesses
+     * @param writersOnly - true for reads, which only conflict with transactions that wrote the item
+     * @return - true if the transaction was aborted for a deadlock
+     * @throws Exception
+     */
+    private boolean addConflicts(Transaction t, int dataIndex, boolean writersOnly) throws Exception {
+        LinkedHashMap<Transaction, Boolean> accessedBy = accesses.get(dataIndex);
+        //deadlock prevention only looks at the transactions a command actually waits for
+        if (accessedBy == null || deadlockPolicy != DETECT) {
+            return false;
+        }
+
+        //the conflicting transactions are copied, because a deadlock aborts one of them and removes it from the index
+        ArrayList<Transaction> conflicts = new ArrayList<Transaction>();
+        for (Map.Entry<Transaction, Boolean> entry : accessedBy.entrySet()) {
+            if (entry.getKey() != t && (!writersOnly || entry.getValue() == LockTuple.WRITE)) {
+                conflicts.add(entry.getKey());
             }
         }
 
-        for (ArrayList<Transaction> transactionArrayList : waitListTransactionsToRemove) {
-            waitList.remove(transactionArrayList);
+        for (Transaction other : conflicts) {
+            //only a new edge between the two transactions can close a cycle
+            if (!other.isAborted() && waitsFor.addEdge(t, other) && checkDeadLock(t, other) && t.isAborted()) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        ArrayList<Command> commandsToRemove = new ArrayList<Command>();
+    /**
+     * A read lock can be granted while other commands are waiting on the item, for example a write waiting for the
+     * current readers. The read goes ahead of them, so their transactions now also wait for the reading transaction.
+     * Without these edges a deadlock through the new reader would never be found
+     *
+     * @param t - the transaction that is about to read the item
+     * @param header - the lock header of the item
+     * @return - true if one of the new edges closes a deadlock in which t is aborted
+     * @throws Exception
+     */
+    private boolean addOvertaken(Transaction t, LockHeader header) throws Exception {
+        if (header.waiters.isEmpty()) {
+            return false;
+        }
 
-        for (Command command : commands) {
-            if(command.getTransactionID() == t.getTransactionID()) {
-                commandsToRemove.add(command);
+        //the waiting transactions are copied, because a deadlock aborts one of them and removes its commands
+        ArrayList<Transaction> overtaken = new ArrayList<Transaction>();
+        for (Command command : header.waiters) {
+            Transaction other = transactions.get(command.getTransactionID());
+            if (other != null && other != t && !overtaken.contains(other)) {
+                overtaken.add(other);
             }
         }
 
-        for (Command command : commandsToRemove) {
-            commands.remove(command);
+        for (Transaction other : overtaken) {
+            if (!other.isAborted() && addWait(other, t) && t.isAborted()) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        commandsToRemove = new ArrayList<Command>();
+    //add the transaction to the access index of the item
+    void addAccess(Transaction t, int dataIndex, boolean lockType) {
+        LinkedHashMap<Transaction, Boolean> accessedBy = accesses.get(dataIndex);
+        if (accessedBy == null) {
+            accessedBy = new LinkedHashMap<Transaction, Boolean>();
+            accesses.put(dataIndex, accessedBy);
+        }
+        Boolean previous = accessedBy.get(t);
+        if (previous == null || lockType == LockTuple.WRITE) {
+            accessedBy.put(t, lockType);
+        }
+        t.accessedItems.add(dataIndex);
+    }
 
-        for (Command command : waitingCommands) {
-            if(command.getTransactionID() == t.getTransactionID()) {
-                commandsToRemove.add(command);
+    //remove the transaction from the access index of the items it accessed, once it commits or aborts
+    void removeAccesses(Transaction t) {
+        for (Integer dataIndex : t.accessedItems) {
+            LinkedHashMap<Transaction, Boolean> accessedBy = accesses.get(dataIndex);
+            if (accessedBy != null) {
+                accessedBy.remove(t);
+                if (accessedBy.isEmpty()) {
+                    accesses.remove(dataIndex);
+                }
             }
         }
+        t.accessedItems.clear();
+    }
 
-        for (Command command : commandsToRemove) {
-            waitingCommands.remove(command);
+    /**
+     * Remove the transaction and all its related commands from all lists and queues
+     *
+     * @param t - the transaction object that is begin removed
+     * @throws Exception
+     */
+    void abort(Transaction t) throws Exception {
+        t.setStatus(Transaction.ABORTED);
+        if (t.transactionType == Transaction.READ_ONLY) {
+            removeSnapshot(t.startTime);
         }
 
-        for (DataManager dataSite : Driver.driver.dataSites) {
-            for (Integer integer : dataSite.lockTable.keySet()) {
-                ArrayList<LockTuple> tuplesToRemove = new ArrayList<LockTuple>();
-                for (LockTuple lockTuple : dataSite.lockTable.get(integer)) {
-                    if(lockTuple.transaction == t.transactionID) {
-                        tuplesToRemove.add(lockTuple);
-                    }
-                }
-                for (LockTuple lockTuple : tuplesToRemove) {
-                    dataSite.lockTable.get(integer).remove(lockTuple);
+        waitsFor.remove(t);
+
+        removeAccesses(t);
+
+        //take the commands of the transaction out of the lock queues they are waiting in
+        for (Command command : t.waitingCommands) {
+            waitingCommands.remove(command);
+            if (deadlines != null) {
+                deadlines.cancel(command);
+            }
+            if (command.waitingAt != null) {
+                LockHeader header = command.waitingAt.lockTable.get(command.getDataItem());
+                if (header != null) {
+                    header.dequeue(command);
+                    command.waitingAt.reclaim(command.getDataItem(), header);
                 }
+                command.waitingAt = null;
             }
         }
+        t.waitingCommands.clear();
+        t.endPending = false;
 
-        LinkedList<Command> tempWaitingCommands = new LinkedList<Command>(waitingCommands);
-        int index = 0;
-        while (waitingCommands.size() != 0 && index < tempWaitingCommands.size()) {
-            Command command = tempWaitingCommands.get(index);
-            waitingCommands.remove(command);
-            index++;
-            if (command.getCommand().equals("R")) {
-                int tID = command.getTransactionID();
-                int dataItem = command.getDataItem();
-                this.read(tID, dataItem);
-            } else {    //the only other option is W
-                int tID = command.getTransactionID();
-                int dataItem = command.getDataItem();
-                int dataValue = command.getDataValue();
-                this.write(tID, dataItem, dataValue);
+        releaseLocks(t);
+
+        runReadyCommands();
+    }
+
+    //abort the transaction for the given reason, which is counted once even if the transaction is aborted again
+    void abort(Transaction t, int reason) throws Exception {
+        if (!t.isAborted()) {
+            metrics.aborted(reason);
+        }
+        abort(t);
+    }
+
+    /**
+     * Release the locks that the transaction holds, going only over the items it locked rather than the lock tables
+     * of all the sites
+     *
+     * @param t - the transaction whose locks are released
+     */
+    void releaseLocks(Transaction t) {
+        for (Map.Entry<DataManager, LinkedHashMap<Integer, Boolean>> siteEntry : t.heldLocks.entrySet()) {
+            for (Integer item : siteEntry.getValue().keySet()) {
+                siteEntry.getKey().releaseLock(item, t.transactionID);
+            }
+        }
+        t.heldLocks.clear();
+        for (Map.Entry<DataManager, LinkedHashSet<Integer>> siteEntry : t.heldRanges.entrySet()) {
+            for (Integer range : siteEntry.getValue()) {
+                siteEntry.getKey().releaseRange(range, t.transactionID);
             }
         }
+        t.heldRanges.clear();
+    }
+
+    /**
+     * Queue a command that cannot get its lock yet on the lock header of the item on the given site
+     *
+     * @param t - the transaction issuing the command
+     * @param command - the command that is waiting
+     * @param dataSite - the site the command waits on
+     * @throws Exception
+     */
+    void waitFor(Transaction t, Command command, DataManager dataSite) throws Exception {
+        waitingCommands.add(command);
+        t.waitingCommands.add(command);
+        t.waiting();
+        command.waitingAt = dataSite;
+        LockHeader header = dataSite.lockHeader(command.getDataItem());
+        header.enqueue(command);
+        command.waitStart = System.nanoTime();
+        if (deadlines != null) {
+            scheduleTimeout(t, command);
+        }
+
+        //The transaction waits for the current owners of the item, and a write also for the transactions scanning it.
+        //They are usually in the graph already from the access index, but not when they took their lock after the
+        //command was first issued and it is waiting again, and scans are not in the access index.
+        //The owners are copied, because a deadlock aborts one of them and releases its locks
+        ArrayList<Integer> ownerIDs = new ArrayList<Integer>(header.owners.keySet());
+        if (command.getCommand().equals("W")) {
+            ownerIDs.addAll(dataSite.scanners(command.getDataItem(), t.transactionID));
+        }
+        ArrayList<Transaction> owners = new ArrayList<Transaction>();
+        for (Integer owner : ownerIDs) {
+            Transaction other = transactions.get(owner);
+            if (other != null && other != t && !owners.contains(other)) {
+                owners.add(other);
+            }
+        }
+        for (Transaction other : owners) {
+            //an abort may have let the command run already
+            if (t.isAborted() || !t.waitingCommands.contains(command)) {
+                return;
+            }
+            if (!other.isAborted()) {
+                addWait(t, other);
+            }
+        }
+    }
+
+    /**
+     * Schedule the deadline of a command that started waiting: the end of its lock wait, or the deadline of its
+     * transaction if that comes first. A command that waits again after it was woken up keeps the end of its first
+     * wait, so that the replays don't let it wait for ever
+     *
+     * @param t - the transaction issuing the command
+     * @param command - the command that is waiting
+     */
+    private void scheduleTimeout(Transaction t, Command command) {
+        if (replaying != null && replaying.getTransactionID() == t.transactionID) {
+            command.waitDeadline = replaying.waitDeadline;
+        } else if (lockWaitTimeout != NO_TIMEOUT) {
+            command.waitDeadline = deadlines.now() + lockWaitTimeout;
+        }
+        long deadline = Math.min(command.waitDeadline, t.deadline);
+        if (deadline != TimerWheel.NEVER) {
+            deadlines.schedule(command, deadline);
+        }
     }
 
     /**
-     * Part of the check deadlock method
+     * Advance the clock of the lock waits by one tick, and abort the transactions whose waiting commands reached their
+     * deadline, through the same path as any other abort
      *
-     * @param transaction
-     * @param explored
-     * @param recStack
-     * @return
+     * @throws Exception
+     */
+    public void tick() throws Exception {
+        if (deadlines == null) {
+            return;
+        }
+        for (Command command : deadlines.tick()) {
+            Transaction t = transactions.get(command.getTransactionID());
+            //an earlier expired command may have aborted the transaction already
+            if (t == null || t.isAborted() || !t.waitingCommands.contains(command)) {
+                continue;
+            }
+            if (t.deadline <= command.waitDeadline) {
+                Driver.driver.events.abort(Event.ABORT_DEADLINE, t.transactionID, command.getDataItem(), 0);
+                abort(t, Metrics.DEADLINE);
+            } else {
+                Driver.driver.events.abort(Event.ABORT_WAIT_TIMEOUT, t.transactionID, command.getDataItem(), 0);
+                abort(t, Metrics.LOCK_WAIT_TIMEOUT);
+            }
+            transactions.remove(t);
+        }
+    }
+
+    /**
+     * A transaction is about to wait for another one. With deadlock detection, the edge is added to the waits-for
+     * graph and checked for a cycle. With wait-die, a transaction that is younger than the one it would wait for
+     * aborts instead, and with wound-wait, a transaction that is older aborts the one it would wait for instead.
+     * Every wait then goes the same way between ages, so the waits can't form a cycle, and no graph is kept
      *
-     * Code adapted from the website http://www.geeksforgeeks.org/detect-cycle-in-a-graph/
+     * @param waiter - the transaction that waits
+     * @param holder - the transaction it waits for
+     * @return - true if a transaction was aborted
+     * @throws Exception
      */
-    private boolean checkCycle(Transaction transaction, HashMap<Transaction, Boolean> explored, HashMap<Transaction, Boolean> recStack) {
-        explored.put(transaction, true);
-        recStack.put(transaction, true);
+    boolean addWait(Transaction waiter, Transaction holder) throws Exception {
+        if (deadlockPolicy == WAIT_DIE) {
+            if (waiter.startTime > holder.startTime) {
+                Driver.driver.events.abort(Event.ABORT_WAIT_DIE, waiter.transactionID, 0, holder.transactionID);
+                abort(waiter, Metrics.WAIT_DIE);
+                transactions.remove(waiter);
+                return true;
+            }
+            return false;
+        } else if (deadlockPolicy == WOUND_WAIT) {
+            if (waiter.startTime < holder.startTime) {
+                Driver.driver.events.abort(Event.ABORT_WOUND_WAIT, holder.transactionID, 0, waiter.transactionID);
+                abort(holder, Metrics.WOUND_WAIT);
+                transactions.remove(holder);
+                return true;
+            }
+            return false;
+        }
+        return waitsFor.addEdge(waiter, holder) && checkDeadLock(waiter, holder);
+    }
 
+    /**
+     * Called when a lock on an item is released. The commands waiting on the item are moved, in the order in which
+     * they were queued, to the ready commands to be attempted again
+     *
+     * @param header - the lock header of the item whose lock was released
+     */
+    public void wake(LockHeader header) {
+        long now = System.nanoTime();
+        for (Command command : header.waiters) {
+            command.waitingAt.lockWaits.record(now - command.waitStart);
+            command.waitingAt = null;
+            if (deadlines != null) {
+                deadlines.cancel(command);
+            }
+            readyCommands.add(command);
+        }
+        header.waiters.clear();
+    }
 
-        for (ArrayList<Transaction> transactionArrayList : waitList) {
-            Transaction firstTransaction = null;
-            for (Transaction transaction1 : transactionArrayList) {
-                if(transaction1 != null) {
-                    firstTransaction = transaction1;
-                    break;
+    /**
+     * Attempt the commands that were woken up again. A command that still can't get its lock goes back to waiting,
+     * and a transaction whose end was put off runs its end once it has no more waiting commands.
+     * Commands woken up while this runs are added to the end of the ready commands, instead of being run recursively
+     *
+     * @throws Exception
+     */
+    void runReadyCommands() throws Exception {
+        if (runningReadyCommands) {
+            return;
+        }
+        runningReadyCommands = true;
+        try {
+            while (!readyCommands.isEmpty()) {
+                Command command = readyCommands.poll();
+                //the transaction aborted, or the command was already attempted again
+                if (!waitingCommands.remove(command)) {
+                    continue;
                 }
-            }
+                Transaction t = transactions.get(command.getTransactionID());
+                if (t == null) {
+                    continue;
+                }
+                t.waitingCommands.remove(command);
 
-            if(firstTransaction.equals(transaction)) {
-                Transaction neighbour = transactionArrayList.get(1);
-                if(!explored.get(neighbour)) {
-                    if(checkCycle(neighbour, explored, recStack)) {
-                        return true;
+                replaying = command;
+                try {
+                    if (command.getCommand().equals("R")) {
+                        this.read(command.getTransactionID(), command.getDataItem());
+                    } else if (command.getCommand().equals("S")) {
+                        //a scan starts over from its first item
+                        this.scan(command.getTransactionID(), command.first, command.last);
+                    } else {    //the only other option is W
+                        this.write(command.getTransactionID(), command.getDataItem(), command.getDataValue());
                     }
-                } else if(recStack.get(neighbour)) {
-                    return true;
+                } finally {
+                    replaying = null;
+                }
+
+                if (t.endPending && t.waitingCommands.isEmpty() && transactions.contains(t.transactionID)) {
+                    t.endPending = false;
+                    this.end(t.transactionID);
                 }
             }
+        } finally {
+            runningReadyCommands = false;
         }
-
-        recStack.put(transaction, false);
-        return false;
     }
 
     /**
@@ -562,82 +1172,153 @@ public class TransactionManager {
      */
     public int end(int transactionID) throws Exception {
 
-        for (Command waitingCommand : waitingCommands) {
-            if(waitingCommand.transactionID == transactionID) {
-                waitingCommands.add(new Command("end", transactionID, 0, 0));
-                return 0;
-            }
+        Transaction t = transactions.get(transactionID);
+
+        //the transaction ends once all its waiting commands are done
+        if(t != null && !t.waitingCommands.isEmpty()) {
+            t.endPending = true;
+            t.waiting();
+            return 0;
         }
 
+        if(t != null) {
+            if (t.transactionType == Transaction.REGULAR) {
+                commit(t);
 
-        Transaction t = null;
-        for (Transaction transaction : transactions) {
-            if(transaction.getTransactionID() == transactionID) {
-                t = transaction;
-                break;
+                //attempt the commands that were waiting on the released locks
+                runReadyCommands();
+            } else {
+                removeSnapshot(t.startTime);
+                Driver.driver.events.endReadOnly(transactionID);
             }
         }
 
-        if(t != null) {
-            if (t.transactionType == Transaction.REGULAR) {
-                if(t.writeValues.size() != 0) {
-                    System.out.println("");
-                }
-                for (Map.Entry<Integer, HashMap<Integer, ArrayList<DataManager>>> integerHashMapEntry : t.writeValues.entrySet()) {
-                    // integerHashMapEntry.getKey() is the data index
-                    for (Map.Entry<Integer, ArrayList<DataManager>> arrayListEntry : integerHashMapEntry.getValue().entrySet()) {
-                        // arrayListEntry.getKey() is the new data value
-                        for (DataManager dataManager : arrayListEntry.getValue()) {
-                            dataManager.updateItem(integerHashMapEntry.getKey(), arrayListEntry.getKey(), t);
-                            System.out.println("T" + transactionID + " writes value " + arrayListEntry.getKey() + " to data item x" + integerHashMapEntry.getKey() + "." + dataManager.siteId);
-                        }
-                    }
+        transactions.remove(t);
+        return 1;
+    }
+
+    /**
+     * Commit a regular transaction: write its values to the sites it locked, release its locks, and remove it from the
+     * waits-for graph and the access index. The commands woken up by the released locks are not run yet
+     *
+     * @param t - the transaction that commits
+     * @throws IOException - the values could not be written to the redo log of a site
+     */
+    void commit(Transaction t) throws IOException {
+        long start = System.nanoTime();
+        int transactionID = t.transactionID;
+        t.setStatus(Transaction.COMMITTING);
+        //every value written by the transaction becomes a new version with the same commit time
+        long commitTime = Driver.driver.timestamps.next();
+        logWrites(t, commitTime);
+        if(t.writeValues.size() != 0) {
+            Driver.driver.events.print(Event.NEWLINE);
+        }
+        for (Map.Entry<Integer, HashMap<Integer, ArrayList<DataManager>>> integerHashMapEntry : t.writeValues.entrySet()) {
+            // integerHashMapEntry.getKey() is the data index
+            for (Map.Entry<Integer, ArrayList<DataManager>> arrayListEntry : integerHashMapEntry.getValue().entrySet()) {
+                // arrayListEntry.getKey() is the new data value
+                for (DataManager dataManager : arrayListEntry.getValue()) {
+                    dataManager.updateItem(integerHashMapEntry.getKey(), arrayListEntry.getKey(), t, commitTime);
+                    Driver.driver.events.writeCopy(transactionID, integerHashMapEntry.getKey(), dataManager.siteId, arrayListEntry.getKey());
                 }
+            }
+        }
 
-                //release the locks that the transaction had
-                for (Map.Entry<Data, HashMap<Integer, DataManager>> hashMapEntry : t.readValues.entrySet()) {
-                    for (Map.Entry<Integer, DataManager> entry : hashMapEntry.getValue().entrySet()) {
-                        ArrayList<LockTuple> lockTuplesToRemove = new ArrayList<LockTuple>();
-                        for (LockTuple lockTuple : entry.getValue().lockTable.get(hashMapEntry.getKey().dataIndex)) {
-                            if(lockTuple.transaction == t.transactionID) {
-                                lockTuplesToRemove.add(lockTuple);
-                            }
+        //release the locks that the transaction had
+        releaseLocks(t);
+
+        Driver.driver.events.commit(transactionID);
+        //a committed transaction is no longer waited for
+        waitsFor.remove(t);
+        removeAccesses(t);
+        metrics.commits.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Write the values of a committing transaction to the redo logs of the sites it writes to, and wait until they are
+     * on disk. The transactions that commit at the same time share the forces of the logs
+     *
+     * @param t - the transaction that commits
+     * @param commitTime - its commit time
+     * @throws IOException
+     */
+    private void logWrites(Transaction t, long commitTime) throws IOException {
+        LinkedHashMap<DataManager, ArrayList<Integer>> writes = null;
+        for (Map.Entry<Integer, HashMap<Integer, ArrayList<DataManager>>> itemEntry : t.writeValues.entrySet()) {
+            for (Map.Entry<Integer, ArrayList<DataManager>> valueEntry : itemEntry.getValue().entrySet()) {
+                for (DataManager dataManager : valueEntry.getValue()) {
+                    if (dataManager.log != null) {
+                        if (writes == null) {
+                            writes = new LinkedHashMap<DataManager, ArrayList<Integer>>();
                         }
-                        for (LockTuple lockTuple : lockTuplesToRemove) {
-                            entry.getValue().lockTable.get(hashMapEntry.getKey().dataIndex).remove(lockTuple);
+                        ArrayList<Integer> siteWrites = writes.get(dataManager);
+                        if (siteWrites == null) {
+                            siteWrites = new ArrayList<Integer>();
+                            writes.put(dataManager, siteWrites);
                         }
+                        siteWrites.add(itemEntry.getKey());
+                        siteWrites.add(valueEntry.getKey());
                     }
                 }
+            }
+        }
+        if (writes == null) {
+            return;
+        }
 
-                System.out.println("\nT" + transactionID + " commits\n");
-
-                LinkedList<Command> tempWaitingCommands = new LinkedList<Command>(waitingCommands);
-                int index = 0;
-                while (waitingCommands.size() != 0 && index < tempWaitingCommands.size()) {
-                    Command command = tempWaitingCommands.get(index);
-                    waitingCommands.remove(command);
-                    index++;
-                    if (command.getCommand().equals("R")) {
-                        int tID = command.getTransactionID();
-                        int dataItem = command.getDataItem();
-                        this.read(tID, dataItem);
-                    } else if(command.getCommand().equals("W")) {
-                        int tID = command.getTransactionID();
-                        int dataItem = command.getDataItem();
-                        int dataValue = command.getDataValue();
-                        this.write(tID, dataItem, dataValue);
-                    } else {
-                        int tID = command.getTransactionID();
-                        this.end(tID);
-                    }
-                }
-            } else {
-                System.out.println("T" + transactionID + " ended");
+        //append to the log of every site before waiting for any of them
+        long[] positions = new long[writes.size()];
+        int i = 0;
+        for (Map.Entry<DataManager, ArrayList<Integer>> siteEntry : writes.entrySet()) {
+            ArrayList<Integer> siteWrites = siteEntry.getValue();
+            int count = siteWrites.size() / 2;
+            int[] items = new int[count];
+            int[] values = new int[count];
+            for (int k = 0; k < count; k++) {
+                items[k] = siteWrites.get(2 * k);
+                values[k] = siteWrites.get(2 * k + 1);
             }
+            positions[i++] = siteEntry.getKey().log.append(commitTime, t.transactionID, items, values, count);
+        }
+        i = 0;
+        for (DataManager dataManager : writes.keySet()) {
+            dataManager.log.sync(positions[i++]);
         }
+    }
 
+    /**
+     * Abort a running transaction whose client went away before ending it, so that the locks it holds are released
+     * and the commands waiting for them go on. A transaction whose end was sent and is put off still commits
+     *
+     * @param transactionID - the transaction of the client that went away
+     * @throws Exception
+     */
+    public void abandon(int transactionID) throws Exception {
+        Transaction t = transactions.get(transactionID);
+        if (t == null || t.endPending) {
+            return;
+        }
+        abort(t, Metrics.ABANDONED);
         transactions.remove(t);
-        return 1;
+    }
+
+    //keep other commands from running while the driver reads the state of the sites, as for a dump. The single
+    //threaded manager runs one command at a time anyway
+    public void lockExclusive() {
+    }
+
+    public void unlockExclusive() {
+    }
+
+    //fail a site, as the driver does for a fail command
+    public void fail(DataManager dataSite) throws Exception {
+        dataSite.fail();
+    }
+
+    //recover a site, as the driver does for a recover command
+    public void recover(DataManager dataSite) {
+        dataSite.recover();
     }
 
     /**
@@ -648,23 +1329,34 @@ public class TransactionManager {
      */
     public void siteFail(DataManager dataManager) throws Exception {
         ArrayList<Transaction> transactionsToRemove = new ArrayList<Transaction>();
-        for (Transaction transaction : transactions) {
-            for (Map.Entry<Data, HashMap<Integer, DataManager>> entry : transaction.readValues.entrySet()) {
-                for (Map.Entry<Integer, DataManager> managerEntry : entry.getValue().entrySet()) {
-                    if(managerEntry.getValue().equals(dataManager)) {
-                        System.out.println("Transaction T" + transaction.getTransactionID() + " aborted because of failure of site " + dataManager.siteId);
-                        abort(transaction);
-                        transactionsToRemove.add(transaction);
-                    }
+        //iterate over a copy, because aborting a transaction can end or abort others through the waiting commands
+        for (Transaction transaction : new ArrayList<Transaction>(transactions.values())) {
+            if (transaction.isAborted()) {
+                continue;
+            }
+            HashMap<Integer, Integer> readFromSite = transaction.readValues.get(dataManager);
+            if (readFromSite != null) {
+                //as before, the transaction is aborted once for every item it read from the site
+                for (int i = 0; i < readFromSite.size(); i++) {
+                    Driver.driver.events.abort(Event.ABORT_FAILED_SITE, transaction.getTransactionID(), 0, dataManager.siteId);
+                    abort(transaction, Metrics.SITE_FAILURE);
+                    transactionsToRemove.add(transaction);
                 }
             }
 
+            //a scan read the items of the ranges it holds on the site
+            if (transaction.heldRanges.containsKey(dataManager) && !transactionsToRemove.contains(transaction)) {
+                Driver.driver.events.abort(Event.ABORT_FAILED_SITE, transaction.getTransactionID(), 0, dataManager.siteId);
+                abort(transaction, Metrics.SITE_FAILURE);
+                transactionsToRemove.add(transaction);
+            }
+
             for (Map.Entry<Integer, HashMap<Integer, ArrayList<DataManager>>> hashMapEntry : transaction.writeValues.entrySet()) {
                 for (Map.Entry<Integer, ArrayList<DataManager>> listEntry : hashMapEntry.getValue().entrySet()) {
                     for (DataManager manager : listEntry.getValue()) {
                         if(dataManager.equals(manager) && !transactionsToRemove.contains(transaction)) {
-                            System.out.println("Transaction T" + transaction.getTransactionID() + " aborted because of failure of site " + dataManager.siteId);
-                            abort(transaction);
+                            Driver.driver.events.abort(Event.ABORT_FAILED_SITE, transaction.getTransactionID(), 0, dataManager.siteId);
+                            abort(transaction, Metrics.SITE_FAILURE);
                             transactionsToRemove.add(transaction);
                         }
                     }
@@ -674,5 +1366,8 @@ public class TransactionManager {
         for (Transaction transaction : transactionsToRemove) {
             transactions.remove(transaction);
         }
+
+        //attempt the commands that were waiting on the failed site
+        runReadyCommands();
     }
 }
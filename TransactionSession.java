@@ -0,0 +1,58 @@
+import java.util.ArrayList;
+
+/**
+ * A client session that runs one transaction on its own virtual thread: it begins the transaction, runs its reads and
+ * writes one after the other, and ends it. With the parking transaction manager, a command that has to wait parks the
+ * virtual thread, which keeps only its small stack, so thousands of sessions can wait at the same time.
+ */
+public class TransactionSession implements Runnable {
+
+    TransactionManager transactionManager;
+    int transactionID;
+    boolean transactionType;
+    //the reads and writes of the transaction, in order
+    ArrayList<Command> commands;
+    //the exception that stopped the session, if any
+    Exception failure;
+
+    public TransactionSession(TransactionManager transactionManager, int transactionID, boolean transactionType, ArrayList<Command> commands) {
+        this.transactionManager = transactionManager;
+        this.transactionID = transactionID;
+        this.transactionType = transactionType;
+        this.commands = commands;
+    }
+
+    //start the session on a new virtual thread
+    public Thread start() {
+        return Thread.ofVirtual().name("T" + transactionID).start(this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (transactionType == Transaction.REGULAR) {
+                transactionManager.begin(transactionID);
+            } else {
+                transactionManager.beginReadOnly(transactionID);
+            }
+
+            for (Command command : commands) {
+                //the transaction aborted
+                if (!transactionManager.transactions.contains(transactionID)) {
+                    return;
+                }
+                if (command.getCommand().equals("R")) {
+                    transactionManager.read(transactionID, command.getDataItem());
+                } else {
+                    transactionManager.write(transactionID, command.getDataItem(), command.getDataValue());
+                }
+            }
+
+            if (transactionManager.transactions.contains(transactionID)) {
+                transactionManager.end(transactionID);
+            }
+        } catch (Exception e) {
+            failure = e;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The transaction table keeps every transaction that has begun and has not yet committed or aborted, keyed by the
+ * transaction ID, so that looking up, adding, and removing a transaction does not depend on how many transactions
+ * are open. The transactions are also kept in the order of their start times, which is the order in which they began.
+ * Both maps are concurrent, so sessions of the concurrent transaction manager can begin and end transactions at the
+ * same time.
+ */
+public class TransactionTable {
+
+    //The key is the transaction ID, and the value is the transaction object
+    ConcurrentHashMap<Integer, Transaction> transactions = new ConcurrentHashMap<Integer, Transaction>();
+    //The key is the start time of the transaction
+    ConcurrentSkipListMap<Long, Transaction> byStartTime = new ConcurrentSkipListMap<Long, Transaction>();
+
+    public void add(Transaction t) {
+        Transaction previous = transactions.put(t.transactionID, t);
+        if (previous != null) {
+            byStartTime.remove(previous.startTime);
+        }
+        byStartTime.put(t.startTime, t);
+    }
+
+    //returns the transaction with this ID, or null if it has not begun or has already ended or aborted
+    public Transaction get(int transactionID) {
+        return transactions.get(transactionID);
+    }
+
+    //a transaction is in the table until it commits or aborts
+    public boolean contains(int transactionID) {
+        return transactions.containsKey(transactionID);
+    }
+
+    //removes the transaction only if it is still the one in the table under its ID, so that removing a transaction
+    //that already ended doesn't remove a newer transaction with the same ID
+    public void remove(Transaction t) {
+        if (t != null && transactions.remove(t.transactionID, t)) {
+            byStartTime.remove(t.startTime, t);
+        }
+    }
+
+    public int size() {
+        return transactions.size();
+    }
+
+    //the transactions in the order in which they began
+    public Collection<Transaction> values() {
+        return byStartTime.values();
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * A committed version of a data item on a site, with the time at which the transaction that wrote it committed
+ */
+public class Version {
+    long commitTime;
+    int value;
+
+    public Version(long commitTime, int value) {
+        this.commitTime = commitTime;
+        this.value = value;
+    }
+
+    public long getCommitTime() {
+        return commitTime;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return value + "@" + commitTime;
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * The waits-for graph between running transactions, used to detect deadlocks.
+ * An edge T1 --> T2 means that T1 is waiting for T2. Every transaction keeps the set of transactions it waits for and
+ * the set of transactions waiting for it, so edges are added and a transaction is removed without going over the
+ * whole graph. Since the graph has no cycles before an edge is added, a new cycle has to go through the new edge, and
+ * it is enough to search from the end of that edge.
+ */
+public class WaitsForGraph {
+
+    //The key is a transaction, and the value is the set of transactions it waits for, in the order the edges were added
+    HashMap<Transaction, LinkedHashSet<Transaction>> waitsFor = new HashMap<Transaction, LinkedHashSet<Transaction>>();
+    //The key is a transaction, and the value is the set of transactions waiting for it
+    HashMap<Transaction, LinkedHashSet<Transaction>> waitedBy = new HashMap<Transaction, LinkedHashSet<Transaction>>();
+
+    int edgeCount = 0;
+
+    /**
+     * Add the edge from --> to
+     *
+     * @return - true if the edge is new, false if it was already in the graph
+     */
+    public boolean addEdge(Transaction from, Transaction to) {
+        if (!edges(waitsFor, from).add(to)) {
+            return false;
+        }
+        edges(waitedBy, to).add(from);
+        edgeCount++;
+        return true;
+    }
+
+    public boolean hasEdge(Transaction from, Transaction to) {
+        LinkedHashSet<Transaction> targets = waitsFor.get(from);
+        return targets != null && targets.contains(to);
+    }
+
+    /**
+     * Look for a cycle that goes through the edge from --> to, by searching for a path from "to" back to "from"
+     *
+     * @return - the transactions on the cycle, from "to" back to "from", or null if the edge does not close a cycle
+     */
+    public ArrayList<Transaction> findCycle(Transaction from, Transaction to) {
+        if (!hasEdge(from, to)) {
+            return null;
+        }
+
+        //parent keeps the transaction each transaction was reached from, to rebuild the path once "from" is found
+        HashMap<Transaction, Transaction> parent = new HashMap<Transaction, Transaction>();
+        ArrayDeque<Transaction> stack = new ArrayDeque<Transaction>();
+        parent.put(to, from);
+        stack.push(to);
+
+        while (!stack.isEmpty()) {
+            Transaction transaction = stack.pop();
+            if (transaction == from) {
+                ArrayList<Transaction> cycle = new ArrayList<Transaction>();
+                Transaction current = from;
+                while (current != to) {
+                    cycle.add(current);
+                    current = parent.get(current);
+                }
+                cycle.add(to);
+                Collections.reverse(cycle);
+                return cycle;
+            }
+            LinkedHashSet<Transaction> targets = waitsFor.get(transaction);
+            if (targets != null) {
+                for (Transaction neighbour : targets) {
+                    if (!parent.containsKey(neighbour)) {
+                        parent.put(neighbour, transaction);
+                        stack.push(neighbour);
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    //whether the transaction has any edges going in or out of it
+    public boolean contains(Transaction t) {
+        return waitsFor.containsKey(t) || waitedBy.containsKey(t);
+    }
+
+    //remove the transaction and all the edges going in and out of it
+    public void remove(Transaction t) {
+        LinkedHashSet<Transaction> targets = waitsFor.remove(t);
+        if (targets != null) {
+            for (Transaction target : targets) {
+                removeFrom(waitedBy, target, t);
+            }
+            edgeCount -= targets.size();
+        }
+        LinkedHashSet<Transaction> sources = waitedBy.remove(t);
+        if (sources != null) {
+            for (Transaction source : sources) {
+                removeFrom(waitsFor, source, t);
+            }
+            edgeCount -= sources.size();
+        }
+    }
+
+    //the transactions that t is waiting for, in the order the edges were added
+    public Iterable<Transaction> waitsFor(Transaction t) {
+        LinkedHashSet<Transaction> targets = waitsFor.get(t);
+        return targets != null ? targets : new LinkedHashSet<Transaction>();
+    }
+
+    public int size() {
+        return edgeCount;
+    }
+
+    private LinkedHashSet<Transaction> edges(HashMap<Transaction, LinkedHashSet<Transaction>> index, Transaction t) {
+        LinkedHashSet<Transaction> set = index.get(t);
+        if (set == null) {
+            set = new LinkedHashSet<Transaction>();
+            index.put(t, set);
+        }
+        return set;
+    }
+
+    private void removeFrom(HashMap<Transaction, LinkedHashSet<Transaction>> index, Transaction key, Transaction t) {
+        LinkedHashSet<Transaction> set = index.get(key);
+        if (set != null) {
+            set.remove(t);
+            if (set.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}